@@ -0,0 +1,69 @@
+package com.amremad719.mosaicify.benchmarks;
+
+import com.amremad719.mosaicify.FeatureStore;
+import com.amremad719.mosaicify.MatchBackend;
+import com.amremad719.mosaicify.MatchIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a single best-match query, and a batch of a mosaic grid's worth of queries,
+ * against synthetic libraries of 1k to 1M images for every {@link MatchBackend}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class BestMatchBenchmark {
+
+    /** The number of images in the library. */
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int librarySize;
+
+    /** The index implementation answering the queries. */
+    @Param({"BRUTE_FORCE", "VP_TREE", "COARSE_TO_FINE", "IVF_PQ", "GEMM"})
+    public MatchBackend backend;
+
+    private MatchIndex index;
+    private byte[][] queries;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        // The GEMM backend multiplies in OpenCV
+        SyntheticData.loadOpenCV();
+        FeatureStore store = SyntheticData.library(librarySize, 4, 4);
+        index = backend.build(store);
+        queries = SyntheticData.queries(1024, 4, 4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        index.close();
+    }
+
+    @Benchmark
+    public int nearest() {
+        next = (next + 1) & 1023;
+        return index.nearest(queries[next]);
+    }
+
+    @Benchmark
+    public int[] nearestAll() {
+        return index.nearestAll(queries);
+    }
+}
@@ -0,0 +1,74 @@
+package com.amremad719.mosaicify.benchmarks;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures placing one tile into the mosaic, both when the library image still has to be
+ * resized to the tile size and when an already resized tile is copied from the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositingBenchmark {
+
+    /** The side of a square mosaic tile in pixels. */
+    @Param({"16", "32", "64"})
+    public int tileSide;
+
+    private Mat original;
+    private Mat resizedTile;
+    private Mat result;
+    private Size tileSize;
+    private int cell = 0;
+
+    @Setup
+    public void setup() {
+        SyntheticData.loadOpenCV();
+        original = SyntheticData.image(640, 480);
+        tileSize = new Size(tileSide, tileSide);
+        resizedTile = new Mat();
+        Imgproc.resize(original, resizedTile, tileSize);
+        result = new Mat(tileSide * 36, tileSide * 64, original.type());
+    }
+
+    /**
+     * @return the next cell of a 64x36 grid.
+     */
+    private Rect nextRegion() {
+        cell = (cell + 1) % (64 * 36);
+        return new Rect((cell % 64) * tileSide, (cell / 64) * tileSide, tileSide, tileSide);
+    }
+
+    @Benchmark
+    public Mat resizeAndCopy() {
+        Mat resized = new Mat();
+        Imgproc.resize(original, resized, tileSize);
+        resized.copyTo(result.submat(nextRegion()));
+        return result;
+    }
+
+    @Benchmark
+    public Mat copyCachedTile() {
+        resizedTile.copyTo(result.submat(nextRegion()));
+        return result;
+    }
+}
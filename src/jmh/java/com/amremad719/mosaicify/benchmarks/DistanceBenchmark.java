@@ -0,0 +1,83 @@
+package com.amremad719.mosaicify.benchmarks;
+
+import com.amremad719.mosaicify.DistanceKernel;
+import com.amremad719.mosaicify.FeatureStore;
+import com.amremad719.mosaicify.VectorDistanceKernel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the squared-distance kernel that compares a kernel feature with one library
+ * feature, for the kernel sizes selectable in the GUI. The scalar and the Vector API
+ * versions are measured both over the whole feature and with an early-exit bound equal
+ * to the query's best match in the library, as a search sees it once it has found a good
+ * candidate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DistanceBenchmark {
+
+    /** The side of the square kernel in pixels. */
+    @Param({"4", "8", "16"})
+    public int kernelSide;
+
+    private FeatureStore store;
+    private byte[] features;
+    private byte[] query;
+    private int length;
+    private long bestDistance;
+    private int id = 0;
+
+    @Setup
+    public void setup() {
+        store = SyntheticData.library(1024, kernelSide, kernelSide);
+        features = store.getFeatures();
+        query = SyntheticData.queries(1, kernelSide, kernelSide)[0];
+        length = store.getFeatureLength();
+
+        bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < store.size(); i++) {
+            bestDistance = Math.min(bestDistance, store.squaredDistance(query, i));
+        }
+    }
+
+    private int nextOffset() {
+        id = (id + 1) & 1023;
+        return id * length;
+    }
+
+    @Benchmark
+    public long scalar() {
+        return DistanceKernel.scalarSquaredDistance(query, 0, features, nextOffset(), length, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public long vector() {
+        return VectorDistanceKernel.squaredDistance(query, 0, features, nextOffset(), length, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public long scalarEarlyExit() {
+        return DistanceKernel.scalarSquaredDistance(query, 0, features, nextOffset(), length, bestDistance);
+    }
+
+    @Benchmark
+    public long vectorEarlyExit() {
+        return VectorDistanceKernel.squaredDistance(query, 0, features, nextOffset(), length, bestDistance);
+    }
+}
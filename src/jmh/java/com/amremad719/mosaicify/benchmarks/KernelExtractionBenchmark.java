@@ -0,0 +1,74 @@
+package com.amremad719.mosaicify.benchmarks;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning one grid cell of a 1920x1080 source into a kernel feature: taking the
+ * submatrix, resizing it to the kernel size and copying the pixels into a Java array. For
+ * comparison, {@code extractGrid} reduces all 64x36 cells at once with a single resize and
+ * a single copy, so its time is spread over 2304 kernels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelExtractionBenchmark {
+
+    /** The side of the square kernel in pixels. */
+    @Param({"4", "8", "16"})
+    public int kernelSide;
+
+    private Mat source;
+    private Size kernelSize;
+    private byte[] feature;
+    private byte[] grid;
+    private int cell = 0;
+
+    @Setup
+    public void setup() {
+        SyntheticData.loadOpenCV();
+        source = SyntheticData.image(1920, 1080);
+        kernelSize = new Size(kernelSide, kernelSide);
+        feature = new byte[kernelSide * kernelSide * 3];
+        grid = new byte[64 * 36 * feature.length];
+    }
+
+    @Benchmark
+    public byte[] extractKernel() {
+        // Walk the cells of a 64x36 grid of 30x30 tiles
+        cell = (cell + 1) % (64 * 36);
+        Rect roi = new Rect((cell % 64) * 30, (cell / 64) * 30, 30, 30);
+
+        Mat reduced = new Mat();
+        Imgproc.resize(source.submat(roi), reduced, kernelSize);
+        reduced.get(0, 0, feature);
+        return feature;
+    }
+
+    @Benchmark
+    public byte[] extractGrid() {
+        Mat reduced = new Mat();
+        Imgproc.resize(source, reduced, new Size(64 * kernelSide, 36 * kernelSide), 0, 0, Imgproc.INTER_AREA);
+        reduced.get(0, 0, grid);
+        reduced.release();
+        return grid;
+    }
+}
@@ -0,0 +1,115 @@
+package com.amremad719.mosaicify.benchmarks;
+
+import com.amremad719.mosaicify.FeatureStore;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+/**
+ * The {@code SyntheticData} class generates reproducible inputs for the benchmarks, so
+ * they run on any machine without a display or an image library on disk. All data is
+ * derived from a fixed seed.
+ */
+final class SyntheticData {
+
+    /** The seed every generator starts from. */
+    static final long SEED = 719L;
+
+    private static boolean nativeLoaded = false;
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Loads the OpenCV native library once per benchmark JVM.
+     */
+    static synchronized void loadOpenCV() {
+        if (!nativeLoaded) {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            nativeLoaded = true;
+        }
+    }
+
+    /**
+     * Fills {@code feature} with an image-like BGR patch: a random base colour with a
+     * random linear gradient and a little noise, which is how real library thumbnails
+     * are distributed far more than uniform noise is.
+     *
+     * @param random  the source of randomness.
+     * @param feature the buffer to fill; its length must be {@code width * height * 3}.
+     * @param width   the width of the patch in pixels.
+     * @param height  the height of the patch in pixels.
+     */
+    static void fillFeature(Random random, byte[] feature, int width, int height) {
+        int[] base = {random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+        double gradientX = random.nextGaussian() * 80 / width;
+        double gradientY = random.nextGaussian() * 80 / height;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double shade = gradientX * (x - width / 2.0) + gradientY * (y - height / 2.0);
+                for (int c = 0; c < 3; c++) {
+                    int value = (int) (base[c] + shade + random.nextGaussian() * 4);
+                    feature[(y * width + x) * 3 + c] = (byte) Math.max(0, Math.min(255, value));
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a feature store of synthetic library images.
+     *
+     * @param size   the number of images.
+     * @param width  the feature width in pixels.
+     * @param height the feature height in pixels.
+     * @return the populated store.
+     */
+    static FeatureStore library(int size, int width, int height) {
+        Random random = new Random(SEED);
+        FeatureStore store = new FeatureStore(width, height);
+        byte[] feature = new byte[width * height * 3];
+
+        for (int i = 0; i < size; i++) {
+            fillFeature(random, feature, width, height);
+            store.add("synthetic/" + i + ".jpg", feature);
+        }
+        return store;
+    }
+
+    /**
+     * Builds a set of query features drawn from the same distribution as {@link #library}.
+     *
+     * @param count  the number of queries.
+     * @param width  the feature width in pixels.
+     * @param height the feature height in pixels.
+     * @return the query features.
+     */
+    static byte[][] queries(int count, int width, int height) {
+        Random random = new Random(SEED + 1);
+        byte[][] queries = new byte[count][width * height * 3];
+        for (byte[] query : queries) {
+            fillFeature(random, query, width, height);
+        }
+        return queries;
+    }
+
+    /**
+     * Builds a smooth synthetic BGR image by blurring seeded noise.
+     *
+     * @param width  the image width in pixels.
+     * @param height the image height in pixels.
+     * @return the image.
+     */
+    static Mat image(int width, int height) {
+        Core.setRNGSeed((int) SEED);
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        Core.randu(image, 0, 256);
+        Imgproc.GaussianBlur(image, image, new Size(0, 0), Math.max(width, height) / 40.0);
+        Core.normalize(image, image, 0, 255, Core.NORM_MINMAX);
+        return image;
+    }
+}
@@ -0,0 +1,416 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+/**
+ * The {@code BatchMosaicify} class is a headless entry point that loads a sub-image library
+ * once and renders many source images against it, several at a time, without starting the
+ * JavaFX GUI. It prints the time taken by every job and the overall throughput.
+ * <p>
+ * Usage:
+ * <pre>
+ * BatchMosaicify --library &lt;dir&gt; [--kernel WxH] [--grid WxH] [--size WxH]
+ *                [--backend NAME] [--probes N] [--recall R] [--memo-step N] [--jobs N] [--threads N]
+ *                [--strip-rows N] [--shards N] [--atlas] [--sequence] [--reuse-threshold T]
+ *                [--timeout S] [--watch] [--output &lt;dir&gt;]
+ *                &lt;image or dir&gt;...
+ * </pre>
+ */
+public class BatchMosaicify {
+
+    // Static block to load the OpenCV native library when the class is loaded
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private static final String USAGE = """
+            Usage: BatchMosaicify --library <dir> [options] <image or directory>...
+              --library <dir>  directory of sub-images used as tiles (required)
+              --kernel WxH     sub-image kernel size used for matching (default 4x4)
+              --grid WxH       number of tiles across and down (default 64x36)
+              --size WxH       output resolution (default: resolution of each source)
+              --backend NAME   match index: BRUTE_FORCE, VP_TREE, COARSE_TO_FINE, IVF_PQ or
+                               GEMM (default COARSE_TO_FINE)
+              --probes N       candidate groups examined per tile by approximate backends;
+                               fewer is faster but may miss the best match (default: exact,
+                               or the fewest reaching the target recall for IVF_PQ)
+              --recall R       target recall of IVF_PQ between 0 and 1 (default 0.95)
+              --memo-step N    match all tiles whose kernels are equal after dividing every byte
+                               by N to the same image, searched once; 1 only reuses identical
+                               kernels, 0 searches the library for every tile (default 1)
+              --jobs N         number of images rendered at the same time (default: cores)
+              --threads N      threads per image (default 1)
+              --strip-rows N   stream each mosaic to a TIFF file N grid rows at a time,
+                               for outputs too large to hold in memory
+              --atlas          keep the library images pre-resized to 16, 32 and 64 pixel tiles
+                               in a memory-mapped atlas next to the library index, and copy
+                               tiles from it instead of decoding the originals
+              --shards N       split the library across N worker processes on this machine
+                               and match every image's tiles on all of them
+              --sequence       render the sources, in file name order, as the frames of one
+                               animation, re-matching only the tiles that changed noticeably
+                               since the previous frame
+              --reuse-threshold T
+                               largest root-mean-square change of a tile's kernel, from 0 to
+                               255, for which --sequence keeps its previous match (default 4)
+              --timeout S      cancel any image that takes longer than S seconds
+              --watch          keep processing files added to, changed in or deleted from the
+                               library while the batch runs; each image uses the library as it
+                               was when its render started
+              --output <dir>   directory for the mosaics (default: next to each source)""";
+
+    /** Prints the metrics summary of every render and library search, ignoring progress. */
+    private static final ProgressListener METRICS_PRINTER = new ProgressListener() {
+        @Override
+        public void onProgress(double progress) {
+        }
+
+        @Override
+        public void onStatus(String status) {
+        }
+
+        @Override
+        public void onMetrics(PipelineMetrics metrics) {
+            System.out.println(metrics.summary());
+        }
+    };
+
+    private Path libraryDirectory;
+    private Size kernelSize = new Size(4, 4);
+    private Size gridSize = new Size(64, 36);
+    private Size outputSize = null;
+    private MatchBackend matchBackend = MatchBackend.COARSE_TO_FINE;
+    private int matchProbes = MatchBackend.EXACT;
+    private double targetRecall = MatchOptions.DEFAULT.targetRecall();
+    private int memoStep = MatchOptions.DEFAULT.memoStep();
+    private int jobCount = Runtime.getRuntime().availableProcessors();
+    private int threadCount = 1;
+    private int stripRows = 0;
+    private int shardCount = 0;
+    private Duration timeout = null;
+    private boolean watch = false;
+    private boolean atlas = false;
+    private boolean sequence = false;
+    private double reuseThreshold = 4;
+    private Path outputDirectory = null;
+    private final List<Path> sources = new ArrayList<>();
+
+    /**
+     * Parses the command line, loads the library and renders every source image.
+     *
+     * @param args command-line arguments, see the class documentation.
+     */
+    public static void main(String[] args) {
+        BatchMosaicify batch = new BatchMosaicify();
+        try {
+            batch.parseArguments(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            batch.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads options and collects the source images named on the command line.
+     *
+     * @param args the command-line arguments.
+     * @throws IOException if a source directory cannot be listed.
+     */
+    private void parseArguments(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                addSources(Path.of(arg));
+                continue;
+            }
+            if (arg.equals("--watch")) {
+                watch = true;
+                continue;
+            }
+            if (arg.equals("--atlas")) {
+                atlas = true;
+                continue;
+            }
+            if (arg.equals("--sequence")) {
+                sequence = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+
+            String value = args[++i];
+            switch (arg) {
+                case "--library" -> libraryDirectory = Path.of(value);
+                case "--kernel" -> kernelSize = parseSize(value);
+                case "--grid" -> gridSize = parseSize(value);
+                case "--size" -> outputSize = parseSize(value);
+                case "--backend" -> matchBackend = MatchBackend.valueOf(value.toUpperCase(Locale.ROOT));
+                case "--probes" -> matchProbes = Integer.parseInt(value);
+                case "--recall" -> targetRecall = Double.parseDouble(value);
+                case "--memo-step" -> memoStep = Integer.parseInt(value);
+                case "--jobs" -> jobCount = Integer.parseInt(value);
+                case "--threads" -> threadCount = Integer.parseInt(value);
+                case "--strip-rows" -> stripRows = Integer.parseInt(value);
+                case "--shards" -> shardCount = Integer.parseInt(value);
+                case "--reuse-threshold" -> reuseThreshold = Double.parseDouble(value);
+                case "--timeout" -> timeout = Duration.ofSeconds(Long.parseLong(value));
+                case "--output" -> outputDirectory = Path.of(value);
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (libraryDirectory == null) {
+            throw new IllegalArgumentException("No library directory given");
+        }
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("No source images given");
+        }
+        if (jobCount < 1 || threadCount < 1) {
+            throw new IllegalArgumentException("Job and thread counts must be at least 1");
+        }
+        if (stripRows < 0) {
+            throw new IllegalArgumentException("Strip rows must not be negative");
+        }
+        if (shardCount < 0) {
+            throw new IllegalArgumentException("Shard count must not be negative");
+        }
+        if (shardCount > 0 && watch) {
+            throw new IllegalArgumentException("--watch cannot be combined with --shards");
+        }
+        if (shardCount > 0 && atlas) {
+            throw new IllegalArgumentException("--atlas cannot be combined with --shards");
+        }
+        if (sequence && (shardCount > 0 || stripRows > 0)) {
+            throw new IllegalArgumentException("--sequence cannot be combined with --shards or --strip-rows");
+        }
+        if (!(reuseThreshold >= 0 && reuseThreshold <= 255)) {
+            throw new IllegalArgumentException("Reuse threshold must be in [0, 255]");
+        }
+        if (matchProbes < 0) {
+            throw new IllegalArgumentException("Probe count must not be negative");
+        }
+        if (!(targetRecall > 0 && targetRecall <= 1)) {
+            throw new IllegalArgumentException("Target recall must be in (0, 1]");
+        }
+        if (memoStep < MatchMemo.OFF || memoStep > 255) {
+            throw new IllegalArgumentException("Memo step must be in [0, 255]");
+        }
+    }
+
+    /**
+     * Adds a source image, or every image directly inside a source directory.
+     * Mosaics produced by earlier runs are skipped.
+     */
+    private void addSources(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            sources.add(path);
+            return;
+        }
+
+        try (Stream<Path> files = Files.list(path)) {
+            files.filter(BatchMosaicify::isSourceImage).sorted().forEach(sources::add);
+        }
+    }
+
+    /**
+     * @return {@code true} for the image types the GUI accepts that are not earlier output.
+     */
+    private static boolean isSourceImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return !name.contains("_photomosaic")
+                && (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".bmp"));
+    }
+
+    /**
+     * Parses a size written as {@code WIDTHxHEIGHT}.
+     */
+    private static Size parseSize(String value) {
+        String[] parts = value.toLowerCase(Locale.ROOT).split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected WIDTHxHEIGHT but got " + value);
+        }
+        return new Size(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Loads the library once, then renders all sources on a scheduler with {@code jobCount} workers.
+     */
+    private void run() throws IOException {
+        Engine engine = Engine.getInstance();
+        SubImagesLibrary library = engine.subImagesLibrary;
+
+        if (!library.setLibraryDirectory(libraryDirectory)) {
+            throw new IOException("Library directory " + libraryDirectory + " does not exist");
+        }
+        library.setKernelSubDivisionDim(kernelSize);
+        library.setMatchBackend(matchBackend);
+        library.setMatchOptions(new MatchOptions(matchProbes, targetRecall, memoStep));
+        library.setAtlasLevels(atlas ? TileAtlas.DEFAULT_LEVELS : null);
+
+        ShardCoordinator shards = null;
+        if (shardCount > 0) {
+            // The workers load the library in parallel instead of this process
+            long libraryStart = System.nanoTime();
+            shards = ShardCoordinator.launch(shardCount, List.of(
+                    "--library", libraryDirectory.toString(),
+                    "--kernel", (int) kernelSize.width + "x" + (int) kernelSize.height,
+                    "--backend", matchBackend.name(),
+                    "--probes", Integer.toString(matchProbes),
+                    "--recall", Double.toString(targetRecall),
+                    "--memo-step", Integer.toString(memoStep)));
+            System.out.printf("Loaded %d library images on %d shards in %.2f s%n",
+                    shards.size(), shards.getShardCount(), seconds(libraryStart));
+            if (shards.size() == 0) {
+                shards.close();
+                throw new IOException("Library directory " + libraryDirectory + " contains no images");
+            }
+            System.out.printf("Matching with %s on %d shards, recall %.1f%% against brute force%n",
+                    matchBackend, shards.getShardCount(), shards.getRecall() * 100);
+            engine.setShards(shards);
+        } else {
+            // Watch before searching, so that no change slips in between
+            if (watch) {
+                library.startWatching(METRICS_PRINTER);
+            }
+
+            long libraryStart = System.nanoTime();
+            library.searchLibrary(METRICS_PRINTER);
+            System.out.printf("Loaded %d library images in %.2f s%n", library.size(), seconds(libraryStart));
+            if (library.size() == 0) {
+                throw new IOException("Library directory " + libraryDirectory + " contains no images");
+            }
+            System.out.printf("Matching with %s, recall %.1f%% against brute force%n",
+                    matchBackend, library.getRecall(matchBackend) * 100);
+        }
+
+        if (sequence) {
+            runSequence(engine);
+            library.stopWatching();
+            return;
+        }
+
+        JobScheduler scheduler = new JobScheduler(jobCount);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        long batchStart = System.nanoTime();
+
+        for (Path source : sources) {
+            Path output = RenderJob.defaultOutputPath(source);
+            if (outputDirectory != null) {
+                output = outputDirectory.resolve(output.getFileName());
+            }
+            if (stripRows > 0) {
+                output = withExtension(output, ".tif");
+            }
+            RenderJob job = new RenderJob(source, output, outputSize, gridSize, threadCount, matchBackend);
+            results.add(scheduler.submit(() -> renderJob(engine, job, stripRows), timeout));
+        }
+
+        // Wait for every job, counting the tiles of the ones that succeeded
+        int succeeded = 0;
+        long tiles = 0;
+        for (CompletableFuture<Long> result : results) {
+            try {
+                tiles += result.join();
+                succeeded++;
+            } catch (CompletionException e) {
+                System.err.println("Job failed: " + e.getCause());
+            }
+        }
+        scheduler.shutdown();
+        library.stopWatching();
+        if (shards != null) {
+            engine.setShards(null);
+            shards.close();
+        }
+
+        double elapsed = seconds(batchStart);
+        System.out.printf("Rendered %d/%d images in %.2f s: %.2f images/s, %.0f tiles/s%n",
+                succeeded, sources.size(), elapsed, succeeded / elapsed, tiles / elapsed);
+    }
+
+    /**
+     * Renders all sources as the frames of one sequence, see
+     * {@link Engine#renderSequence(List, double, ProgressListener)}.
+     */
+    private void runSequence(Engine engine) {
+        List<RenderJob> frames = new ArrayList<>();
+        for (Path source : sources) {
+            Path output = RenderJob.defaultOutputPath(source);
+            if (outputDirectory != null) {
+                output = outputDirectory.resolve(output.getFileName());
+            }
+            frames.add(new RenderJob(source, output, outputSize, gridSize, threadCount, matchBackend));
+        }
+
+        JobScheduler scheduler = new JobScheduler(1);
+        try {
+            Engine.SequenceResult result = scheduler.submit(
+                    () -> engine.renderSequence(frames, reuseThreshold, METRICS_PRINTER), timeout).join();
+            System.out.printf("Rendered %d frames in %.2f s: %.2f frames/s, %.1f%% of tiles reused from the previous frame%n",
+                    result.frames(), result.elapsedNanos() / 1e9, result.framesPerSecond(), result.reuseRatio() * 100);
+        } catch (CompletionException e) {
+            System.err.println("Sequence failed: " + e.getCause());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Replaces the extension of a file name.
+     */
+    private static Path withExtension(Path path, String extension) {
+        String name = path.getFileName().toString();
+        int dotIndex = name.lastIndexOf('.');
+        return path.resolveSibling((dotIndex != -1 ? name.substring(0, dotIndex) : name) + extension);
+    }
+
+    /**
+     * Renders and saves a single job, printing how long it took.
+     *
+     * @param stripRows the number of grid rows per streamed strip, or 0 to render in memory.
+     * @return the number of tiles in the rendered mosaic.
+     */
+    private static long renderJob(Engine engine, RenderJob job, int stripRows) throws IOException {
+        long start = System.nanoTime();
+        if (stripRows > 0) {
+            engine.renderStriped(job, stripRows, METRICS_PRINTER);
+            System.out.printf("%s -> %s in %.2f s%n", job.source(), job.output(), seconds(start));
+        } else {
+            Mat mosaic = engine.renderToFile(job, METRICS_PRINTER);
+            System.out.printf("%s -> %s (%dx%d) in %.2f s%n", job.source(), job.output(),
+                    mosaic.width(), mosaic.height(), seconds(start));
+            NativeMemory.release(mosaic);
+        }
+
+        return (long) (job.subDivisionCount().width * job.subDivisionCount().height);
+    }
+
+    /**
+     * @return the seconds elapsed since {@code start}, a {@link System#nanoTime()} value.
+     */
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
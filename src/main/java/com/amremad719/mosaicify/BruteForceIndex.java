@@ -0,0 +1,47 @@
+package com.amremad719.mosaicify;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code BruteForceIndex} class finds the nearest feature with a linear scan over the
+ * whole {@link FeatureStore}. It costs O(library size) per query and serves as the
+ * reference that faster indexes are checked against.
+ */
+public class BruteForceIndex implements MatchIndex {
+
+    private final FeatureStore store;
+    private final LongAdder comparisons = new LongAdder();
+
+    /**
+     * Creates a brute-force index over the given store.
+     *
+     * @param store the processed library features.
+     */
+    public BruteForceIndex(FeatureStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public int nearest(byte[] query) {
+        long minError = Long.MAX_VALUE;
+        int match = -1;
+
+        // Compare the query to every stored feature, keeping the first one with the lowest error.
+        // Each comparison gives up once it is worse than the best so far.
+        for (int id = 0; id < store.size(); id++) {
+            long error = store.squaredDistance(query, id, minError);
+            if (error < minError) {
+                minError = error;
+                match = id;
+            }
+        }
+
+        comparisons.add(store.size());
+        return match;
+    }
+
+    @Override
+    public long getComparisonCount() {
+        return comparisons.sum();
+    }
+}
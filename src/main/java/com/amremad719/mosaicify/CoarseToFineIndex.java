@@ -0,0 +1,274 @@
+package com.amremad719.mosaicify;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code CoarseToFineIndex} class finds the nearest feature in two stages. Library
+ * images are first bucketed on a grid by their mean colour; a query then visits the
+ * buckets in rings of increasing colour distance from its own mean colour, and compares
+ * full features only inside the buckets it visits.
+ * <p>
+ * The mean colour gives an exact lower bound on the full distance: by the Cauchy-Schwarz
+ * inequality, the squared distance between two features of {@code n} pixels is at least
+ * {@code (Sa - Sb)^2 / n} per channel, where {@code S} is the channel's pixel sum. Buckets
+ * and candidates whose bound exceeds the best match so far are skipped without being
+ * compared, and the search ends once a whole ring is out of reach. In exact mode the result
+ * therefore always equals a linear scan, ties included.
+ * <p>
+ * Setting a number of probes trades recall for speed: the search then stops after
+ * comparing the members of that many buckets, even if a closer feature might remain.
+ */
+public class CoarseToFineIndex implements MatchIndex {
+
+    /** Probe count that searches until the result is guaranteed to be exact. */
+    public static final int EXACT = MatchBackend.EXACT;
+
+    /** The average number of images per bucket the grid is sized for. */
+    private static final int IMAGES_PER_BUCKET = 8;
+
+    /** The largest number of grid levels per colour channel. */
+    private static final int MAX_LEVELS = 32;
+
+    private final FeatureStore store;
+    private final int probes;
+    private final LongAdder comparisons = new LongAdder();
+
+    /** The number of pixels in a feature. */
+    private final int pixels;
+
+    /** The number of grid levels per colour channel. */
+    private final int levels;
+
+    /** The width of a grid cell in units of channel sums. */
+    private final double cellWidth;
+
+    /** Feature ids ordered by bucket, and by id within a bucket. */
+    private final int[] order;
+
+    /** The per-channel pixel sums of the feature at each position of {@code order}. */
+    private final long[] sums;
+
+    /** The first position in {@code order} of each bucket; one extra entry marks the end. */
+    private final int[] bucketStart;
+
+    /** The smallest and largest channel sums of each bucket's members, three per bucket. */
+    private final long[] bucketMin;
+    private final long[] bucketMax;
+
+    /**
+     * Builds an exact index over every feature currently in the store.
+     *
+     * @param store the processed library features.
+     */
+    public CoarseToFineIndex(FeatureStore store) {
+        this(store, EXACT);
+    }
+
+    /**
+     * Builds an index over every feature currently in the store.
+     *
+     * @param store  the processed library features.
+     * @param probes the largest number of buckets whose members are compared per query,
+     *               or {@link #EXACT} to always return the exact nearest feature.
+     */
+    public CoarseToFineIndex(FeatureStore store, int probes) {
+        if (probes < 0) {
+            throw new IllegalArgumentException("Probe count must not be negative");
+        }
+        this.store = store;
+        this.probes = probes;
+
+        int size = store.size();
+        this.pixels = store.getFeatureWidth() * store.getFeatureHeight();
+        this.levels = Math.max(1, Math.min(MAX_LEVELS, (int) Math.round(Math.cbrt((double) size / IMAGES_PER_BUCKET))));
+        this.cellWidth = 256.0 * pixels / levels;
+
+        int bucketCount = levels * levels * levels;
+        long[] featureSums = new long[size * 3];
+        int[] bucketOf = new int[size];
+        bucketStart = new int[bucketCount + 1];
+
+        // Compute every feature's channel sums and count the members of each bucket
+        for (int id = 0; id < size; id++) {
+            channelSums(store.getFeatures(), id * store.getFeatureLength(), featureSums, id * 3);
+            bucketOf[id] = bucket(featureSums, id * 3);
+            bucketStart[bucketOf[id] + 1]++;
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+
+        // Place ids into their buckets in increasing order
+        order = new int[size];
+        sums = new long[size * 3];
+        int[] next = bucketStart.clone();
+        for (int id = 0; id < size; id++) {
+            int position = next[bucketOf[id]]++;
+            order[position] = id;
+            System.arraycopy(featureSums, id * 3, sums, position * 3, 3);
+        }
+
+        // Record the extent of each bucket's members for pruning whole buckets
+        bucketMin = new long[bucketCount * 3];
+        bucketMax = new long[bucketCount * 3];
+        for (int b = 0; b < bucketCount; b++) {
+            for (int c = 0; c < 3; c++) {
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                for (int position = bucketStart[b]; position < bucketStart[b + 1]; position++) {
+                    min = Math.min(min, sums[position * 3 + c]);
+                    max = Math.max(max, sums[position * 3 + c]);
+                }
+                bucketMin[b * 3 + c] = min;
+                bucketMax[b * 3 + c] = max;
+            }
+        }
+    }
+
+    /**
+     * Sums each colour channel of a BGR feature.
+     */
+    private void channelSums(byte[] feature, int offset, long[] out, int outOffset) {
+        long b = 0, g = 0, r = 0;
+        for (int k = offset; k < offset + pixels * 3; k += 3) {
+            b += feature[k] & 0xFF;
+            g += feature[k + 1] & 0xFF;
+            r += feature[k + 2] & 0xFF;
+        }
+        out[outOffset] = b;
+        out[outOffset + 1] = g;
+        out[outOffset + 2] = r;
+    }
+
+    /**
+     * @return the grid level of a channel sum along one axis.
+     */
+    private int level(long sum) {
+        return Math.min(levels - 1, (int) (sum / cellWidth));
+    }
+
+    /**
+     * @return the bucket holding features with the given channel sums.
+     */
+    private int bucket(long[] channelSums, int offset) {
+        return (level(channelSums[offset]) * levels + level(channelSums[offset + 1])) * levels
+                + level(channelSums[offset + 2]);
+    }
+
+    @Override
+    public int nearest(byte[] query) {
+        if (order.length == 0) {
+            return -1;
+        }
+
+        Search search = new Search(query);
+        int x = level(search.querySums[0]);
+        int y = level(search.querySums[1]);
+        int z = level(search.querySums[2]);
+
+        // Visit the cells at Chebyshev distance 0, 1, 2, ... from the query's own cell
+        for (int ring = 0; ring < levels && !search.done; ring++) {
+            // Every cell of this ring is at least (ring - 1) cells away along some channel
+            if (ring > 1) {
+                double gap = (ring - 1) * cellWidth;
+                if (gap * gap > search.limit) {
+                    break;
+                }
+            }
+
+            for (int dx = -ring; dx <= ring && !search.done; dx++) {
+                for (int dy = -ring; dy <= ring && !search.done; dy++) {
+                    // Inside the ring only the two faces along z belong to it
+                    boolean onEdge = Math.abs(dx) == ring || Math.abs(dy) == ring;
+                    int step = onEdge ? 1 : Math.max(1, 2 * ring);
+                    for (int dz = -ring; dz <= ring && !search.done; dz += step) {
+                        search.scan(x + dx, y + dy, z + dz);
+                    }
+                }
+            }
+        }
+
+        comparisons.add(search.comparisons);
+        return search.id;
+    }
+
+    @Override
+    public long getComparisonCount() {
+        return comparisons.sum();
+    }
+
+    /**
+     * The state of a single query.
+     */
+    private final class Search {
+        final byte[] query;
+        final long[] querySums = new long[3];
+
+        int id = -1;
+        long squared = Long.MAX_VALUE;
+
+        /** {@code squared * pixels}, the bound compared against squared sum differences. */
+        long limit = Long.MAX_VALUE;
+
+        int bucketsProbed = 0;
+        int comparisons = 0;
+        boolean done = false;
+
+        Search(byte[] query) {
+            this.query = query;
+            channelSums(query, 0, querySums, 0);
+        }
+
+        /**
+         * @return the squared distance between the query's channel sums and the nearest
+         *         point of a box of channel sums.
+         */
+        long sumGap(long[] min, long[] max, int offset) {
+            long total = 0;
+            for (int c = 0; c < 3; c++) {
+                long gap = Math.max(0, Math.max(min[offset + c] - querySums[c], querySums[c] - max[offset + c]));
+                total += gap * gap;
+            }
+            return total;
+        }
+
+        /**
+         * Compares the members of the bucket at the given grid coordinates, unless it is
+         * outside the grid, empty or provably too far away.
+         */
+        void scan(int x, int y, int z) {
+            if (x < 0 || y < 0 || z < 0 || x >= levels || y >= levels || z >= levels) {
+                return;
+            }
+
+            int bucket = (x * levels + y) * levels + z;
+            int start = bucketStart[bucket];
+            int end = bucketStart[bucket + 1];
+            if (start == end || sumGap(bucketMin, bucketMax, bucket * 3) > limit) {
+                return;
+            }
+
+            for (int position = start; position < end; position++) {
+                // Coarse stage: skip candidates whose mean colour alone rules them out
+                if (sumGap(sums, sums, position * 3) > limit) {
+                    continue;
+                }
+
+                // Fine stage: compare the full features
+                int candidate = order[position];
+                long distance = store.squaredDistance(query, candidate, squared);
+                comparisons++;
+                if (distance < squared || (distance == squared && candidate < id)) {
+                    id = candidate;
+                    squared = distance;
+                    limit = squared > Long.MAX_VALUE / pixels ? Long.MAX_VALUE : squared * pixels;
+                }
+            }
+
+            bucketsProbed++;
+            if (probes != EXACT && bucketsProbed >= probes) {
+                done = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.amremad719.mosaicify;
+
+/**
+ * The {@code DistanceKernel} class computes the sum of squared differences between two
+ * unsigned byte features, the innermost loop of library matching.
+ * <p>
+ * When the JVM is started with {@code --add-modules jdk.incubator.vector}, the work is done
+ * by {@link VectorDistanceKernel} with SIMD instructions. Otherwise a scalar loop is used,
+ * which gives exactly the same results.
+ * <p>
+ * Both versions accept a bound and stop as soon as the partial sum exceeds it, which lets a
+ * search skip most of a candidate that is already worse than the best match found so far.
+ */
+public final class DistanceKernel {
+
+    /** Whether the Vector API module is present in this JVM. */
+    private static final boolean VECTORIZED =
+            ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    /** Elements compared by the scalar loop between checks against the bound. */
+    private static final int SCALAR_BLOCK = 48;
+
+    private DistanceKernel() {
+    }
+
+    /**
+     * @return {@code true} if distances are computed with the Vector API.
+     */
+    public static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * Computes the sum of squared differences between two unsigned byte vectors.
+     *
+     * @param a       the first vector.
+     * @param aOffset the offset of the first element in {@code a}.
+     * @param b       the second vector.
+     * @param bOffset the offset of the first element in {@code b}.
+     * @param length  the number of elements to compare.
+     * @return the sum of squared differences.
+     */
+    public static long squaredDistance(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        return squaredDistance(a, aOffset, b, bOffset, length, Long.MAX_VALUE);
+    }
+
+    /**
+     * Computes the sum of squared differences between two unsigned byte vectors, stopping
+     * early once the sum exceeds {@code bound}.
+     *
+     * @param a       the first vector.
+     * @param aOffset the offset of the first element in {@code a}.
+     * @param b       the second vector.
+     * @param bOffset the offset of the first element in {@code b}.
+     * @param length  the number of elements to compare.
+     * @param bound   the largest sum of interest.
+     * @return the exact sum if it is at most {@code bound}, otherwise some value above {@code bound}.
+     */
+    public static long squaredDistance(byte[] a, int aOffset, byte[] b, int bOffset, int length, long bound) {
+        if (VECTORIZED) {
+            return VectorDistanceKernel.squaredDistance(a, aOffset, b, bOffset, length, bound);
+        }
+        return scalarSquaredDistance(a, aOffset, b, bOffset, length, bound);
+    }
+
+    /**
+     * The scalar version of {@link #squaredDistance(byte[], int, byte[], int, int, long)},
+     * used when the Vector API is not available.
+     */
+    public static long scalarSquaredDistance(byte[] a, int aOffset, byte[] b, int bOffset, int length, long bound) {
+        long sum = 0;
+        int k = 0;
+
+        while (k < length) {
+            int blockEnd = Math.min(length, k + SCALAR_BLOCK);
+            for (; k < blockEnd; k++) {
+                int diff = (a[aOffset + k] & 0xFF) - (b[bOffset + k] & 0xFF);
+                sum += diff * diff;
+            }
+            if (sum > bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+}
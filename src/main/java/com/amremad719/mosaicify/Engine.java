@@ -1,5 +1,6 @@
 package com.amremad719.mosaicify;
 
+import javafx.scene.image.Image;
 import org.opencv.core.Mat;
 import org.opencv.core.Rect;
 import org.opencv.core.Size;
@@ -8,21 +9,98 @@ import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * The {@code Engine} class handles the core logic for generating a photomosaic.
- * It follows the singleton design pattern and extends {@link Thread} to run mosaic
- * generation in a background thread. It uses OpenCV to process and generate the output image.
+ * It follows the singleton design pattern and runs mosaic generation and library loading
+ * as jobs on a long-lived {@link JobScheduler}, so any number of renders can be started
+ * over the lifetime of the application against the same loaded library. It uses OpenCV to
+ * process and generate the output image.
+ * <p>
+ * Renders themselves are described by a {@link RenderJob} and can also be run without the
+ * GUI through {@link #render(RenderJob, ProgressListener)}, several at a time against the
+ * same library. Every render matches against the {@link LibrarySnapshot} that is current
+ * when it starts, even if the library is searched again or updated in live mode meanwhile.
+ * <p>
+ * Tiles are matched on the grid cells of the source at its own resolution and only
+ * composited at the output resolution, so the {@link RenderCache} can hand a render the
+ * decoded source and the tile matches of an earlier render of the same image: changing
+ * the output resolution only re-composites, and changing the grid only re-matches.
+ * <p>
+ * Renders started from the GUI are accompanied by a preview, see
+ * {@link #renderPreview(RenderJob, Consumer)}, that fills the GUI's image view within a
+ * fraction of a second and refines while the full-resolution render runs.
  */
-public class Engine extends Thread {
+public class Engine {
     private static Engine instance; // Singleton instance
 
     /** Library containing the collection of sub-images used to construct the mosaic. */
     public SubImagesLibrary subImagesLibrary = new SubImagesLibrary();
 
+    /** Cache of library images already resized to the tile size, shared across renders. */
+    public final TileCache tileCache = new TileCache(TileCache.DEFAULT_MEMORY_BUDGET);
+
+    /** Decoded sources and tile matches of recent renders, reused when a source is rendered again. */
+    public final RenderCache renderCache = new RenderCache(RenderCache.DEFAULT_SOURCE_COUNT);
+
+    /** The longest side of a preview in pixels, about twice that of the GUI's image view. */
+    private static final int PREVIEW_SIZE = 640;
+
+    /** How many times fewer tiles across and down the first preview has than the full grid. */
+    private static final int PREVIEW_COARSENESS = 4;
+
+    /** The number of grid rows refined between two updates of a preview. */
+    private static final int PREVIEW_BAND_ROWS = 4;
+
+    /** The longest a cancelled parallel render waits for its workers to drop their tiles. */
+    private static final long CANCEL_GRACE_SECONDS = 5;
+
+    /** Runs the jobs started from the GUI one after the other, in the order they were submitted. */
+    private final JobScheduler scheduler = new JobScheduler(1);
+
+    /** The library shards renders match on, or {@code null} to match against {@link #subImagesLibrary}. */
+    private volatile ShardCoordinator shards = null;
+
+    /** Runs previews next to the GUI's renders, so that a preview never waits for a full render. */
+    private final JobScheduler previewScheduler = new JobScheduler(1);
+
+    /** Guards what the GUI's image view shows. */
+    private final Object displayLock = new Object();
+
+    /**
+     * Counts renders started from the GUI and parameter changes; only images of the latest
+     * render are shown. Guarded by {@code displayLock}.
+     */
+    private long displayGeneration = 0;
+
+    /** The preview of the latest render started from the GUI, or {@code null}; guarded by {@code displayLock}. */
+    private CompletableFuture<Void> preview = null;
+
     private File selectedImage;
-    private Mat result;
     private Size subDivisionCount = new Size(64, 36);
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Creates the engine; use {@link #getInstance()}.
+     */
+    private Engine() {
+        // Tiles of library images that change on disk must be decoded again
+        subImagesLibrary.setChangeListener(tileCache::invalidate);
+        tileCache.setAtlasSource(subImagesLibrary::getAtlas);
+    }
 
     /**
      * Returns the singleton instance of the {@code Engine} class.
@@ -50,76 +128,606 @@ public class Engine extends Thread {
     }
 
     /**
-     * Replaces a region of the main image with a resized sub-image.
+     * Sets the number of worker threads used to render the mosaic grid.
+     * A value of {@code 1} renders every tile sequentially on the engine thread.
+     *
+     * @param threadCount the number of worker threads, at least 1.
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Makes renders match their tiles on library shards running in other processes instead
+     * of against {@link #subImagesLibrary}. Each render sends all of its kernels to every
+     * shard as one batch. Library images are still read from their paths when composited,
+     * so the shards must run on this machine or share its file system.
+     *
+     * @param shards the shards to match on, or {@code null} to match locally again.
+     */
+    public void setShards(ShardCoordinator shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Replaces a region of the main image with a library image resized to fit it.
+     * The resized image is taken from the tile cache when available.
      *
      * @param mainImage         the destination image.
-     * @param replacementImage  the sub-image to insert.
+     * @param replacementPath   the path of the library image to insert.
      * @param replacementRegion the region in the main image to replace.
+     * @throws IOException if the library image cannot be read.
      */
-    private void replaceImageRegion(Mat mainImage, Mat replacementImage, Rect replacementRegion) {
-        // Resize the replacement image to exactly fit the region to be replaced
-        Mat resizedReplacement = new Mat();
+    private void replaceImageRegion(Mat mainImage, String replacementPath, Rect replacementRegion) throws IOException {
+        // Get the replacement image resized to exactly fit the region to be replaced
         Size targetSize = new Size(replacementRegion.width, replacementRegion.height);
-        Imgproc.resize(replacementImage, resizedReplacement, targetSize);
-
-        // Extract the region of interest (ROI) from the main image
-        Mat roi = mainImage.submat(replacementRegion);
-
-        // Overwrite the ROI with the resized replacement
-        resizedReplacement.copyTo(roi);
+        try (TileCache.Tile resizedReplacement = tileCache.getTile(replacementPath, targetSize)) {
+            // Extract the region of interest (ROI) from the main image; the header is freed right
+            // here, so it is not registered with NativeMemory
+            Mat roi = mainImage.submat(replacementRegion);
+            try {
+                // Overwrite the ROI with the resized replacement
+                resizedReplacement.getImage().copyTo(roi);
+            } finally {
+                roi.release();
+            }
+        }
     }
 
     /**
-     * Generates the photomosaic by dividing the input image and replacing each segment
-     * with the best-matching sub-image from the library.
+     * Queues the photomosaic of the image selected in the GUI, using the output resolution
+     * currently set in the GUI. A preview is shown in the image view while the mosaic
+     * renders, then replaced by the mosaic itself. The result is saved next to the selected
+     * image and the status label is updated once the job finishes.
      *
-     * @throws IOException if the selected image cannot be read.
+     * @return the pending job, which may be cancelled. Its mosaic is released once shown.
      */
-    public void generateMosaic() throws IOException {
-        // Load the selected image from disk
-        Mat image = Imgcodecs.imread(selectedImage.toString());
-
-        // Resize input image to match the desired output resolution
+    public CompletableFuture<Mat> generateMosaic() {
         Size targetSize = new Size(
                 MosaicifyController.getInstance().outputResolutionWidthSpinner.getValue(),
                 MosaicifyController.getInstance().outputResolutionHeightSpinner.getValue());
-        Imgproc.resize(image, image, targetSize);
 
-        // Calculate the size of each tile/subdivision in the mosaic grid
-        Size subDivisionSize = new Size(
-                (int) (image.width() / subDivisionCount.width),
-                (int) (image.height() / subDivisionCount.height));
+        RenderJob job = new RenderJob(selectedImage.toPath(), RenderJob.defaultOutputPath(selectedImage.toPath()),
+                targetSize, subDivisionCount, threadCount);
 
-        // Prepare an empty matrix for the final mosaic image
-        result = new Mat(new Size(
-                subDivisionSize.width * subDivisionCount.width,
-                subDivisionSize.height * subDivisionCount.height),
-                image.type());
+        long generation = startPreview(job);
+        CompletableFuture<Mat> pending = submitRender(job, MosaicifyController.getInstance(), null);
+        pending.whenComplete((mosaic, error) -> {
+            if (mosaic != null) {
+                Mat scaled = scaleToPreview(mosaic);
+                display(generation, scaled, true);
+                NativeMemory.release(scaled);
+                NativeMemory.release(mosaic);
+            }
+            onFinish(job, error);
+        });
+        return pending;
+    }
 
-        // Iterate over the image grid to replace each block with a matching sub-image
-        for (int i = 0; i < subDivisionCount.height; i++) {
-            for (int j = 0; j < subDivisionCount.width; j++) {
-                // Define the region of interest (ROI) for the current tile
-                Rect roi = new Rect(
-                        (int) (j * subDivisionSize.width),
-                        (int) (i * subDivisionSize.height),
-                        (int) subDivisionSize.width,
-                        (int) subDivisionSize.height);
+    /**
+     * Cancels the preview shown in the GUI, e.g. because the parameters it was rendered
+     * with have changed. Renders that are already running still save their mosaic, but
+     * no longer replace the image shown in the GUI.
+     */
+    public void cancelPreview() {
+        synchronized (displayLock) {
+            displayGeneration++;
+            if (preview != null) {
+                preview.cancel(true);
+                preview = null;
+            }
+        }
+    }
+
+    /**
+     * Cancels the current preview and starts the preview of a render started from the GUI.
+     *
+     * @return the generation of the images this render may show in the GUI.
+     */
+    private long startPreview(RenderJob job) {
+        synchronized (displayLock) {
+            cancelPreview();
+            long generation = displayGeneration;
+            preview = submitPreview(job, image -> display(generation, image, false));
+            return generation;
+        }
+    }
 
-                // Extract the tile from the base image
-                Mat kernel = image.submat(roi);
+    /**
+     * Shows an image in the GUI unless a newer render was started or the parameters have
+     * changed since the image's render started.
+     *
+     * @param generation the generation returned by {@link #startPreview(RenderJob)}.
+     * @param image      the preview or mosaic to show.
+     * @param last       whether this is the finished mosaic, after which the preview must stop.
+     */
+    private void display(long generation, Mat image, boolean last) {
+        // Convert outside the lock, so the GUI thread never waits for an encode
+        Image converted = MosaicifyController.toImage(image);
 
-                // Find the best matching sub-image from the library
-                Mat match = subImagesLibrary.findBestMatch(kernel);
+        synchronized (displayLock) {
+            if (generation != displayGeneration) {
+                return;
+            }
+            if (last) {
+                cancelPreview();
+            }
+            MosaicifyController.getInstance().showImage(converted);
+        }
+    }
 
-                // Replace the corresponding tile in the result image
-                replaceImageRegion(result, match, roi);
+    /**
+     * Queues the preview of a render.
+     *
+     * @param job       the parameters of the render.
+     * @param onPreview receives every update of the preview, see {@link #renderPreview(RenderJob, Consumer)}.
+     * @return the pending preview; cancelling it stops the refinement.
+     */
+    public CompletableFuture<Void> submitPreview(RenderJob job, Consumer<Mat> onPreview) {
+        return previewScheduler.submit(() -> {
+            renderPreview(job, onPreview);
+            return null;
+        }, null);
+    }
 
-                // Update the progress bar in the UI
-                double progress = ((i * subDivisionCount.width) + j + 1)
-                        / (subDivisionCount.width * subDivisionCount.height);
-                MosaicifyController.getInstance().updateProgressBar(progress);
+    /**
+     * Renders a progressively refined, low-resolution version of a mosaic. The first update
+     * is a mosaic with {@value #PREVIEW_COARSENESS} times fewer tiles across and down, whose
+     * tiles are drawn from the library features without reading a single library file. It
+     * is then refined into the full grid of real tiles {@value #PREVIEW_BAND_ROWS} rows at a
+     * time, with an update after every band. The longest
+     * side of every update is at most {@value #PREVIEW_SIZE} pixels, unless the grid has more
+     * tiles than that.
+     * <p>
+     * The matches of the full grid end up in the {@link RenderCache}, so a full-resolution
+     * render of the same job that starts after the preview reuses them.
+     *
+     * @param job       the parameters of the render.
+     * @param onPreview receives every update on the calling thread; the image is only valid
+     *                  during the call.
+     * @throws IOException           if the source image cannot be read or a tile cannot be matched.
+     * @throws CancellationException if the calling thread is interrupted during the preview.
+     */
+    public void renderPreview(RenderJob job, Consumer<Mat> onPreview) throws IOException {
+        ShardCoordinator shards = this.shards;
+        LibrarySnapshot library = shards != null ? shards.emptySnapshot() : subImagesLibrary.snapshot();
+        PipelineMetrics metrics = startMetrics("Preview of ", job, library, shards);
+        RenderCache.SourceState source = null;
+
+        // The snapshot and the cached source stay in use until the preview is done
+        try {
+            try (PipelineMetrics.Timer decode = metrics.phase(PipelineMetrics.Phase.DECODE)) {
+                source = renderCache.getSource(job.source());
             }
+
+            Size outputSize = job.outputSize() != null ? job.outputSize() : source.getImage().size();
+            double scale = Math.min(1, PREVIEW_SIZE / Math.max(outputSize.width, outputSize.height));
+            Size subDivisionCount = job.subDivisionCount();
+            Size coarseCount = new Size(
+                    Math.max(1, (int) (subDivisionCount.width / PREVIEW_COARSENESS)),
+                    Math.max(1, (int) (subDivisionCount.height / PREVIEW_COARSENESS)));
+            Size coarseSize = previewTileSize(outputSize, scale, coarseCount);
+            Size subDivisionSize = previewTileSize(outputSize, scale, subDivisionCount);
+            int rows = (int) subDivisionCount.height;
+
+            try (ProgressTracker progress = new ProgressTracker(ProgressListener.NONE, "Previewed", "tiles",
+                    (long) (coarseCount.area() + subDivisionCount.area()), 0);
+                 MatScope scope = new MatScope()) {
+                // Show a coarse mosaic first
+                Mat coarse = scope.track(new Mat(new Size(coarseSize.width * coarseCount.width,
+                        coarseSize.height * coarseCount.height), source.getImage().type()));
+                Render coarseRender = new Render(source, coarseCount, coarseSize, library, job.matchBackend(),
+                        progress, metrics);
+                coarseRender.useThumbnails();
+                coarseRender.prematch(shards);
+                coarseRender.renderRows(coarse, 0, 0, (int) coarseCount.height);
+                coarseRender.finish();
+                onPreview.accept(coarse);
+
+                // Then replace it with the full grid, band by band
+                Mat refined = scope.newMat();
+                Imgproc.resize(coarse, refined, new Size(subDivisionSize.width * subDivisionCount.width,
+                        subDivisionSize.height * subDivisionCount.height), 0, 0, Imgproc.INTER_NEAREST);
+                NativeMemory.release(coarse);
+
+                Render render = new Render(source, subDivisionCount, subDivisionSize, library, job.matchBackend(),
+                        progress, metrics);
+                render.prematch(shards);
+                for (int firstRow = 0; firstRow < rows; firstRow += PREVIEW_BAND_ROWS) {
+                    render.renderRows(refined, 0, firstRow, Math.min(firstRow + PREVIEW_BAND_ROWS, rows));
+                    onPreview.accept(refined);
+                }
+                render.finish();
+            }
+
+            metrics.addItems((long) (coarseCount.area() + subDivisionCount.area()));
+            metrics.finish();
+        } finally {
+            if (source != null) {
+                source.release();
+            }
+            library.release();
+        }
+    }
+
+    /**
+     * @return the size of a preview tile, at least one pixel, for an output scaled by {@code scale}.
+     */
+    private static Size previewTileSize(Size outputSize, double scale, Size subDivisionCount) {
+        return new Size(
+                Math.max(1, (int) (outputSize.width * scale / subDivisionCount.width)),
+                Math.max(1, (int) (outputSize.height * scale / subDivisionCount.height)));
+    }
+
+    /**
+     * @return a copy of the mosaic whose longest side is at most {@value #PREVIEW_SIZE} pixels,
+     *         which the caller must release.
+     */
+    private static Mat scaleToPreview(Mat mosaic) {
+        double scale = Math.min(1, (double) PREVIEW_SIZE / Math.max(mosaic.width(), mosaic.height()));
+        Mat scaled = NativeMemory.newMat();
+        Imgproc.resize(mosaic, scaled, new Size(Math.max(1, (int) (mosaic.width() * scale)),
+                Math.max(1, (int) (mosaic.height() * scale))), 0, 0, Imgproc.INTER_AREA);
+        return scaled;
+    }
+
+    /**
+     * Queues a render that saves its mosaic to {@code job.output()}.
+     *
+     * @param job      the parameters of the render.
+     * @param listener receives the progress of the render.
+     * @param timeout  the longest the render may run, or {@code null} for no limit.
+     * @return the pending job, completed with the generated mosaic.
+     */
+    public CompletableFuture<Mat> submitRender(RenderJob job, ProgressListener listener, Duration timeout) {
+        return scheduler.submit(() -> renderToFile(job, listener), timeout);
+    }
+
+    /**
+     * Queues a search of the library directory. Renders queued after it use the
+     * refreshed library.
+     *
+     * @param listener receives the progress of the search.
+     * @param timeout  the longest the search may run, or {@code null} for no limit.
+     * @return the pending job, completed with the number of images in the library.
+     */
+    public CompletableFuture<Integer> submitLibrarySearch(ProgressListener listener, Duration timeout) {
+        return scheduler.submit(() -> {
+            subImagesLibrary.searchLibrary(listener);
+            return subImagesLibrary.size();
+        }, timeout);
+    }
+
+    /**
+     * Generates a photomosaic by dividing the source image of a job and replacing each
+     * segment with the best-matching sub-image from the library. Several renders may run
+     * at the same time.
+     *
+     * @param job      the parameters of the render.
+     * @param listener receives the progress of the render.
+     * @return the generated mosaic.
+     * @throws IOException           if the source image cannot be read or a tile cannot be matched.
+     * @throws CancellationException if the calling thread is interrupted during the render.
+     */
+    public Mat render(RenderJob job, ProgressListener listener) throws IOException {
+        return render(job, listener, false);
+    }
+
+    /**
+     * Generates a photomosaic like {@link #render(RenderJob, ProgressListener)} and saves it
+     * to {@code job.output()}.
+     *
+     * @param job      the parameters of the render.
+     * @param listener receives the progress and the metrics of the render.
+     * @return the generated mosaic.
+     * @throws IOException           if the source image cannot be read, a tile cannot be
+     *                               matched or the mosaic cannot be written.
+     * @throws CancellationException if the calling thread is interrupted during the render.
+     */
+    public Mat renderToFile(RenderJob job, ProgressListener listener) throws IOException {
+        return render(job, listener, true);
+    }
+
+    /**
+     * Generates a photomosaic, optionally saving it, and reports its metrics to the listener.
+     */
+    private Mat render(RenderJob job, ProgressListener listener, boolean save) throws IOException {
+        ShardCoordinator shards = this.shards;
+        LibrarySnapshot library = shards != null ? shards.emptySnapshot() : subImagesLibrary.snapshot();
+        PipelineMetrics metrics = startMetrics("Render of ", job, library, shards);
+        RenderCache.SourceState source = null;
+
+        // The snapshot and the cached source stay in use until the render is done
+        try {
+            try (PipelineMetrics.Timer decode = metrics.phase(PipelineMetrics.Phase.DECODE)) {
+                source = renderCache.getSource(job.source());
+            }
+
+            // Calculate the size of each tile/subdivision in the output grid
+            Size subDivisionCount = job.subDivisionCount();
+            Size outputSize = job.outputSize() != null ? job.outputSize() : source.getImage().size();
+            Size subDivisionSize = new Size(
+                    (int) (outputSize.width / subDivisionCount.width),
+                    (int) (outputSize.height / subDivisionCount.height));
+
+            // The mosaic is freed here if the render fails, and handed to the caller otherwise
+            try (MatScope scope = new MatScope()) {
+                // Prepare an empty matrix for the final mosaic image
+                Mat result = scope.track(new Mat(new Size(
+                        subDivisionSize.width * subDivisionCount.width,
+                        subDivisionSize.height * subDivisionCount.height),
+                        source.getImage().type()));
+
+                int rows = (int) subDivisionCount.height;
+
+                try (ProgressTracker progress = new ProgressTracker(listener, "Rendered", "tiles",
+                        (long) (subDivisionCount.width * subDivisionCount.height), 0)) {
+                    Render render = new Render(source, subDivisionCount, subDivisionSize, library, job.matchBackend(),
+                            progress, metrics);
+                    render.prematch(shards);
+
+                    if (job.threadCount() == 1) {
+                        render.renderRows(result, 0, 0, rows);
+                    } else {
+                        ForkJoinPool pool = new ForkJoinPool(job.threadCount());
+                        try {
+                            render.renderRowsInParallel(pool, result, 0, rows);
+                        } finally {
+                            pool.shutdown();
+                        }
+                    }
+                    render.finish();
+                }
+
+                if (save) {
+                    try (PipelineMetrics.Timer write = metrics.phase(PipelineMetrics.Phase.WRITE)) {
+                        if (!Imgcodecs.imwrite(job.output().toString(), result)) {
+                            throw new IOException("Failed to write " + job.output());
+                        }
+                    }
+                }
+
+                metrics.addItems((long) (subDivisionCount.width * subDivisionCount.height));
+                listener.onMetrics(metrics.finish());
+                return scope.keep(result);
+            }
+        } finally {
+            if (source != null) {
+                source.release();
+            }
+            library.release();
+        }
+    }
+
+    /**
+     * The outcome of {@link #renderSequence(List, double, ProgressListener)}.
+     *
+     * @param frames       the number of frames rendered.
+     * @param tiles        the number of tiles across all frames.
+     * @param reusedTiles  the number of tiles carried over from the previous frame.
+     * @param elapsedNanos the time the whole sequence took.
+     */
+    public record SequenceResult(int frames, long tiles, long reusedTiles, long elapsedNanos) {
+
+        /**
+         * @return the fraction of tiles carried over from the previous frame.
+         */
+        public double reuseRatio() {
+            return tiles == 0 ? 0 : (double) reusedTiles / tiles;
+        }
+
+        /**
+         * @return the number of frames rendered per second.
+         */
+        public double framesPerSecond() {
+            return elapsedNanos == 0 ? 0 : frames / (elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * Renders an ordered sequence of frames, e.g. a video dumped to images, into one mosaic
+     * per frame, written to each frame's output. Consecutive frames are mostly identical, so
+     * a tile whose kernel feature differs from the kernel it was last matched for by at most
+     * {@code reuseThreshold} keeps its match and its pixels from the previous frame's mosaic;
+     * only the other tiles are matched and composited again. Comparing with the kernel of the
+     * last match rather than of the previous frame keeps slow changes from drifting unnoticed.
+     * <p>
+     * A frame whose grid, tile size, match backend or library snapshot differs from the
+     * previous frame's is rendered from scratch. Frames are decoded without the
+     * {@link RenderCache} and always matched against the local library, since the matches
+     * of shards cannot be carried over.
+     *
+     * @param frames         the jobs of every frame, in order.
+     * @param reuseThreshold the largest root-mean-square change of a kernel's feature values,
+     *                       from 0 to 255, for which its match is kept; 0 only keeps the
+     *                       matches of identical kernels.
+     * @param listener       receives the progress over frames and the metrics of every frame.
+     * @return the number of frames and tiles rendered and reused.
+     * @throws IOException           if a frame cannot be read, a tile cannot be matched or a
+     *                               mosaic cannot be written.
+     * @throws CancellationException if the calling thread is interrupted during the sequence.
+     */
+    public SequenceResult renderSequence(List<RenderJob> frames, double reuseThreshold, ProgressListener listener)
+            throws IOException {
+        long start = System.nanoTime();
+        long tiles = 0;
+        long reusedTiles = 0;
+        Render previous = null;
+        Mat result = null;
+
+        try (ProgressTracker frameProgress = new ProgressTracker(listener, "Rendered", "frames", frames.size(), 0)) {
+            for (RenderJob job : frames) {
+                LibrarySnapshot library = subImagesLibrary.snapshot();
+                PipelineMetrics metrics = startMetrics("Frame ", job, library, null);
+                RenderCache.SourceState source = null;
+
+                // Only the features of a frame outlive it, so its pixels and snapshot are freed right away
+                try {
+                    try (PipelineMetrics.Timer decode = metrics.phase(PipelineMetrics.Phase.DECODE)) {
+                        source = RenderCache.decode(job.source());
+                    }
+
+                    Size subDivisionCount = job.subDivisionCount();
+                    Size outputSize = job.outputSize() != null ? job.outputSize() : source.getImage().size();
+                    Size subDivisionSize = new Size(
+                            (int) (outputSize.width / subDivisionCount.width),
+                            (int) (outputSize.height / subDivisionCount.height));
+                    int rows = (int) subDivisionCount.height;
+
+                    try (ProgressTracker progress = new ProgressTracker(ProgressListener.NONE, "Rendered", "tiles",
+                            (long) subDivisionCount.area(), 0)) {
+                        Render render = new Render(source, subDivisionCount, subDivisionSize, library,
+                                job.matchBackend(), progress, metrics);
+
+                        // Carry matches and pixels over from the previous frame when it was tiled alike
+                        int reused = previous != null ? render.continueFrom(previous, reuseThreshold) : -1;
+                        if (reused < 0) {
+                            NativeMemory.release(result);
+                            result = NativeMemory.track(new Mat(new Size(
+                                    subDivisionSize.width * subDivisionCount.width,
+                                    subDivisionSize.height * subDivisionCount.height),
+                                    source.getImage().type()));
+                        } else {
+                            reusedTiles += reused;
+                        }
+                        render.prematch(null);
+
+                        if (job.threadCount() == 1) {
+                            render.renderRows(result, 0, 0, rows);
+                        } else {
+                            ForkJoinPool pool = new ForkJoinPool(job.threadCount());
+                            try {
+                                render.renderRowsInParallel(pool, result, 0, rows);
+                            } finally {
+                                pool.shutdown();
+                            }
+                        }
+                        previous = render;
+                    }
+
+                    try (PipelineMetrics.Timer write = metrics.phase(PipelineMetrics.Phase.WRITE)) {
+                        if (!Imgcodecs.imwrite(job.output().toString(), result)) {
+                            throw new IOException("Failed to write " + job.output());
+                        }
+                    }
+
+                    tiles += (long) subDivisionCount.area();
+                    metrics.addItems((long) subDivisionCount.area());
+                    listener.onMetrics(metrics.finish());
+                    frameProgress.advance();
+                } finally {
+                    if (source != null) {
+                        source.release();
+                    }
+                    library.release();
+                }
+            }
+        } finally {
+            NativeMemory.release(result);
+        }
+
+        return new SequenceResult(frames.size(), tiles, reusedTiles, System.nanoTime() - start);
+    }
+
+    /**
+     * Starts collecting the metrics of a render, tracking the comparisons made against the
+     * render's library snapshot or shards, the recall of the job's match index and the tile cache.
+     *
+     * @param kind   the kind of render, prefixed to the source in the job description.
+     * @param shards the shards the render matches on, or {@code null}.
+     */
+    private PipelineMetrics startMetrics(String kind, RenderJob job, LibrarySnapshot library,
+                                         ShardCoordinator shards) {
+        PipelineMetrics metrics = new PipelineMetrics(kind + job.source(), "tiles");
+        if (shards != null) {
+            metrics.trackComparisons(shards::getComparisonCount);
+            metrics.setMatchRecall(shards.getRecall());
+        } else {
+            metrics.trackComparisons(library::getComparisonCount);
+            metrics.setMatchRecall(library.getRecall(job.matchBackend()));
+            metrics.trackMatchMemo(library);
+        }
+        metrics.trackTileCache(tileCache);
+        return metrics;
+    }
+
+    /**
+     * Generates a photomosaic band by band and streams it into an uncompressed TIFF file
+     * at {@code job.output()}, so that only one band of the output is ever held in memory.
+     * This allows print-size mosaics far larger than the memory available for a single
+     * output image. Tiles are matched exactly as in {@link #render(RenderJob, ProgressListener)},
+     * and share its {@link RenderCache} entries.
+     *
+     * @param job      the parameters of the render.
+     * @param bandRows the number of grid rows rendered and written per band.
+     * @param listener receives the progress and the metrics of the render.
+     * @throws IOException           if the source cannot be read, a tile cannot be matched or the
+     *                               output cannot be written.
+     * @throws CancellationException if the calling thread is interrupted during the render.
+     */
+    public void renderStriped(RenderJob job, int bandRows, ProgressListener listener) throws IOException {
+        ShardCoordinator shards = this.shards;
+        LibrarySnapshot library = shards != null ? shards.emptySnapshot() : subImagesLibrary.snapshot();
+        PipelineMetrics metrics = startMetrics("Render of ", job, library, shards);
+        RenderCache.SourceState source = null;
+
+        // The snapshot and the cached source stay in use until the render is done
+        try {
+            try (PipelineMetrics.Timer decode = metrics.phase(PipelineMetrics.Phase.DECODE)) {
+                source = renderCache.getSource(job.source());
+            }
+
+            Size outputSize = job.outputSize() != null ? job.outputSize() : source.getImage().size();
+            Size subDivisionCount = job.subDivisionCount();
+            int columns = (int) subDivisionCount.width;
+            int rows = (int) subDivisionCount.height;
+            int tileWidth = (int) (outputSize.width / columns);
+            int tileHeight = (int) (outputSize.height / rows);
+            Size subDivisionSize = new Size(tileWidth, tileHeight);
+
+            ForkJoinPool pool = job.threadCount() > 1 ? new ForkJoinPool(job.threadCount()) : null;
+
+            try (ProgressTracker progress = new ProgressTracker(listener, "Rendered", "tiles", (long) columns * rows, 0);
+                 StripedTiffWriter writer = new StripedTiffWriter(job.output(),
+                    tileWidth * columns, tileHeight * rows, tileHeight * bandRows)) {
+                Render render = new Render(source, subDivisionCount, subDivisionSize, library, job.matchBackend(),
+                        progress, metrics);
+                render.prematch(shards);
+
+                for (int firstRow = 0; firstRow < rows; firstRow += bandRows) {
+                    int endRow = Math.min(firstRow + bandRows, rows);
+                    // Stream the finished band and free it before rendering the next one
+                    try (MatScope scope = new MatScope()) {
+                        Mat bandResult = scope.newMat(tileHeight * (endRow - firstRow), tileWidth * columns,
+                                source.getImage().type());
+                        if (pool == null) {
+                            render.renderRows(bandResult, firstRow, firstRow, endRow);
+                        } else {
+                            render.renderRowsInParallel(pool, bandResult, firstRow, endRow);
+                        }
+
+                        try (PipelineMetrics.Timer write = metrics.phase(PipelineMetrics.Phase.WRITE)) {
+                            writer.writeStrip(bandResult);
+                        }
+                    }
+                }
+                render.finish();
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+
+            metrics.addItems((long) columns * rows);
+            listener.onMetrics(metrics.finish());
+        } finally {
+            if (source != null) {
+                source.release();
+            }
+            library.release();
         }
     }
 
@@ -133,38 +741,363 @@ public class Engine extends Thread {
     }
 
     /**
-     * Runs the photomosaic generation in a separate thread.
-     * On completion, saves the output and updates the UI.
+     * Updates the UI status label once a render started from the GUI has finished.
+     *
+     * @param job   the finished render.
+     * @param error the reason the render failed, or {@code null} if it succeeded.
      */
-    @Override
-    public void run() {
-        try {
-            generateMosaic();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void onFinish(RenderJob job, Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
         }
 
-        onFinish();
+        // Inform the user via the UI
+        if (error == null) {
+            MosaicifyController.getInstance().updateProgresStatusLabel(
+                    "Photomosaic generated successfully. Result saved to " + job.output());
+        } else if (error instanceof CancellationException) {
+            MosaicifyController.getInstance().updateProgresStatusLabel("Photomosaic generation cancelled");
+        } else {
+            error.printStackTrace();
+            MosaicifyController.getInstance().updateProgresStatusLabel(
+                    "Failed to generate photomosaic: " + error.getMessage());
+        }
     }
 
     /**
-     * Saves the generated mosaic to disk, updates the UI status label.
+     * Renders the tiles of a source image into result images holding the whole mosaic or
+     * one band of it. Kernels are taken from the grid cells of the source at its own
+     * resolution, and their features and matches are reused from the render cache when
+     * an earlier render already computed them.
      */
-    private void onFinish() {
-        // Parse file name and extension to build output file name
-        String fileName = selectedImage.toString();
-        int dotIndex = fileName.lastIndexOf('.');
-        String baseName = (dotIndex != -1) ? fileName.substring(0, dotIndex) : fileName;
-        String extension = (dotIndex != -1) ? fileName.substring(dotIndex) : "";
+    private class Render {
+        private final RenderCache.SourceState source;
+        private final RenderCache.Grid grid;
+        private final Size subDivisionSize;
+        private final MatchBackend matchBackend;
+        private final ProgressTracker progress;
+        private final PipelineMetrics metrics;
 
-        // Generate new file name for output image
-        String newFileName = baseName + "_Photomosaic" + extension;
+        /** The snapshot tiles are matched against; replaced by the matched images when matching on shards. */
+        private LibrarySnapshot library;
 
-        // Save the resulting mosaic image to disk
-        Imgcodecs.imwrite(newFileName, result);
+        /** Whether tiles are drawn from the matches' features instead of their files. */
+        private boolean thumbnails = false;
 
-        // Inform the user via the UI
-        MosaicifyController.getInstance().updateProgresStatusLabel(
-                "Photomosaic generated successfully. Result saved to " + newFileName);
+        /** Whether every tile was matched on library shards, see {@link #matchOnShards}. */
+        private boolean matchedOnShards = false;
+
+        /**
+         * The tiles carried over from the previous frame of a sequence, which are already in
+         * the result and are not composited again, or {@code null}; see {@link #continueFrom}.
+         */
+        private boolean[] unchanged = null;
+
+        /** The feature of every tile; taken from the cache, or extracted when the render is prepared. */
+        private final byte[][] features;
+
+        /** The match of every tile, or -1; taken from the cache, or filled in as tiles are matched. */
+        private final int[] matches;
+
+        /** Whether {@link #matches} came from the cache, in which case it is only read. */
+        private final boolean matchesCached;
+
+        /** Set when the thread waiting for a parallel render is interrupted, to stop the workers. */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Prepares a render, looking up the features and matches of its grid in the render cache.
+         *
+         * @param source           the cached state of the source image.
+         * @param subDivisionCount the number of tiles across and down.
+         * @param subDivisionSize  the size of a tile in the output.
+         * @throws IOException if the source has fewer pixels than the grid has tiles across or down.
+         */
+        Render(RenderCache.SourceState source, Size subDivisionCount, Size subDivisionSize, LibrarySnapshot library,
+               MatchBackend matchBackend, ProgressTracker progress, PipelineMetrics metrics) throws IOException {
+            this.source = source;
+            this.subDivisionSize = subDivisionSize;
+            this.library = library;
+            this.matchBackend = matchBackend;
+            this.progress = progress;
+            this.metrics = metrics;
+
+            FeatureStore store = library.getFeatures();
+            grid = new RenderCache.Grid((int) subDivisionCount.width, (int) subDivisionCount.height,
+                    store.getFeatureWidth(), store.getFeatureHeight());
+
+            int[] cachedMatches = source.getMatches(grid, library, matchBackend);
+            byte[][] cachedFeatures = source.getFeatures(grid);
+            matchesCached = cachedMatches != null;
+            if (matchesCached) {
+                matches = cachedMatches;
+            } else {
+                matches = new int[grid.size()];
+                Arrays.fill(matches, -1);
+            }
+            if (cachedFeatures != null) {
+                features = cachedFeatures;
+            } else {
+                // Kernels are grid cells of the source, independent of the output resolution
+                long matchStart = System.nanoTime();
+                features = source.extractFeatures(grid);
+                metrics.addTime(PipelineMetrics.Phase.MATCH, matchStart);
+            }
+        }
+
+        /**
+         * Draws tiles from the features of their matches, see {@link LibrarySnapshot#getThumbnail},
+         * which needs no file reads but only suits previews.
+         */
+        void useThumbnails() {
+            thumbnails = true;
+        }
+
+        /**
+         * Matches tiles ahead of rendering when that is faster than matching them one by one
+         * as they are composited: on library shards if there are any, or in a single batch if
+         * the backend {@linkplain MatchIndex#prefersBatches() prefers batches}.
+         *
+         * @param shards the shards to match on, or {@code null} to match locally.
+         * @throws IOException           if no match can be found for a tile.
+         * @throws CancellationException if the calling thread is interrupted while matching.
+         */
+        void prematch(ShardCoordinator shards) throws IOException {
+            if (shards != null) {
+                matchOnShards(shards);
+            } else if (!matchesCached && library.getMatchIndex(matchBackend).prefersBatches()) {
+                matchInBatch();
+            }
+        }
+
+        /**
+         * Matches every tile that has no match yet with one batch query of the library.
+         */
+        private void matchInBatch() throws IOException {
+            long matchStart = System.nanoTime();
+            int[] tiles = new int[grid.size()];
+            int count = 0;
+            for (int tile = 0; tile < grid.size(); tile++) {
+                if (matches[tile] == -1) {
+                    tiles[count++] = tile;
+                }
+            }
+
+            if (count > 0) {
+                byte[][] queries = new byte[count][];
+                for (int k = 0; k < count; k++) {
+                    queries[k] = features[tiles[k]];
+                }
+                int[] found = library.findBestMatchIds(queries, matchBackend);
+                for (int k = 0; k < count; k++) {
+                    matches[tiles[k]] = found[k];
+                }
+            }
+            metrics.addTime(PipelineMetrics.Phase.MATCH, matchStart);
+        }
+
+        /**
+         * Matches every tile of the grid on library shards in one batch, so that rendering
+         * only composites. The render's library becomes the snapshot of the matched images.
+         *
+         * @param shards the shards to match on.
+         * @throws IOException           if a shard fails or no shard has any image.
+         * @throws CancellationException if the calling thread is interrupted while waiting.
+         */
+        void matchOnShards(ShardCoordinator shards) throws IOException {
+            long matchStart = System.nanoTime();
+            ShardCoordinator.Matches found = shards.match(features, matchBackend);
+            library = found.library();
+            System.arraycopy(found.ids(), 0, matches, 0, matches.length);
+            matchedOnShards = true;
+            metrics.addTime(PipelineMetrics.Phase.MATCH, matchStart);
+        }
+
+        /**
+         * Takes over the match of every tile whose kernel barely changed since the previous
+         * frame of a sequence was rendered, see {@link #renderSequence}. Such a tile keeps the
+         * kernel feature it was matched for, so later frames keep comparing against it. The
+         * result image must still hold the previous frame's mosaic.
+         *
+         * @param previous  the render of the previous frame.
+         * @param threshold the largest root-mean-square change of a feature value for which
+         *                  a match is kept.
+         * @return the number of tiles carried over, or {@code -1} if the previous frame was
+         *         tiled or matched differently and this one must be rendered from scratch.
+         */
+        int continueFrom(Render previous, double threshold) {
+            if (!previous.grid.equals(grid) || !previous.subDivisionSize.equals(subDivisionSize)
+                    || previous.library != library || previous.matchBackend != matchBackend
+                    || previous.thumbnails != thumbnails) {
+                return -1;
+            }
+
+            long matchStart = System.nanoTime();
+            int featureLength = grid.featureWidth() * grid.featureHeight() * 3;
+            long bound = (long) (threshold * threshold * featureLength);
+            unchanged = new boolean[grid.size()];
+            int carried = 0;
+
+            for (int tile = 0; tile < grid.size(); tile++) {
+                byte[] matched = previous.features[tile];
+                if (previous.matches[tile] != -1
+                        && DistanceKernel.squaredDistance(features[tile], 0, matched, 0, featureLength, bound) <= bound) {
+                    features[tile] = matched;
+                    matches[tile] = previous.matches[tile];
+                    unchanged[tile] = true;
+                    carried++;
+                }
+            }
+
+            metrics.addTime(PipelineMetrics.Phase.MATCH, matchStart);
+            metrics.addReusedItems(carried);
+            return carried;
+        }
+
+        /**
+         * Renders the grid rows {@code [firstRow, endRow)} on a fork-join pool.
+         * Every tile writes to its own ROI of the result, so workers never overlap.
+         *
+         * @param pool     the pool to run on.
+         * @param result   the image receiving the rows, starting with {@code firstRow}.
+         * @param firstRow the first grid row to render.
+         * @param endRow   one past the last grid row to render.
+         * @throws IOException           if no match can be found for a tile.
+         * @throws CancellationException if the calling thread is interrupted while waiting.
+         */
+        void renderRowsInParallel(ForkJoinPool pool, Mat result, int firstRow, int endRow) throws IOException {
+            ForkJoinTask<Void> task = pool.submit(new RenderRowsTask(this, result, firstRow, firstRow, endRow));
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                // Workers are not interrupted with the caller, so they poll the flag instead
+                cancelled = true;
+                task.cancel(true);
+
+                // Let the workers finish their current tile, so the caller may free the result
+                pool.awaitQuiescence(CANCEL_GRACE_SECONDS, TimeUnit.SECONDS);
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Render cancelled");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException unchecked) {
+                    throw unchecked.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        /**
+         * Replaces every tile in the grid rows {@code [firstRow, endRow)} with its best-matching sub-image.
+         *
+         * @param result    the image receiving the rows.
+         * @param resultRow the grid row at the top of {@code result}.
+         * @param firstRow  the first grid row to render.
+         * @param endRow    one past the last grid row to render.
+         * @throws IOException           if no match can be found for a tile.
+         * @throws CancellationException if the render was cancelled.
+         */
+        void renderRows(Mat result, int resultRow, int firstRow, int endRow) throws IOException {
+            // Iterate over the image grid to replace each block with a matching sub-image
+            for (int i = firstRow; i < endRow; i++) {
+                for (int j = 0; j < grid.columns(); j++) {
+                    if (cancelled || Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException("Render cancelled");
+                    }
+
+                    // The previous frame of a sequence already placed this tile
+                    int tile = i * grid.columns() + j;
+                    if (unchanged != null && unchanged[tile]) {
+                        progress.advance();
+                        continue;
+                    }
+
+                    // Find the best matching sub-image from the library, unless a cached render did
+                    int match = matches[tile];
+                    if (match == -1) {
+                        long matchStart = System.nanoTime();
+                        match = library.findBestMatchId(features[tile], matchBackend);
+                        matches[tile] = match;
+                        metrics.addTime(PipelineMetrics.Phase.MATCH, matchStart);
+                    }
+
+                    // Define the region of interest (ROI) for the current tile in the result
+                    Rect roi = new Rect(
+                            (int) (j * subDivisionSize.width),
+                            (int) ((i - resultRow) * subDivisionSize.height),
+                            (int) subDivisionSize.width,
+                            (int) subDivisionSize.height);
+
+                    // Replace the corresponding tile in the result image
+                    long compositeStart = System.nanoTime();
+                    if (thumbnails) {
+                        Mat target = result.submat(roi);
+                        try {
+                            library.drawThumbnail(match, target);
+                        } finally {
+                            target.release();
+                        }
+                    } else {
+                        replaceImageRegion(result, library.getFeatures().getPath(match), roi);
+                    }
+                    metrics.addTime(PipelineMetrics.Phase.COMPOSITE, compositeStart);
+
+                    progress.advance();
+                }
+            }
+        }
+
+        /**
+         * Stores the features and matches of a completed render in the render cache, or
+         * counts the reused matches if they came from it. Matches found on shards are not
+         * cached, since they belong to no library snapshot of this process.
+         */
+        void finish() {
+            if (matchesCached) {
+                metrics.addReusedItems(grid.size());
+            } else if (matchedOnShards) {
+                source.putFeatures(grid, features);
+            } else {
+                source.putMatches(grid, features, library, matchBackend, matches);
+            }
+        }
+    }
+
+    /**
+     * Fork-join task that renders a band of grid rows, splitting it in half until
+     * a single row remains.
+     */
+    private static class RenderRowsTask extends RecursiveAction {
+        private final Render render;
+        private final Mat result;
+        private final int resultRow;
+        private final int firstRow;
+        private final int endRow;
+
+        RenderRowsTask(Render render, Mat result, int resultRow, int firstRow, int endRow) {
+            this.render = render;
+            this.result = result;
+            this.resultRow = resultRow;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow > 1) {
+                int mid = (firstRow + endRow) >>> 1;
+                invokeAll(new RenderRowsTask(render, result, resultRow, firstRow, mid),
+                        new RenderRowsTask(render, result, resultRow, mid, endRow));
+                return;
+            }
+
+            try {
+                render.renderRows(result, resultRow, firstRow, endRow);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 }
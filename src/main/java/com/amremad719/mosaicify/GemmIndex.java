@@ -0,0 +1,157 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code GemmIndex} class finds nearest features exactly, like {@link BruteForceIndex},
+ * but answers a whole batch of queries with matrix multiplications in OpenCV's native code.
+ * With {@code ‖a−b‖² = ‖a‖² + ‖b‖² − 2a·b}, and {@code ‖a‖²} being the same for every
+ * candidate of a query, the nearest feature of {@code a} minimises {@code ‖b‖² − 2a·b}. The
+ * library is stored as the rows {@code [−2b, ‖b‖²]} and a batch of queries as the rows
+ * {@code [a, 1]}, so a single {@link Core#gemm} yields that quantity for every pair, and
+ * {@link Core#reduceArgMin} picks the lowest id of each row's minimum.
+ * <p>
+ * Queries are multiplied in chunks of at most {@value #CHUNK_ELEMENTS} distances, which
+ * bounds the memory of a batch. The sums are computed in {@code float} when every partial
+ * sum is an integer that {@code float} holds exactly, and in {@code double} for features
+ * too long for that, so results are always identical to brute force.
+ * <p>
+ * The library matrix lives in native memory and is freed when the index is
+ * {@linkplain #close() closed}, which its {@link LibrarySnapshot} does once it is retired.
+ */
+public class GemmIndex implements MatchIndex {
+
+    /** The largest number of distances computed by one multiplication. */
+    private static final int CHUNK_ELEMENTS = 1 << 22;
+
+    /** The largest integer up to which every integer is exactly representable as a {@code float}. */
+    private static final long FLOAT_EXACT_LIMIT = 1L << 24;
+
+    private final FeatureStore store;
+    private final int featureLength;
+    private final int depth;
+
+    /** The library as rows of {@code [−2b, ‖b‖²]}, one per feature. */
+    private final Mat library;
+
+    private final LongAdder comparisons = new LongAdder();
+
+    /**
+     * Creates an index over the given store, converting its features into a matrix.
+     *
+     * @param store the processed library features.
+     */
+    public GemmIndex(FeatureStore store) {
+        this.store = store;
+        this.featureLength = store.getFeatureLength();
+
+        // |b|² and |2a·b| are each at most length·255², so every partial sum stays below 3 times that
+        long largestSum = 3L * featureLength * 255 * 255;
+        this.depth = largestSum < FLOAT_EXACT_LIMIT ? CvType.CV_32F : CvType.CV_64F;
+
+        int size = store.size();
+        int columns = featureLength + 1;
+        byte[] features = store.getFeatures();
+        double[] rows = new double[size * columns];
+        for (int id = 0; id < size; id++) {
+            long norm = 0;
+            for (int k = 0; k < featureLength; k++) {
+                int value = features[id * featureLength + k] & 0xFF;
+                rows[id * columns + k] = -2.0 * value;
+                norm += (long) value * value;
+            }
+            rows[id * columns + featureLength] = norm;
+        }
+
+        library = NativeMemory.newMat(size, columns, CvType.CV_64F);
+        if (size > 0) {
+            library.put(0, 0, rows);
+            library.convertTo(library, depth);
+        }
+    }
+
+    @Override
+    public int nearest(byte[] query) {
+        return nearestAll(new byte[][]{query})[0];
+    }
+
+    /**
+     * Finds the nearest feature of every query with one matrix multiplication per chunk
+     * of queries.
+     *
+     * @throws CancellationException if the calling thread is interrupted between chunks.
+     */
+    @Override
+    public int[] nearestAll(byte[][] queries) {
+        int[] matches = new int[queries.length];
+        int size = store.size();
+        if (size == 0) {
+            Arrays.fill(matches, -1);
+            return matches;
+        }
+
+        int columns = featureLength + 1;
+        int chunkRows = Math.max(1, CHUNK_ELEMENTS / size);
+        try (MatScope scope = new MatScope()) {
+            Mat chunk = scope.newMat();
+            Mat distances = scope.newMat();
+            Mat nearest = scope.newMat();
+            Mat noOffset = scope.newMat();
+
+            for (int first = 0; first < queries.length; first += chunkRows) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Match cancelled");
+                }
+
+                // Stack the chunk's queries as rows of [a, 1]
+                int rows = Math.min(chunkRows, queries.length - first);
+                double[] values = new double[rows * columns];
+                for (int row = 0; row < rows; row++) {
+                    byte[] query = queries[first + row];
+                    for (int k = 0; k < featureLength; k++) {
+                        values[row * columns + k] = query[k] & 0xFF;
+                    }
+                    values[row * columns + featureLength] = 1;
+                }
+                chunk.create(rows, columns, CvType.CV_64F);
+                chunk.put(0, 0, values);
+                chunk.convertTo(chunk, depth);
+
+                // |b|² − 2a·b for every query and library feature, then the first minimum of each row
+                Core.gemm(chunk, library, 1, noOffset, 0, distances, Core.GEMM_2_T);
+                Core.reduceArgMin(distances, nearest, 1);
+
+                int[] ids = new int[rows];
+                nearest.get(0, 0, ids);
+                System.arraycopy(ids, 0, matches, first, rows);
+            }
+        }
+
+        comparisons.add((long) queries.length * size);
+        return matches;
+    }
+
+    @Override
+    public boolean prefersBatches() {
+        return true;
+    }
+
+    @Override
+    public long getComparisonCount() {
+        return comparisons.sum();
+    }
+
+    /**
+     * Frees the library matrix.
+     */
+    @Override
+    public void close() {
+        NativeMemory.release(library);
+    }
+}
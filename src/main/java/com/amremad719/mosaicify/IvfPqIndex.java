@@ -0,0 +1,537 @@
+package com.amremad719.mosaicify;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * The {@code IvfPqIndex} class finds approximate nearest features in libraries of millions
+ * of images with an inverted file over product-quantized codes (IVF-PQ).
+ * <p>
+ * A coarse k-means quantizer splits the library into about {@code sqrt(size)} lists. Every
+ * feature is also compressed into one byte per subspace: the pixels are split into up to
+ * {@value #MAX_SUBSPACES} groups, and each group is replaced by the nearest of 256 colour
+ * patterns learnt for it. A query looks up the distance from each of its pixel groups to
+ * every pattern once, then scores all codes in its nearest {@code probes} lists with table
+ * lookups alone. A shortlist of the best scores is finally compared exactly against the
+ * {@link FeatureStore}, so the returned match is always the true nearest of its shortlist.
+ * <p>
+ * The index itself takes one code byte per subspace plus a four-byte id per image, about
+ * 20 MB per million 4x4 features. Its recall is measured against a {@link BruteForceIndex}
+ * on held-out queries when it is built: the shortlist is lengthened until it reaches the
+ * target recall, then, unless a probe count is given, the fewest probes that still reach
+ * it are chosen.
+ */
+public class IvfPqIndex implements MatchIndex {
+
+    /** The number of patterns learnt per subspace; codes are single bytes. */
+    private static final int CODEBOOK_SIZE = 256;
+
+    /** The largest number of subspaces, and so of code bytes per feature. */
+    private static final int MAX_SUBSPACES = 32;
+
+    /** The largest number of coarse lists. */
+    private static final int MAX_LISTS = 1024;
+
+    /** The number of k-means iterations used to train both quantizers. */
+    private static final int ITERATIONS = 8;
+
+    /** The number of training features sampled per centroid, up to {@link #MAX_SAMPLE}. */
+    private static final int SAMPLE_PER_CENTROID = 32;
+
+    /** The largest number of features k-means is trained on. */
+    private static final int MAX_SAMPLE = 65536;
+
+    /** The smallest and largest number of best-scoring codes compared exactly per query. */
+    private static final int MIN_SHORTLIST = 32;
+    private static final int MAX_SHORTLIST = 1024;
+
+    /** The number of lists scanned while choosing the shortlist length. */
+    private static final int CALIBRATION_PROBES = 32;
+
+    /** The number of queries recall is measured on. */
+    private static final int CALIBRATION_QUERIES = 100;
+
+    /** The standard deviation, in channel values, of the noise added to calibration queries. */
+    private static final double CALIBRATION_NOISE = 8;
+
+    /** Seed for sampling and calibration, so that the same library always builds the same index. */
+    private static final long SEED = 42;
+
+    private final FeatureStore store;
+    private final LongAdder comparisons = new LongAdder();
+
+    /** The number of values in a feature. */
+    private final int length;
+
+    /** The number of coarse lists. */
+    private final int lists;
+
+    /** The coarse centroids, {@code length} values each. */
+    private final float[] coarse;
+
+    /** The coarse centroids transposed: value {@code d} of every centroid, for {@code d = 0, 1, ...}. */
+    private final float[] coarseByValue;
+
+    /** The first position of each list in {@code ids} and {@code codes}; one extra entry marks the end. */
+    private final int[] listStart;
+
+    /** Feature ids ordered by list, and by id within a list. */
+    private final int[] ids;
+
+    /** The number of subspaces. */
+    private final int subspaces;
+
+    /** The first value and the number of values of each subspace. */
+    private final int[] subspaceStart;
+    private final int[] subspaceLength;
+
+    /** The number of patterns per subspace, at most {@value #CODEBOOK_SIZE}. */
+    private final int codewords;
+
+    /** The patterns of each subspace, {@code subspaceLength[m]} values each. */
+    private final float[][] codebooks;
+
+    /** The patterns of each subspace transposed like {@link #coarseByValue}. */
+    private final float[][] codebooksByValue;
+
+    /** The code of the feature at each position of {@code ids}, one byte per subspace. */
+    private final byte[] codes;
+
+    /** The number of lists scanned per query. */
+    private final int probes;
+
+    /** The number of best-scoring codes compared exactly per query. */
+    private final int shortlist;
+
+    /** The fraction of calibration queries answered with a true nearest feature. */
+    private final double recall;
+
+    /**
+     * Builds an index over every feature currently in the store.
+     *
+     * @param store   the processed library features.
+     * @param options the number of lists scanned per query, or {@link MatchBackend#EXACT} to
+     *                choose the fewest that reach the target recall.
+     */
+    public IvfPqIndex(FeatureStore store, MatchOptions options) {
+        this.store = store;
+        this.length = store.getFeatureLength();
+
+        int size = store.size();
+        int pixels = store.getFeatureWidth() * store.getFeatureHeight();
+        Random random = new Random(SEED);
+
+        // Split the pixels into subspaces of whole pixels, as evenly as possible
+        this.subspaces = Math.max(1, Math.min(MAX_SUBSPACES, pixels));
+        this.subspaceStart = new int[subspaces];
+        this.subspaceLength = new int[subspaces];
+        for (int m = 0; m < subspaces; m++) {
+            subspaceStart[m] = m * pixels / subspaces * 3;
+            subspaceLength[m] = (m + 1) * pixels / subspaces * 3 - subspaceStart[m];
+        }
+
+        // Train both quantizers on a sample of the library
+        this.lists = Math.max(1, Math.min(MAX_LISTS, (int) Math.round(Math.sqrt(size))));
+        int[] sample = sample(size, Math.max(lists, CODEBOOK_SIZE) * SAMPLE_PER_CENTROID, random);
+        byte[] features = store.getFeatures();
+
+        this.coarse = kmeans(features, sample, 0, length, lists, random);
+        this.codewords = Math.max(1, Math.min(CODEBOOK_SIZE, sample.length));
+        this.codebooks = new float[subspaces][];
+        long[] seeds = random.longs(subspaces).toArray();
+        IntStream.range(0, subspaces).parallel().forEach(m -> codebooks[m] = kmeans(
+                features, sample, subspaceStart[m], subspaceLength[m], codewords, new Random(seeds[m])));
+
+        // Queries compute distances to all centroids at once, one value at a time
+        this.coarseByValue = transpose(coarse, lists, length);
+        this.codebooksByValue = new float[subspaces][];
+        for (int m = 0; m < subspaces; m++) {
+            codebooksByValue[m] = transpose(codebooks[m], codewords, subspaceLength[m]);
+        }
+
+        // Assign every feature to its nearest list
+        int[] listOf = new int[size];
+        IntStream.range(0, size).parallel().forEach(id ->
+                listOf[id] = nearestCentroid(coarse, lists, length, features, id * length));
+
+        listStart = new int[lists + 1];
+        for (int id = 0; id < size; id++) {
+            listStart[listOf[id] + 1]++;
+        }
+        for (int l = 0; l < lists; l++) {
+            listStart[l + 1] += listStart[l];
+        }
+        ids = new int[size];
+        int[] next = Arrays.copyOf(listStart, lists);
+        for (int id = 0; id < size; id++) {
+            ids[next[listOf[id]]++] = id;
+        }
+
+        // Encode every feature in list order
+        codes = new byte[size * subspaces];
+        IntStream.range(0, size).parallel().forEach(position -> {
+            int offset = ids[position] * length;
+            for (int m = 0; m < subspaces; m++) {
+                codes[position * subspaces + m] = (byte) nearestCentroid(
+                        codebooks[m], codewords, subspaceLength[m], features, offset + subspaceStart[m]);
+            }
+        });
+
+        // Measure recall, choosing the shortlist length and probe count first
+        if (size == 0) {
+            this.probes = 1;
+            this.shortlist = MIN_SHORTLIST;
+            this.recall = 1;
+        } else {
+            Calibration calibration = new Calibration(random);
+            double target = options.targetRecall();
+            boolean chooseProbes = options.probes() == MatchBackend.EXACT;
+
+            // The shortlist has to absorb the quantization error: lengthen it until enough
+            // true matches survive scoring when plenty of lists are scanned
+            int scanned = Math.min(chooseProbes ? CALIBRATION_PROBES : options.probes(), lists);
+            int candidates = MIN_SHORTLIST;
+            double measured = calibration.recall(scanned, candidates);
+            while (measured < target && candidates < MAX_SHORTLIST) {
+                candidates *= 2;
+                measured = calibration.recall(scanned, candidates);
+            }
+
+            // Then scan as few lists as reach the target with that shortlist
+            if (chooseProbes) {
+                int chosen = 1;
+                double reached = calibration.recall(chosen, candidates);
+                while (reached < target && chosen < scanned) {
+                    chosen = Math.min(chosen * 2, scanned);
+                    reached = calibration.recall(chosen, candidates);
+                }
+                scanned = chosen;
+                measured = reached;
+            }
+
+            this.probes = scanned;
+            this.shortlist = candidates;
+            this.recall = measured;
+        }
+    }
+
+    /**
+     * Picks up to {@code count} distinct ids below {@code size}, capped at {@value #MAX_SAMPLE}.
+     */
+    private static int[] sample(int size, int count, Random random) {
+        int[] ids = IntStream.range(0, size).toArray();
+        int sampleSize = Math.min(size, Math.min(count, MAX_SAMPLE));
+
+        // Partial Fisher-Yates shuffle
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(size - i);
+            int swap = ids[i];
+            ids[i] = ids[j];
+            ids[j] = swap;
+        }
+        return Arrays.copyOf(ids, sampleSize);
+    }
+
+    /**
+     * @return the {@code count x dims} matrix {@code rows} in column-major order.
+     */
+    private static float[] transpose(float[] rows, int count, int dims) {
+        float[] columns = new float[rows.length];
+        for (int i = 0; i < count; i++) {
+            for (int d = 0; d < dims; d++) {
+                columns[d * count + i] = rows[i * dims + d];
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Clusters a slice of the sampled features with Lloyd's k-means.
+     *
+     * @param features the flat feature array.
+     * @param sample   the ids of the features to cluster.
+     * @param from     the first value of the slice within a feature.
+     * @param dims     the number of values in the slice.
+     * @param k        the number of clusters.
+     * @return the centroids, {@code dims} values each; fewer than {@code k} if the sample is smaller.
+     */
+    private float[] kmeans(byte[] features, int[] sample, int from, int dims, int k, Random random) {
+        int n = sample.length;
+        k = Math.max(1, Math.min(k, n));
+        float[] centroids = new float[k * dims];
+        if (n == 0) {
+            return centroids;
+        }
+
+        // Start from k distinct sample points; the sample is already in random order
+        for (int c = 0; c < k; c++) {
+            int offset = sample[c] * length + from;
+            for (int d = 0; d < dims; d++) {
+                centroids[c * dims + d] = features[offset + d] & 0xFF;
+            }
+        }
+
+        int clusters = k;
+        int[] assignment = new int[n];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            IntStream.range(0, n).parallel().forEach(i ->
+                    assignment[i] = nearestCentroid(centroids, clusters, dims, features, sample[i] * length + from));
+
+            double[] sums = new double[k * dims];
+            int[] counts = new int[k];
+            for (int i = 0; i < n; i++) {
+                int offset = sample[i] * length + from;
+                int c = assignment[i];
+                counts[c]++;
+                for (int d = 0; d < dims; d++) {
+                    sums[c * dims + d] += features[offset + d] & 0xFF;
+                }
+            }
+
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    // Move an empty cluster onto a random sample point
+                    int offset = sample[random.nextInt(n)] * length + from;
+                    for (int d = 0; d < dims; d++) {
+                        centroids[c * dims + d] = features[offset + d] & 0xFF;
+                    }
+                    continue;
+                }
+                for (int d = 0; d < dims; d++) {
+                    centroids[c * dims + d] = (float) (sums[c * dims + d] / counts[c]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * @return the index of the centroid closest to the {@code dims} values at {@code offset}.
+     */
+    private static int nearestCentroid(float[] centroids, int k, int dims, byte[] values, int offset) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            float distance = 0;
+            int base = c * dims;
+            for (int d = 0; d < dims && distance < bestDistance; d++) {
+                float difference = (values[offset + d] & 0xFF) - centroids[base + d];
+                distance += difference * difference;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public int nearest(byte[] query) {
+        return search(query, probes, shortlist, comparisons);
+    }
+
+    /**
+     * Scores the codes in the query's nearest lists and compares the best of them exactly.
+     *
+     * @param probes    the number of lists to scan.
+     * @param shortlist the number of best-scoring codes to compare exactly.
+     * @param counter   receives the number of codes scored and features compared, or {@code null}.
+     * @return the id of the closest shortlisted feature, or {@code -1} if the index is empty.
+     */
+    private int search(byte[] query, int probes, int shortlist, LongAdder counter) {
+        if (ids.length == 0) {
+            return -1;
+        }
+
+        // Rank the lists by the distance of their centroid; distances are non-negative,
+        // so their float bits sort in the same order as their values
+        float[] listDistance = new float[lists];
+        addSquaredDifferences(query, 0, length, coarseByValue, lists, listDistance, 0);
+        long[] ranked = new long[lists];
+        for (int l = 0; l < lists; l++) {
+            ranked[l] = (long) Float.floatToIntBits(listDistance[l]) << 32 | l;
+        }
+        Arrays.sort(ranked);
+
+        // Distance from each pixel group of the query to each of its patterns
+        float[] table = new float[subspaces * codewords];
+        for (int m = 0; m < subspaces; m++) {
+            addSquaredDifferences(query, subspaceStart[m], subspaceLength[m], codebooksByValue[m], codewords,
+                    table, m * codewords);
+        }
+
+        // Keep the best-scoring positions in a max-heap ordered by approximate distance
+        float[] heapDistance = new float[shortlist];
+        int[] heapPosition = new int[shortlist];
+        int heapSize = 0;
+        long scored = 0;
+
+        for (int p = 0; p < probes; p++) {
+            int list = (int) ranked[p];
+            for (int position = listStart[list]; position < listStart[list + 1]; position++) {
+                float distance = 0;
+                int base = position * subspaces;
+                for (int m = 0; m < subspaces; m++) {
+                    distance += table[m * codewords + (codes[base + m] & 0xFF)];
+                }
+                scored++;
+
+                if (heapSize < shortlist) {
+                    // Sift up
+                    int i = heapSize++;
+                    while (i > 0 && heapDistance[(i - 1) / 2] < distance) {
+                        heapDistance[i] = heapDistance[(i - 1) / 2];
+                        heapPosition[i] = heapPosition[(i - 1) / 2];
+                        i = (i - 1) / 2;
+                    }
+                    heapDistance[i] = distance;
+                    heapPosition[i] = position;
+                } else if (distance < heapDistance[0]) {
+                    // Replace the worst entry and sift down
+                    int i = 0;
+                    while (true) {
+                        int child = 2 * i + 1;
+                        if (child >= heapSize) {
+                            break;
+                        }
+                        if (child + 1 < heapSize && heapDistance[child + 1] > heapDistance[child]) {
+                            child++;
+                        }
+                        if (heapDistance[child] <= distance) {
+                            break;
+                        }
+                        heapDistance[i] = heapDistance[child];
+                        heapPosition[i] = heapPosition[child];
+                        i = child;
+                    }
+                    heapDistance[i] = distance;
+                    heapPosition[i] = position;
+                }
+            }
+        }
+
+        // Compare the shortlist exactly, keeping the lowest id among equally close features
+        int match = -1;
+        long squared = Long.MAX_VALUE;
+        for (int i = 0; i < heapSize; i++) {
+            int candidate = ids[heapPosition[i]];
+            long distance = store.squaredDistance(query, candidate, squared);
+            if (distance < squared || (distance == squared && candidate < match)) {
+                match = candidate;
+                squared = distance;
+            }
+        }
+
+        if (counter != null) {
+            counter.add(scored + heapSize);
+        }
+        return match;
+    }
+
+    /**
+     * Adds the squared distance from a slice of the query to each of {@code count} centroids
+     * stored in column-major order. The inner loop runs over contiguous centroids so that
+     * the JIT compiler can vectorize it.
+     */
+    private static void addSquaredDifferences(byte[] query, int from, int dims, float[] columns, int count,
+                                              float[] out, int outOffset) {
+        for (int d = 0; d < dims; d++) {
+            float value = query[from + d] & 0xFF;
+            int base = d * count;
+            for (int i = 0; i < count; i++) {
+                float difference = value - columns[base + i];
+                out[outOffset + i] += difference * difference;
+            }
+        }
+    }
+
+    /**
+     * Counts both the codes scored through the lookup table and the features compared
+     * exactly, although a code costs only a few table lookups.
+     */
+    @Override
+    public long getComparisonCount() {
+        return comparisons.sum();
+    }
+
+    /**
+     * @return the fraction of calibration queries for which the index returned a feature as
+     *         close as the true nearest one.
+     */
+    @Override
+    public double getRecall() {
+        return recall;
+    }
+
+    /**
+     * @return the number of lists scanned per query.
+     */
+    public int getProbes() {
+        return probes;
+    }
+
+    /**
+     * @return the number of best-scoring codes compared exactly per query.
+     */
+    public int getShortlist() {
+        return shortlist;
+    }
+
+    /**
+     * @return the number of lists the library is split into.
+     */
+    public int getListCount() {
+        return lists;
+    }
+
+    /**
+     * @return the memory taken by the codes and their ids, in bytes.
+     */
+    public long getCodeBytes() {
+        return (long) codes.length + (long) ids.length * Integer.BYTES;
+    }
+
+    /**
+     * Held-out queries and their true nearest distances, used to measure recall.
+     * Each query blends two random library features and adds a little noise, so that
+     * like a real kernel it usually falls between library images rather than on one.
+     */
+    private final class Calibration {
+        final byte[][] queries = new byte[CALIBRATION_QUERIES][];
+        final long[] truth = new long[CALIBRATION_QUERIES];
+
+        Calibration(Random random) {
+            byte[] features = store.getFeatures();
+            for (int q = 0; q < CALIBRATION_QUERIES; q++) {
+                int a = random.nextInt(store.size()) * length;
+                int b = random.nextInt(store.size()) * length;
+                double weight = random.nextDouble() * 0.5;
+                byte[] query = new byte[length];
+                for (int d = 0; d < length; d++) {
+                    double value = (1 - weight) * (features[a + d] & 0xFF) + weight * (features[b + d] & 0xFF)
+                            + random.nextGaussian() * CALIBRATION_NOISE;
+                    query[d] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+                }
+                queries[q] = query;
+            }
+
+            BruteForceIndex reference = new BruteForceIndex(store);
+            IntStream.range(0, CALIBRATION_QUERIES).parallel().forEach(q ->
+                    truth[q] = store.squaredDistance(queries[q], reference.nearest(queries[q])));
+        }
+
+        /**
+         * @return the fraction of queries answered with a feature as close as the true nearest one
+         *         when scanning {@code probes} lists and comparing {@code shortlist} codes exactly.
+         */
+        double recall(int probes, int shortlist) {
+            long hits = IntStream.range(0, CALIBRATION_QUERIES).parallel()
+                    .filter(q -> store.squaredDistance(queries[q], search(queries[q], probes, shortlist, null)) == truth[q])
+                    .count();
+            return (double) hits / CALIBRATION_QUERIES;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.amremad719.mosaicify;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder event covering a whole render or library search, carrying the same
+ * figures as the {@link PipelineMetrics} summary.
+ */
+@Name("com.amremad719.mosaicify.Job")
+@Label("Mosaicify Job")
+@Category("Mosaicify")
+@Description("A photomosaic render or library search")
+public class JobEvent extends jdk.jfr.Event {
+
+    @Label("Job")
+    String job;
+
+    @Label("Items")
+    @Description("The number of tiles rendered or library images processed")
+    long items;
+
+    @Label("Reused Items")
+    @Description("The number of tiles whose match was reused from an earlier render")
+    long reusedItems;
+
+    @Label("Items per Second")
+    double itemsPerSecond;
+
+    @Label("Comparisons")
+    @Description("The number of feature distances computed while matching")
+    long comparisons;
+
+    @Label("Comparisons per Second")
+    double comparisonsPerSecond;
+
+    @Label("Match Recall")
+    @Description("The fraction of queries the match index answers with a true nearest feature")
+    @Percentage
+    double matchRecall;
+
+    @Label("Match Time")
+    @Description("Time spent finding matches, summed over all threads")
+    @Timespan(Timespan.NANOSECONDS)
+    long matchTime;
+
+    @Label("Composite Time")
+    @Description("Time spent placing tiles, including tile decodes on cache misses, summed over all threads")
+    @Timespan(Timespan.NANOSECONDS)
+    long compositeTime;
+
+    @Label("Tile Cache Hit Ratio")
+    @Percentage
+    double tileCacheHitRatio;
+
+    @Label("Match Memo Hit Ratio")
+    @Description("The fraction of match lookups answered without searching the library")
+    @Percentage
+    double matchMemoHitRatio;
+
+    @Label("Tile Cache Memory")
+    @DataAmount
+    long tileCacheBytes;
+
+    @Label("Atlas Tiles")
+    @Description("Tiles missing from the tile cache that were read from the tile atlas instead of decoded")
+    long atlasTiles;
+
+    @Label("Resident Memory")
+    @Description("The resident set size of the process, including native OpenCV allocations")
+    @DataAmount
+    long residentBytes;
+
+    @Label("Live Mats")
+    @Description("OpenCV Mats created by the engine and library that were neither released nor collected")
+    int nativeMats;
+
+    @Label("Live Mat Memory")
+    @Description("The native pixel memory of the live Mats")
+    @DataAmount
+    long nativeBytes;
+}
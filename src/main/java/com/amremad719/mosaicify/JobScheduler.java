@@ -0,0 +1,111 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Mat;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code JobScheduler} class runs render and ingest jobs on a fixed set of long-lived
+ * worker threads, queueing jobs while every worker is busy. Unlike a {@link Thread}, which
+ * can only be started once, a scheduler accepts any number of jobs over the lifetime of
+ * the process, so the library and caches stay warm between them.
+ * <p>
+ * Every submitted job is returned as a {@link CompletableFuture}. Cancelling the future
+ * removes a queued job or interrupts a running one, and an optional timeout cancels a job
+ * that runs for too long. A {@link Mat} that a job returns after its future was already
+ * cancelled or timed out has nobody left to free it, so the scheduler releases it.
+ */
+public class JobScheduler {
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Creates a scheduler with the given number of worker threads.
+     *
+     * @param workerCount the number of jobs that may run at the same time.
+     */
+    public JobScheduler(int workerCount) {
+        this.workers = Executors.newFixedThreadPool(workerCount, daemonThreads("mosaicify-job-"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("mosaicify-job-timer-"));
+    }
+
+    /**
+     * Creates a thread factory for daemon threads, so that pending jobs never keep the
+     * application alive after its window is closed.
+     */
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @param job     the work to run.
+     * @param timeout the longest the job may run once started, or {@code null} for no limit.
+     * @param <T>     the type of the job's result.
+     * @return a future completed with the job's result, or exceptionally with its failure,
+     *         a {@link TimeoutException} or a cancellation.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> job, Duration timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        Future<?> task = workers.submit(() -> {
+            if (result.isDone()) {
+                return;
+            }
+
+            // The timeout counts from the moment the job starts running, not from when it was queued
+            ScheduledFuture<?> deadline = timeout == null ? null : timer.schedule(
+                    () -> result.completeExceptionally(new TimeoutException("Job timed out after " + timeout)),
+                    timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+            try {
+                T value = job.call();
+                if (!result.complete(value) && value instanceof Mat mat) {
+                    // The job finished after it was cancelled or timed out; its caller is gone
+                    NativeMemory.release(mat);
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+            }
+        });
+
+        // Stop the job when the future is cancelled or times out
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                task.cancel(true);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Cancels every queued and running job and stops the worker threads.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,231 @@
+package com.amremad719.mosaicify;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code LibraryIndexFile} class reads and writes the binary index that caches the
+ * processed features of a sub-image library on disk, so that reopening a library only
+ * decodes files that are new or have changed since the index was written.
+ * <p>
+ * The index lives inside the library directory as {@value #FILE_NAME}. It starts with a
+ * header of magic number, format version, feature width, feature height and entry count,
+ * followed by one record per image: the UTF-8 file name, the file size, the last-modified
+ * time in milliseconds and the raw BGR feature bytes.
+ */
+public class LibraryIndexFile {
+
+    /** The name of the index file inside the library directory. */
+    public static final String FILE_NAME = ".mosaicify-index";
+
+    private static final int MAGIC = 0x4D534958; // "MSIX"
+    /** Changes whenever features are computed differently, so that older features are recomputed. */
+    private static final int VERSION = 4;
+
+    /**
+     * A cached feature together with the file attributes it was computed from. Entries
+     * loaded from an index share one array holding the whole file.
+     *
+     * @param fileName     the name of the image file inside the library directory.
+     * @param size         the size of the file in bytes.
+     * @param lastModified the last-modified time of the file in milliseconds.
+     * @param features     the array holding the processed BGR feature bytes.
+     * @param offset       the position of the feature's first byte in {@code features}.
+     */
+    public record Entry(String fileName, long size, long lastModified, byte[] features, int offset) {
+
+        /**
+         * Creates an entry for a feature held in an array of its own.
+         */
+        public Entry(String fileName, long size, long lastModified, byte[] feature) {
+            this(fileName, size, lastModified, feature, 0);
+        }
+
+        /**
+         * Appends the feature to a store without copying it out of the shared array first.
+         *
+         * @param store the store to append to.
+         * @param path  the path the feature is stored under.
+         * @return the id assigned to the feature.
+         */
+        public int addTo(FeatureStore store, String path) {
+            return store.add(path, features, offset);
+        }
+
+        /**
+         * @return {@code true} if the entry was computed from a file with the given attributes.
+         */
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * Returns the location of the index file for a library directory.
+     *
+     * @param libraryDirectory the library directory.
+     * @return the path of its index file.
+     */
+    public static Path locate(Path libraryDirectory) {
+        return libraryDirectory.resolve(FILE_NAME);
+    }
+
+    /**
+     * Returns the location of the index file of one shard of a library directory. Every
+     * shard keeps its own index, so that shard processes never overwrite each other's.
+     *
+     * @param libraryDirectory the library directory.
+     * @param shard            the shard, or {@code null} for the whole library.
+     * @return the path of the shard's index file.
+     */
+    public static Path locate(Path libraryDirectory, LibraryShard shard) {
+        if (shard == null) {
+            return locate(libraryDirectory);
+        }
+        return libraryDirectory.resolve(FILE_NAME + "-" + shard.index() + "of" + shard.count());
+    }
+
+    /**
+     * @param file a file inside a library directory.
+     * @return {@code true} for the index files, tile atlases and their temporary copies,
+     *         which are not library images.
+     */
+    public static boolean isIndexFile(Path file) {
+        Path name = file.getFileName();
+        return name != null && name.toString().startsWith(FILE_NAME);
+    }
+
+    /**
+     * Loads the index of a library with a single read into one array, which the entries
+     * share instead of each copying its feature out. The file is not memory-mapped, since
+     * a mapping stays open until the garbage collector frees it, and on Windows an open
+     * mapping makes the next {@link #write} fail to replace the index. An index that is
+     * missing, unreadable or was built for other feature dimensions yields no entries.
+     *
+     * @param indexFile     the index file to read.
+     * @param featureWidth  the feature width the entries must have been processed with.
+     * @param featureHeight the feature height the entries must have been processed with.
+     * @return the cached entries keyed by file name.
+     */
+    public static Map<String, Entry> load(Path indexFile, int featureWidth, int featureHeight) {
+        Map<String, Entry> entries = new HashMap<>();
+        if (!Files.isRegularFile(indexFile)) {
+            return entries;
+        }
+
+        try {
+            byte[] contents = Files.readAllBytes(indexFile);
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != featureWidth || buffer.getInt() != featureHeight) {
+                return entries;
+            }
+
+            int count = buffer.getInt();
+            int featureLength = featureWidth * featureHeight * 3;
+
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                long size = buffer.getLong();
+                long lastModified = buffer.getLong();
+                int offset = buffer.position();
+                if (buffer.remaining() < featureLength) {
+                    throw new BufferUnderflowException();
+                }
+                buffer.position(offset + featureLength);
+
+                String fileName = new String(name, StandardCharsets.UTF_8);
+                entries.put(fileName, new Entry(fileName, size, lastModified, contents, offset));
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            // A damaged index is simply rebuilt from the images
+            e.printStackTrace();
+            entries.clear();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Writes a complete index, replacing any previous one atomically so that a crash
+     * while writing never leaves a truncated index behind.
+     *
+     * @param indexFile     the index file to write.
+     * @param featureWidth  the feature width of every entry.
+     * @param featureHeight the feature height of every entry.
+     * @param entries       the entries to store.
+     * @throws IOException if the index cannot be written.
+     */
+    public static void write(Path indexFile, int featureWidth, int featureHeight, List<Entry> entries)
+            throws IOException {
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        int featureLength = featureWidth * featureHeight * 3;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(featureWidth);
+            out.writeInt(featureHeight);
+            out.writeInt(entries.size());
+
+            for (Entry entry : entries) {
+                byte[] name = entry.fileName().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(entry.size());
+                out.writeLong(entry.lastModified());
+                out.write(entry.features(), entry.offset(), featureLength);
+            }
+        }
+
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes an index of every feature in a store, taking the file names from the stored
+     * paths and the features straight from the store's flat array.
+     *
+     * @param indexFile    the index file to replace.
+     * @param store        the features to store.
+     * @param sizes        the size of the file behind each feature, by id.
+     * @param lastModified the last-modified time of the file behind each feature, by id.
+     * @throws IOException if the index cannot be written.
+     */
+    public static void write(Path indexFile, FeatureStore store, long[] sizes, long[] lastModified)
+            throws IOException {
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        byte[] features = store.getFeatures();
+        int featureLength = store.getFeatureLength();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(store.getFeatureWidth());
+            out.writeInt(store.getFeatureHeight());
+            out.writeInt(store.size());
+
+            for (int id = 0; id < store.size(); id++) {
+                byte[] name = Path.of(store.getPath(id)).getFileName().toString().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(sizes[id]);
+                out.writeLong(lastModified[id]);
+                out.write(features, id * featureLength, featureLength);
+            }
+        }
+
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
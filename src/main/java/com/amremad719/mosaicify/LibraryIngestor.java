@@ -0,0 +1,309 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code LibraryIngestor} class turns a list of library image files into feature
+ * vectors through a bounded, multi-threaded pipeline:
+ * <ol>
+ *     <li>a pool of decode threads reads and decodes files, at reduced resolution when the
+ *     image is large enough to allow it, see {@link #decode(Path, Size)};</li>
+ *     <li>a pool of CPU threads resizes each decoded image to the feature size and copies
+ *     its pixels out;</li>
+ *     <li>the calling thread collects the features and reports progress.</li>
+ * </ol>
+ * Decoded images travel through a bounded queue, so at most a fixed number of them are
+ * held in memory at any time regardless of the library size. The CPU threads can also
+ * render every decoded image into a {@link TileAtlas}. Features are always decoded for the
+ * feature size alone, so they are identical with and without an atlas; the atlas reuses the
+ * feature's image when it is large enough, and the file is decoded a second time otherwise.
+ */
+public class LibraryIngestor {
+
+    /** Marks the end of the decoded queue for a feature worker. */
+    private static final Decoded END = new Decoded(-1, null, null);
+
+    /** The {@code imread} modes from the largest reduction to none. */
+    private static final int[] REDUCTIONS = {Imgcodecs.IMREAD_REDUCED_COLOR_8, Imgcodecs.IMREAD_REDUCED_COLOR_4,
+            Imgcodecs.IMREAD_REDUCED_COLOR_2, Imgcodecs.IMREAD_COLOR};
+
+    private final int decodeThreads;
+    private final int featureThreads;
+    private final int queueCapacity;
+
+    /**
+     * Creates an ingestor with the given pool sizes.
+     *
+     * @param decodeThreads  the number of threads reading and decoding files.
+     * @param featureThreads the number of threads resizing decoded images.
+     * @param queueCapacity  the maximum number of decoded images waiting to be resized.
+     */
+    public LibraryIngestor(int decodeThreads, int featureThreads, int queueCapacity) {
+        this.decodeThreads = decodeThreads;
+        this.featureThreads = featureThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Creates an ingestor sized for the current machine: two decode threads per core to
+     * keep the disk busy while waiting on I/O, and one feature thread per core.
+     */
+    public LibraryIngestor() {
+        this(2 * Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors(),
+                4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Decodes an image at the lowest resolution that is still at least {@code target} both
+     * ways, or at full resolution if the image is smaller than that. JPEG decoders can
+     * produce a 1/2, 1/4 or 1/8 scale image directly, which is much cheaper than a full
+     * decode. The header is not read separately, so the largest reduction that could suit
+     * the target is tried first, and a result too small for it is decoded again with the
+     * next smaller reduction; only images smaller than eight times the target pay for this.
+     *
+     * @param file   the image file.
+     * @param target the smallest size the decoded image should have.
+     * @return the decoded image, registered with {@link NativeMemory}, which the caller must
+     *         release; empty if the file is not a readable image.
+     */
+    public static Mat decode(Path file, Size target) {
+        double largest = Math.max(target.width, target.height);
+        int first = largest <= 16 ? 0 : largest <= 32 ? 1 : largest <= 64 ? 2 : 3;
+        for (int r = first; r < REDUCTIONS.length; r++) {
+            Mat image;
+            try {
+                image = NativeMemory.track(Imgcodecs.imread(file.toString(), REDUCTIONS[r]));
+            } catch (RuntimeException e) {
+                return NativeMemory.newMat();
+            }
+            if (image.empty() || r == REDUCTIONS.length - 1 || covers(image, target)) {
+                return image;
+            }
+            NativeMemory.release(image);
+        }
+        throw new AssertionError("The last reduction is always returned");
+    }
+
+    /**
+     * @return {@code true} if the image is at least {@code target} both ways.
+     */
+    private static boolean covers(Mat image, Size target) {
+        return image.width() >= target.width && image.height() >= target.height;
+    }
+
+    /**
+     * Extracts the feature of every file.
+     *
+     * @param files       the image files to process.
+     * @param featureSize the size each image is reduced to.
+     * @param progress    counts every image that has gone through the pipeline.
+     * @return the features in the same order as {@code files}; {@code null} for files
+     *         that could not be decoded.
+     * @throws InterruptedException  if the calling thread is interrupted while waiting.
+     * @throws IllegalStateException if a decode or feature worker fails unexpectedly.
+     */
+    public byte[][] extract(List<Path> files, Size featureSize, ProgressTracker progress) throws InterruptedException {
+        return extract(files, featureSize, null, progress);
+    }
+
+    /**
+     * Extracts the feature of every file and renders its atlas tiles into the slot of the
+     * same index. The features are the same as without an atlas; tiles are rendered from an
+     * image at least as large as the largest atlas level, if the file has one.
+     *
+     * @param files       the image files to process.
+     * @param featureSize the size each image is reduced to.
+     * @param atlas       the atlas receiving the tiles of every image, or {@code null}.
+     * @param progress    counts every image that has gone through the pipeline.
+     * @return the features in the same order as {@code files}; {@code null} for files
+     *         that could not be decoded.
+     * @throws InterruptedException  if the calling thread is interrupted while waiting.
+     * @throws IllegalStateException if a decode or feature worker fails unexpectedly.
+     */
+    public byte[][] extract(List<Path> files, Size featureSize, TileAtlas.Writer atlas, ProgressTracker progress)
+            throws InterruptedException {
+        int total = files.size();
+        byte[][] features = new byte[total][];
+        if (total == 0) {
+            return features;
+        }
+
+        Size atlasSize = atlas == null ? null : new Size(atlas.getLargestLevel(), atlas.getLargestLevel());
+        int featureLength = (int) (featureSize.width * featureSize.height) * 3;
+
+        BlockingQueue<Decoded> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Extracted> extracted = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger nextFile = new AtomicInteger();
+        AtomicInteger runningDecoders = new AtomicInteger(decodeThreads);
+
+        ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads);
+        ExecutorService extractors = Executors.newFixedThreadPool(featureThreads);
+
+        try {
+            // Decode stage: files are claimed one at a time until the list runs out
+            for (int t = 0; t < decodeThreads; t++) {
+                decoders.execute(() -> {
+                    try {
+                        for (int i = nextFile.getAndIncrement(); i < total; i = nextFile.getAndIncrement()) {
+                            Mat image = decode(files.get(i), featureSize);
+                            Mat atlasImage = atlasSize == null || image.empty() || covers(image, atlasSize)
+                                    ? image : decode(files.get(i), atlasSize);
+                            try {
+                                decoded.put(new Decoded(i, image, atlasImage));
+                            } catch (InterruptedException e) {
+                                // The images never reached the queue, so nobody else will free them
+                                new Decoded(i, image, atlasImage).release();
+                                throw e;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException | Error e) {
+                        reportFailure(extracted, e);
+                    } finally {
+                        // The last decoder to finish, however it finishes, tells every feature worker to stop
+                        if (runningDecoders.decrementAndGet() == 0) {
+                            endFeatureWorkers(decoded);
+                        }
+                    }
+                });
+            }
+
+            // Feature stage: resize each decoded image down to the feature size
+            for (int t = 0; t < featureThreads; t++) {
+                extractors.execute(() -> {
+                    try {
+                        for (Decoded item = decoded.take(); item != END; item = decoded.take()) {
+                            byte[] feature;
+                            try {
+                                feature = reduce(item.image, featureSize, featureLength);
+                                if (feature != null && atlas != null) {
+                                    atlas.write(item.index, item.atlasImage);
+                                }
+                            } finally {
+                                item.release();
+                            }
+                            extracted.put(new Extracted(item.index, feature, null));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException | Error e) {
+                        reportFailure(extracted, e);
+                    }
+                });
+            }
+
+            // Collect stage: runs on the calling thread
+            for (int processed = 0; processed < total; processed++) {
+                Extracted item = extracted.take();
+                if (item.failure != null) {
+                    throw new IllegalStateException("Library ingestion failed", item.failure);
+                }
+                features[item.index] = item.feature;
+                progress.advance();
+            }
+        } finally {
+            decoders.shutdownNow();
+            extractors.shutdownNow();
+
+            // Free the images still waiting when the extraction was interrupted
+            List<Decoded> abandoned = new ArrayList<>();
+            decoded.drainTo(abandoned);
+            for (Decoded item : abandoned) {
+                item.release();
+            }
+        }
+
+        return features;
+    }
+
+    /**
+     * Tells every feature worker to stop once the images ahead of the markers are done.
+     */
+    private void endFeatureWorkers(BlockingQueue<Decoded> decoded) {
+        try {
+            for (int w = 0; w < featureThreads; w++) {
+                decoded.put(END);
+            }
+        } catch (InterruptedException e) {
+            // The pipeline is being shut down, which stops the feature workers anyway
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a worker's failure to the collecting thread, which rethrows it instead of
+     * waiting for features that will never arrive.
+     */
+    private static void reportFailure(BlockingQueue<Extracted> extracted, Throwable failure) {
+        try {
+            extracted.put(new Extracted(-1, null, failure));
+        } catch (InterruptedException e) {
+            // The collector has already given up and shut the pipeline down
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Area-averages a decoded image down to the feature size, like the kernels of a grid
+     * are, and copies out its pixels.
+     *
+     * @return the feature bytes, or {@code null} if the image is empty or unusable.
+     */
+    private static byte[] reduce(Mat image, Size featureSize, int featureLength) {
+        if (image.empty()) {
+            return null;
+        }
+
+        Mat reduced = NativeMemory.BUFFERS.acquire((int) featureSize.height, (int) featureSize.width, CvType.CV_8UC3);
+        try {
+            Imgproc.resize(image, reduced, featureSize, 0, 0, Imgproc.INTER_AREA);
+
+            byte[] feature = new byte[featureLength];
+            reduced.get(0, 0, feature);
+            return feature;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            NativeMemory.BUFFERS.recycle(reduced);
+        }
+    }
+
+    /**
+     * A decoded image waiting to be reduced, tagged with its position in the file list, and
+     * the image its atlas tiles are rendered from, which may be the same or {@code null}.
+     */
+    private record Decoded(int index, Mat image, Mat atlasImage) {
+
+        /**
+         * Frees both images.
+         */
+        void release() {
+            if (atlasImage != image) {
+                NativeMemory.release(atlasImage);
+            }
+            NativeMemory.release(image);
+        }
+    }
+
+    /**
+     * A finished feature, tagged with its position in the file list, or the failure of a
+     * worker, which ends the extraction.
+     */
+    private record Extracted(int index, byte[] feature, Throwable failure) {
+    }
+}
@@ -0,0 +1,49 @@
+package com.amremad719.mosaicify;
+
+import java.nio.file.Path;
+
+/**
+ * The {@code LibraryShard} record selects the part of a library directory that one
+ * {@link MatchShardServer} loads, so that a library too large for one process can be split
+ * across several. Files are assigned by a hash of their name, which every process computes
+ * the same way and which does not depend on the order or number of files in the directory.
+ *
+ * @param index the shard, from 0 to {@code count - 1}.
+ * @param count the number of shards the library is split into.
+ */
+public record LibraryShard(int index, int count) {
+
+    public LibraryShard {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard " + index + " of " + count + " does not exist");
+        }
+    }
+
+    /**
+     * Parses a shard written as {@code INDEX/COUNT}, e.g. {@code 0/4}.
+     *
+     * @param value the text to parse.
+     * @return the shard.
+     */
+    public static LibraryShard parse(String value) {
+        String[] parts = value.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected INDEX/COUNT but got " + value);
+        }
+        return new LibraryShard(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * @param file a file inside the library directory.
+     * @return {@code true} if the file belongs to this shard.
+     */
+    public boolean contains(Path file) {
+        // String.hashCode is specified, so every process agrees on the assignment
+        return Math.floorMod(file.getFileName().toString().hashCode(), count) == index;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
@@ -0,0 +1,348 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code LibrarySnapshot} class is an immutable version of a processed sub-image
+ * library: its features and the match indexes built over them.
+ * <p>
+ * A {@link SubImagesLibrary} publishes a new snapshot whenever its content or match
+ * settings change, e.g. after a search or when its live watcher picks up new files, and
+ * never modifies a published one. A render takes the current snapshot when it starts and
+ * matches every tile against it, so a library that changes during the render never mixes
+ * two versions of the library in one mosaic.
+ * <p>
+ * Each backend searches behind a {@link MatchMemo}, so that kernels already matched by
+ * any render of this snapshot are answered without a search.
+ * <p>
+ * Some indexes hold native memory, so a snapshot counts its users: whoever creates it, plus
+ * every render that {@linkplain #tryAcquire() acquires} it from its library. The indexes are
+ * {@linkplain MatchIndex#close() closed} once every user has {@linkplain #release() released} it,
+ * i.e. once the library has replaced it and the last render using it has finished.
+ */
+public class LibrarySnapshot {
+
+    private final FeatureStore store;
+    private final MatchBackend defaultBackend;
+    private final MatchOptions matchOptions;
+
+    /** The rank of every image by id, see {@link #getRank(int)}, or {@code null} if ranks are ids. */
+    private final int[] ranks;
+
+    /** The indexes built so far, by backend. The default backend's index is built eagerly. */
+    private final Map<MatchBackend, MatchIndex> matchIndexes = new ConcurrentHashMap<>();
+
+    /** The match memo of every backend used so far, unless memos are off. */
+    private final Map<MatchBackend, MatchMemo> matchMemos = new ConcurrentHashMap<>();
+
+    /** The number of users that have not released the snapshot; the indexes are closed at 0. */
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    /**
+     * Creates a snapshot and builds the index of its default backend.
+     *
+     * @param store          the processed library features; must not be modified afterwards.
+     * @param defaultBackend the backend used by renders that do not choose one.
+     * @param matchOptions   the probe count and target recall of approximate backends, and
+     *                       the quantization step of the match memos.
+     */
+    public LibrarySnapshot(FeatureStore store, MatchBackend defaultBackend, MatchOptions matchOptions) {
+        this(store, defaultBackend, matchOptions, null);
+    }
+
+    /**
+     * Creates a snapshot whose images have a known place in a larger library, e.g. one shard
+     * of a library directory, and builds the index of its default backend.
+     *
+     * @param store          the processed library features; must not be modified afterwards.
+     * @param defaultBackend the backend used by renders that do not choose one.
+     * @param matchOptions   the probe count and target recall of approximate backends, and
+     *                       the quantization step of the match memos.
+     * @param ranks          the rank of every image by id, increasing with the id, see
+     *                       {@link #getRank(int)}; {@code null} if the ids are the ranks.
+     */
+    public LibrarySnapshot(FeatureStore store, MatchBackend defaultBackend, MatchOptions matchOptions, int[] ranks) {
+        this.store = store;
+        this.defaultBackend = defaultBackend;
+        this.matchOptions = matchOptions;
+        this.ranks = ranks;
+        matchIndexes.put(defaultBackend, defaultBackend.build(store, matchOptions));
+    }
+
+    /**
+     * Counts another user of the snapshot, unless it has already been released by all of
+     * its users.
+     *
+     * @return {@code true} if the caller now uses the snapshot and must release it.
+     */
+    boolean tryAcquire() {
+        int count;
+        do {
+            count = users.get();
+            if (count == 0) {
+                return false;
+            }
+        } while (!users.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Ends a use of the snapshot, e.g. when a render that acquired it has finished, closing
+     * its indexes if that was the last one. The snapshot must not be used by the caller afterwards.
+     */
+    public void release() {
+        if (users.decrementAndGet() == 0) {
+            for (MatchIndex index : matchIndexes.values()) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the index of a backend, building it on first use.
+     *
+     * @param backend the backend, or {@code null} for the default one.
+     * @return the index over this snapshot's features.
+     */
+    public MatchIndex getMatchIndex(MatchBackend backend) {
+        MatchBackend selected = backend != null ? backend : defaultBackend;
+        return matchIndexes.computeIfAbsent(selected, b -> b.build(store, matchOptions));
+    }
+
+    /**
+     * Finds the best-matching sub-image for the given kernel through the index of a
+     * particular backend.
+     *
+     * @param kernel  the image patch to match against the library.
+     * @param backend the backend to search with, or {@code null} for the default one.
+     * @return the file path of the best-matching sub-image.
+     * @throws IOException if no match is found.
+     */
+    public String findBestMatch(Mat kernel, MatchBackend backend) throws IOException {
+        return store.getPath(findBestMatchId(extractFeature(kernel), backend));
+    }
+
+    /**
+     * Finds the best-matching sub-image for a kernel that has already been reduced with
+     * {@link #extractFeature(Mat)}.
+     *
+     * @param feature the feature bytes of the kernel; must not be modified afterwards, since
+     *                the match memo may keep it.
+     * @param backend the backend to search with, or {@code null} for the default one.
+     * @return the id of the best-matching sub-image in {@link #getFeatures()}.
+     * @throws IOException if no match is found.
+     */
+    public int findBestMatchId(byte[] feature, MatchBackend backend) throws IOException {
+        // Kernels seen before skip the search; others are searched as the memo's representative
+        MatchMemo memo = getMatchMemo(backend);
+        byte[] query = feature;
+        if (memo != null) {
+            int match = memo.get(feature);
+            if (match != -1) {
+                return match;
+            }
+            query = memo.representative(feature);
+        }
+
+        // Look up the processed sub-image with the lowest MSE to the processed kernel
+        int match = getMatchIndex(backend).nearest(query);
+
+        if (match == -1) {
+            throw new IOException("Failed to find a match for a kernel");
+        }
+
+        if (memo != null) {
+            memo.put(query, match);
+        }
+        return match;
+    }
+
+    /**
+     * Finds the best-matching sub-images for a batch of kernels that have already been
+     * reduced with {@link #extractFeature(Mat)}. Kernels the match memo cannot answer are
+     * searched together through {@link MatchIndex#nearestAll(byte[][])}, which is much
+     * faster than one at a time for indexes that {@linkplain MatchIndex#prefersBatches() prefer batches}.
+     *
+     * @param features the feature bytes of every kernel; must not be modified afterwards.
+     * @param backend  the backend to search with, or {@code null} for the default one.
+     * @return the id of the best-matching sub-image of every kernel in {@link #getFeatures()}.
+     * @throws IOException if no match is found.
+     */
+    public int[] findBestMatchIds(byte[][] features, MatchBackend backend) throws IOException {
+        int[] matches = new int[features.length];
+        MatchMemo memo = getMatchMemo(backend);
+
+        // Gather the kernels the memo cannot answer
+        int[] searched = new int[features.length];
+        int count = 0;
+        for (int i = 0; i < features.length; i++) {
+            matches[i] = memo != null ? memo.get(features[i]) : -1;
+            if (matches[i] == -1) {
+                searched[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return matches;
+        }
+
+        byte[][] queries = new byte[count][];
+        for (int k = 0; k < count; k++) {
+            queries[k] = memo != null ? memo.representative(features[searched[k]]) : features[searched[k]];
+        }
+        int[] found = getMatchIndex(backend).nearestAll(queries);
+
+        for (int k = 0; k < count; k++) {
+            if (found[k] == -1) {
+                throw new IOException("Failed to find a match for a kernel");
+            }
+            matches[searched[k]] = found[k];
+            if (memo != null) {
+                memo.put(queries[k], found[k]);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the match memo of a backend, or {@code null} if memos are off.
+     */
+    private MatchMemo getMatchMemo(MatchBackend backend) {
+        if (matchOptions.memoStep() == MatchMemo.OFF) {
+            return null;
+        }
+        return matchMemos.computeIfAbsent(backend != null ? backend : defaultBackend,
+                b -> new MatchMemo(matchOptions.memoStep()));
+    }
+
+    /**
+     * Draws a sub-image from its feature alone, without reading the file. With features of
+     * a few pixels a side this is a blurred thumbnail, which is enough for previews.
+     *
+     * @param id       the id of the sub-image.
+     * @param tileSize the size of the thumbnail.
+     * @return the thumbnail, which the caller must release.
+     */
+    public Mat getThumbnail(int id, Size tileSize) {
+        Mat thumbnail = NativeMemory.newMat((int) tileSize.height, (int) tileSize.width, CvType.CV_8UC3);
+        drawThumbnail(id, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Draws the thumbnail of a sub-image, see {@link #getThumbnail}, straight into a tile
+     * of a larger image, so that no thumbnail is allocated.
+     *
+     * @param id   the id of the sub-image.
+     * @param tile the BGR tile to draw into, typically a submatrix; its size is the thumbnail's.
+     */
+    public void drawThumbnail(int id, Mat tile) {
+        // The feature only lives for the resize, so its buffer is recycled for the next tile
+        Mat feature = NativeMemory.BUFFERS.acquire(store.getFeatureHeight(), store.getFeatureWidth(), CvType.CV_8UC3);
+        feature.put(0, 0, store.getFeatures(), id * store.getFeatureLength(), store.getFeatureLength());
+        Imgproc.resize(feature, tile, tile.size());
+        NativeMemory.BUFFERS.recycle(feature);
+    }
+
+    /**
+     * Area-averages an image down to the feature dimensions of the store, like the kernels
+     * of a grid are, and copies its pixels into a primitive BGR feature vector.
+     *
+     * @param image the image to reduce.
+     * @return the feature bytes of the image.
+     */
+    byte[] extractFeature(Mat image) {
+        Mat reduced = NativeMemory.BUFFERS.acquire(store.getFeatureHeight(), store.getFeatureWidth(), CvType.CV_8UC3);
+        Imgproc.resize(image, reduced, reduced.size(), 0, 0, Imgproc.INTER_AREA);
+
+        byte[] feature = new byte[store.getFeatureLength()];
+        reduced.get(0, 0, feature);
+        NativeMemory.BUFFERS.recycle(reduced);
+        return feature;
+    }
+
+    /**
+     * @return the number of feature comparisons made by best-match queries against the
+     *         indexes of this snapshot.
+     */
+    public long getComparisonCount() {
+        long count = 0;
+        for (MatchIndex index : matchIndexes.values()) {
+            count += index.getComparisonCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of best-match queries answered by the match memos of this snapshot.
+     */
+    public long getMemoHitCount() {
+        long count = 0;
+        for (MatchMemo memo : matchMemos.values()) {
+            count += memo.getHitCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of best-match queries the match memos of this snapshot could not answer.
+     */
+    public long getMemoMissCount() {
+        long count = 0;
+        for (MatchMemo memo : matchMemos.values()) {
+            count += memo.getMissCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the recall of a backend's index, building the index if needed.
+     *
+     * @param backend the backend, or {@code null} for the default one.
+     * @return the fraction of queries answered with a true nearest feature, see {@link MatchIndex#getRecall()}.
+     */
+    public double getRecall(MatchBackend backend) {
+        return getMatchIndex(backend).getRecall();
+    }
+
+    /**
+     * @return the processed features of this snapshot; must be treated as read-only.
+     */
+    public FeatureStore getFeatures() {
+        return store;
+    }
+
+    /**
+     * Returns the position of an image in the whole library directory as it was listed when
+     * searched. Ranks increase with ids, so a {@link ShardCoordinator} that breaks ties
+     * between shards by the lowest rank picks the same image as a single index over the
+     * whole library, which picks the lowest id.
+     *
+     * @param id the id of the image.
+     * @return the rank of the image.
+     */
+    public int getRank(int id) {
+        return ranks != null ? ranks[id] : id;
+    }
+
+    /**
+     * @return the rank of every image by id, or {@code null} if the ids are the ranks.
+     */
+    int[] getRanks() {
+        return ranks;
+    }
+
+    /**
+     * @return the number of sub-images in this snapshot.
+     */
+    public int size() {
+        return store.size();
+    }
+}
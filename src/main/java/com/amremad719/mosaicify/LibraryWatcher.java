@@ -0,0 +1,141 @@
+package com.amremad719.mosaicify;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code LibraryWatcher} class keeps a {@link SubImagesLibrary} up to date with its
+ * directory while other programs add, replace or delete files in it. It watches the
+ * directory through a {@link WatchService} on a daemon thread and hands every batch of
+ * changed files to {@link SubImagesLibrary#applyChanges}, which decodes only those files
+ * and publishes a new {@link LibrarySnapshot}.
+ * <p>
+ * Events are collected until the directory has been quiet for {@value #SETTLE_MILLIS} ms,
+ * or for at most {@value #MAX_BATCH_MILLIS} ms while files keep arriving. A file that is
+ * still being written is therefore usually processed once it is complete, and a burst of
+ * new files costs one index rebuild rather than one per file. If the watch service drops
+ * events, the whole directory is searched again, which still only decodes the files that
+ * changed thanks to the library's index file.
+ */
+public class LibraryWatcher implements AutoCloseable {
+
+    /** How long the directory must be quiet before a batch of changes is applied. */
+    private static final long SETTLE_MILLIS = 500;
+
+    /** The longest changes are held back while the directory keeps changing. */
+    private static final long MAX_BATCH_MILLIS = 5000;
+
+    private final SubImagesLibrary library;
+    private final Path directory;
+    private final ProgressListener listener;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Starts watching a library directory.
+     *
+     * @param library   the library to keep up to date.
+     * @param directory the library directory.
+     * @param listener  receives the progress and the metrics of every update.
+     * @throws IOException if the directory cannot be watched.
+     */
+    public LibraryWatcher(SubImagesLibrary library, Path directory, ProgressListener listener) throws IOException {
+        this.library = library;
+        this.directory = directory;
+        this.listener = listener;
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        this.thread = new Thread(this::run, "mosaicify-library-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for changes and applies them in batches until the watcher is closed or the
+     * directory can no longer be watched.
+     */
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean overflow = false;
+                long batchStart = System.nanoTime();
+
+                // Keep collecting until the directory settles
+                while (key != null) {
+                    overflow |= collect(key, changed);
+                    if (!key.reset()) {
+                        // The directory was deleted or moved away
+                        return;
+                    }
+                    if (System.nanoTime() - batchStart > TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_MILLIS)) {
+                        break;
+                    }
+                    key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                try {
+                    if (overflow) {
+                        library.searchLibrary(listener);
+                    } else if (!changed.isEmpty()) {
+                        library.applyChanges(changed, listener);
+                    }
+                } catch (RuntimeException e) {
+                    // Keep watching; the next change or search retries the failed files
+                    e.printStackTrace();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed while waiting for events
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the files named by the pending events of a key to {@code changed}, skipping the
+     * library's own index file.
+     *
+     * @return {@code true} if events were lost.
+     */
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            Path file = directory.resolve((Path) event.context());
+            if (!LibraryIndexFile.isIndexFile(file)) {
+                changed.add(file);
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * Stops watching. An update that is in progress is interrupted and leaves the library
+     * as it was.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,114 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code MatPool} class recycles fixed-size native {@link Mat} buffers that would
+ * otherwise be allocated and freed once per tile, such as the features drawn as preview
+ * thumbnails, the atlas tiles shrunk to the render's tile size and the reduced library
+ * images. Buffers are pooled by size and type, at most {@code capacity} of each, and are
+ * registered with {@link NativeMemory} while pooled or in use.
+ * <p>
+ * The pool is safe to use from several threads. A buffer must be returned to the pool at
+ * most once, and not used afterwards.
+ */
+public class MatPool {
+
+    /** The default number of idle buffers kept of each size and type. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /** The idle buffers of every size and type; guarded by {@code this}. */
+    private final Map<Key, ArrayDeque<Mat>> idle = new HashMap<>();
+
+    private final int capacity;
+
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param capacity the number of idle buffers kept of each size and type.
+     */
+    public MatPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Takes a buffer of the given size and type from the pool, or allocates one if none is idle.
+     *
+     * @param rows    the number of rows.
+     * @param columns the number of columns.
+     * @param type    the OpenCV type, e.g. {@code CvType.CV_8UC3}.
+     * @return the buffer, whose pixels are left over from its last use.
+     */
+    public Mat acquire(int rows, int columns, int type) {
+        synchronized (this) {
+            ArrayDeque<Mat> buffers = idle.get(new Key(rows, columns, type));
+            if (buffers != null && !buffers.isEmpty()) {
+                reuses.incrementAndGet();
+                return buffers.pop();
+            }
+        }
+        allocations.incrementAndGet();
+        return NativeMemory.newMat(rows, columns, type);
+    }
+
+    /**
+     * Returns a buffer to the pool, or releases it if the pool already holds enough of its
+     * size. Does nothing for {@code null}.
+     *
+     * @param buffer the buffer, typically from {@link #acquire}; may have been resized since.
+     */
+    public void recycle(Mat buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (!buffer.empty() && !buffer.isSubmatrix()) {
+            synchronized (this) {
+                ArrayDeque<Mat> buffers = idle.computeIfAbsent(
+                        new Key(buffer.rows(), buffer.cols(), buffer.type()), k -> new ArrayDeque<>());
+                if (buffers.size() < capacity) {
+                    buffers.push(buffer);
+                    return;
+                }
+            }
+        }
+        NativeMemory.release(buffer);
+    }
+
+    /**
+     * Releases every idle buffer.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> buffers : idle.values()) {
+            for (Mat buffer : buffers) {
+                NativeMemory.release(buffer);
+            }
+        }
+        idle.clear();
+    }
+
+    /**
+     * @return the number of buffers handed out again instead of being allocated.
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * @return the number of buffers allocated because none of their size was idle.
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /** The size and type of a buffer. */
+    private record Key(int rows, int columns, int type) {
+    }
+}
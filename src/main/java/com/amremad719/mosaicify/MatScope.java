@@ -0,0 +1,87 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@code MatScope} releases the native {@link Mat}s created within a block when the
+ * block ends, however it ends, like try-with-resources does for streams:
+ * <pre>
+ * try (MatScope scope = new MatScope()) {
+ *     Mat image = scope.track(Imgcodecs.imread(path));
+ *     Mat reduced = scope.newMat();
+ *     Imgproc.resize(image, reduced, size);
+ *     return scope.keep(reduced);
+ * }
+ * </pre>
+ * {@code Mat}s are registered with {@link NativeMemory} and released in reverse order of
+ * creation, so submatrices go before their parents. A {@code Mat} the block hands on to
+ * its caller must be {@linkplain #keep(Mat) kept}. A scope belongs to one thread.
+ */
+public class MatScope implements AutoCloseable {
+
+    private final List<Mat> mats = new ArrayList<>();
+
+    /**
+     * Creates an empty {@code Mat} released with the scope.
+     *
+     * @return the new {@code Mat}.
+     */
+    public Mat newMat() {
+        return track(new Mat());
+    }
+
+    /**
+     * Allocates a {@code Mat} released with the scope.
+     *
+     * @param rows    the number of rows.
+     * @param columns the number of columns.
+     * @param type    the OpenCV type, e.g. {@code CvType.CV_8UC3}.
+     * @return the new {@code Mat}, with uninitialized pixels.
+     */
+    public Mat newMat(int rows, int columns, int type) {
+        return track(new Mat(rows, columns, type));
+    }
+
+    /**
+     * Releases a {@code Mat} allocated by OpenCV, e.g. by {@code imread} or {@code submat},
+     * with the scope.
+     *
+     * @param mat the {@code Mat} to release with the scope.
+     * @return {@code mat}, for chaining.
+     */
+    public Mat track(Mat mat) {
+        mats.add(NativeMemory.track(mat));
+        return mat;
+    }
+
+    /**
+     * Hands a {@code Mat} of the scope on to the caller, who becomes responsible for
+     * releasing it. It stays registered with {@link NativeMemory}.
+     *
+     * @param mat a {@code Mat} created or tracked by this scope.
+     * @return {@code mat}, for chaining.
+     */
+    public Mat keep(Mat mat) {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            if (mats.get(i) == mat) {
+                mats.remove(i);
+                break;
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Releases every {@code Mat} of the scope that was not kept, newest first.
+     */
+    @Override
+    public void close() {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            NativeMemory.release(mats.get(i));
+        }
+        mats.clear();
+    }
+}
@@ -0,0 +1,80 @@
+package com.amremad719.mosaicify;
+
+/**
+ * The {@code MatchBackend} enum lists the {@link MatchIndex} implementations that a
+ * {@link SubImagesLibrary} can use to find the best match for a kernel.
+ */
+public enum MatchBackend {
+
+    /** Compares every kernel against every library image. Kept as the reference implementation. */
+    BRUTE_FORCE {
+        @Override
+        public MatchIndex build(FeatureStore store, MatchOptions options) {
+            return new BruteForceIndex(store);
+        }
+    },
+
+    /** Exact nearest-neighbour search through a {@link VantagePointTree}. */
+    VP_TREE {
+        @Override
+        public MatchIndex build(FeatureStore store, MatchOptions options) {
+            return new VantagePointTree(store);
+        }
+    },
+
+    /**
+     * Mean-colour prefilter followed by full comparisons through a {@link CoarseToFineIndex};
+     * exact unless a probe count is given.
+     */
+    COARSE_TO_FINE {
+        @Override
+        public MatchIndex build(FeatureStore store, MatchOptions options) {
+            return new CoarseToFineIndex(store, options.probes());
+        }
+    },
+
+    /**
+     * Approximate search over compressed codes through an {@link IvfPqIndex}, for libraries
+     * of millions of images. Reaches the target recall unless a probe count is given.
+     */
+    IVF_PQ {
+        @Override
+        public MatchIndex build(FeatureStore store, MatchOptions options) {
+            return new IvfPqIndex(store, options);
+        }
+    },
+
+    /**
+     * Exact search of whole batches of kernels through a {@link GemmIndex}, which computes
+     * all distances of a batch with matrix multiplications in native code.
+     */
+    GEMM {
+        @Override
+        public MatchIndex build(FeatureStore store, MatchOptions options) {
+            return new GemmIndex(store);
+        }
+    };
+
+    /** Probe count asking a backend for exact results, or for the target recall where it cannot be exact. */
+    public static final int EXACT = 0;
+
+    /**
+     * Builds an index of this kind over the given store with the {@link MatchOptions#DEFAULT default options}.
+     *
+     * @param store the processed library features.
+     * @return the built index.
+     */
+    public MatchIndex build(FeatureStore store) {
+        return build(store, MatchOptions.DEFAULT);
+    }
+
+    /**
+     * Builds an index of this kind over the given store.
+     *
+     * @param store   the processed library features.
+     * @param options the probe count and target recall of approximate backends.
+     *                Exact backends ignore them.
+     * @return the built index.
+     */
+    public abstract MatchIndex build(FeatureStore store, MatchOptions options);
+}
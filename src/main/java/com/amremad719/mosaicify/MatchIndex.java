@@ -0,0 +1,69 @@
+package com.amremad719.mosaicify;
+
+/**
+ * A {@code MatchIndex} answers nearest-neighbour queries over the features held in a
+ * {@link FeatureStore}. Implementations are built once after the library has been processed
+ * and must be safe to query from several threads at the same time. An index that holds
+ * native memory frees it when {@linkplain #close() closed}.
+ */
+public interface MatchIndex extends AutoCloseable {
+
+    /**
+     * Finds the stored feature closest to the query in squared Euclidean distance.
+     * When several features are equally close, the one with the lowest id is returned.
+     *
+     * @param query the query feature bytes.
+     * @return the id of the nearest feature, or {@code -1} if the index is empty.
+     */
+    int nearest(byte[] query);
+
+    /**
+     * Finds the nearest stored feature of every query, with the same results as
+     * {@link #nearest(byte[])} for each of them. Indexes that answer a batch faster than its
+     * queries one at a time override this.
+     *
+     * @param queries the query feature bytes.
+     * @return the id of the nearest feature of every query, or {@code -1}s if the index is empty.
+     */
+    default int[] nearestAll(byte[][] queries) {
+        int[] matches = new int[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            matches[i] = nearest(queries[i]);
+        }
+        return matches;
+    }
+
+    /**
+     * @return {@code true} if {@link #nearestAll(byte[][])} is much faster than single
+     *         queries, so callers should gather their queries into batches.
+     */
+    default boolean prefersBatches() {
+        return false;
+    }
+
+    /**
+     * Returns the number of feature distances computed by all queries so far, which
+     * measures how much of the library a query has to look at.
+     *
+     * @return the running total of comparisons.
+     */
+    long getComparisonCount();
+
+    /**
+     * Returns the fraction of queries for which the index finds a feature as close as the
+     * true nearest one. Exact indexes always do; approximate ones measure it when built.
+     *
+     * @return the recall, between 0 and 1.
+     */
+    default double getRecall() {
+        return 1;
+    }
+
+    /**
+     * Frees the native memory of the index, once no query is running or will run on it.
+     * Indexes held entirely on the Java heap do nothing.
+     */
+    @Override
+    default void close() {
+    }
+}
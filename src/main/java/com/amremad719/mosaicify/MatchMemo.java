@@ -0,0 +1,162 @@
+package com.amremad719.mosaicify;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code MatchMemo} class remembers the best match found for kernel features, so that
+ * kernels that repeat, e.g. across the flat regions of a source or across renders of similar
+ * sources, are answered without searching the library again.
+ * <p>
+ * Features are looked up by their bytes divided by a quantization step. With a step of
+ * {@value #EXACT} only identical features share an entry, and the memo never changes a
+ * result. Larger steps also let near-identical features share one match, trading a little
+ * accuracy for more hits. That match is the one of the {@linkplain #representative(byte[])
+ * centre} of their quantization cell, which is searched for instead of whichever feature
+ * misses first, so the memo gives the same results whatever order the render threads, or
+ * earlier renders, reach a cell in.
+ * <p>
+ * The memo is safe to use from several render threads. It holds at most
+ * {@value #CAPACITY} features and is emptied once full.
+ */
+public class MatchMemo {
+
+    /** The quantization step that disables the memo. */
+    public static final int OFF = 0;
+
+    /** The quantization step that only reuses the matches of identical features. */
+    public static final int EXACT = 1;
+
+    /** The largest number of features remembered. */
+    private static final int CAPACITY = 1 << 16;
+
+    private final int step;
+    private final Map<Key, Integer> matches = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates an empty memo.
+     *
+     * @param step the quantization step, between {@value #EXACT} and 255.
+     */
+    public MatchMemo(int step) {
+        if (step < EXACT || step > 255) {
+            throw new IllegalArgumentException("Memo step must be in [1, 255]");
+        }
+        this.step = step;
+    }
+
+    /**
+     * Returns the match remembered for a feature.
+     *
+     * @param feature the feature bytes of a kernel.
+     * @return the id of the match, or {@code -1} if the feature is not remembered.
+     */
+    public int get(byte[] feature) {
+        Integer match = matches.get(new Key(quantize(feature)));
+        if (match == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        hits.incrementAndGet();
+        return match;
+    }
+
+    /**
+     * Remembers the match of a feature.
+     *
+     * @param feature the feature bytes of a kernel; must not be modified afterwards.
+     * @param match   the id of its best match.
+     */
+    public void put(byte[] feature, int match) {
+        // Start over rather than track recency, which would cost every lookup a write
+        if (matches.size() >= CAPACITY) {
+            matches.clear();
+        }
+        matches.put(new Key(quantize(feature)), match);
+    }
+
+    /**
+     * Returns the feature to search the library for when a feature misses, so that every
+     * feature of a quantization cell shares the match of the same feature. Each byte is
+     * moved to the middle of its step.
+     *
+     * @param feature the feature bytes of a kernel.
+     * @return the centre of the feature's quantization cell, or the feature itself when exact.
+     */
+    public byte[] representative(byte[] feature) {
+        if (step == EXACT) {
+            return feature;
+        }
+
+        byte[] centre = new byte[feature.length];
+        for (int i = 0; i < feature.length; i++) {
+            int low = (feature[i] & 0xFF) / step * step;
+            int high = Math.min(low + step - 1, 255);
+            centre[i] = (byte) ((low + high) / 2);
+        }
+        return centre;
+    }
+
+    /**
+     * @return the feature divided by the quantization step, or the feature itself when exact.
+     */
+    private byte[] quantize(byte[] feature) {
+        if (step == EXACT) {
+            return feature;
+        }
+
+        byte[] quantized = new byte[feature.length];
+        for (int i = 0; i < feature.length; i++) {
+            quantized[i] = (byte) ((feature[i] & 0xFF) / step);
+        }
+        return quantized;
+    }
+
+    /**
+     * @return the quantization step.
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @return the number of lookups answered by the memo.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to search the library.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * A feature compared by content; the bytes must not be modified once used as a key.
+     */
+    private static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && hash == key.hash && Arrays.equals(bytes, key.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
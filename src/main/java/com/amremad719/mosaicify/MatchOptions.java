@@ -0,0 +1,37 @@
+package com.amremad719.mosaicify;
+
+/**
+ * The {@code MatchOptions} record holds the accuracy settings used when a
+ * {@link MatchBackend} builds its index, and the {@link MatchMemo} placed in front of it.
+ * Exact backends ignore the probe count and target recall.
+ *
+ * @param probes       how many candidate groups an approximate backend examines per query,
+ *                     or {@link MatchBackend#EXACT} to let the backend choose: exact results
+ *                     where it can guarantee them, otherwise the fewest probes that reach
+ *                     {@code targetRecall}.
+ * @param targetRecall the fraction of queries an approximate backend should answer with the
+ *                     true nearest feature, between 0 and 1.
+ * @param memoStep     the quantization step of the match memo: {@link MatchMemo#OFF},
+ *                     {@link MatchMemo#EXACT} to reuse matches of identical kernels only,
+ *                     or up to 255 to also reuse them for near-identical kernels.
+ */
+public record MatchOptions(int probes, double targetRecall, int memoStep) {
+
+    /**
+     * Exact results where possible, 95% recall for backends that are always approximate,
+     * and an exact match memo.
+     */
+    public static final MatchOptions DEFAULT = new MatchOptions(MatchBackend.EXACT, 0.95, MatchMemo.EXACT);
+
+    public MatchOptions {
+        if (probes < 0) {
+            throw new IllegalArgumentException("Probe count must not be negative");
+        }
+        if (!(targetRecall > 0 && targetRecall <= 1)) {
+            throw new IllegalArgumentException("Target recall must be in (0, 1]");
+        }
+        if (memoStep < MatchMemo.OFF || memoStep > 255) {
+            throw new IllegalArgumentException("Memo step must be in [0, 255]");
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Core;
+import org.opencv.core.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The {@code MatchShardServer} class answers best-match queries against one shard of a
+ * sub-image library for a {@link ShardCoordinator}, so that a library too large for one
+ * process can be matched by several. It listens on a localhost TCP port and speaks the
+ * {@link ShardProtocol}; every connection is served on its own thread.
+ * <p>
+ * Run as a process of its own with:
+ * <pre>
+ * MatchShardServer --library &lt;dir&gt; [--shard INDEX/COUNT] [--kernel WxH] [--backend NAME]
+ *                  [--probes N] [--recall R] [--memo-step N] [--port N] [--watch]
+ *                  [--exit-with-parent]
+ * </pre>
+ * Once its library is loaded it prints {@value #READY_PREFIX} followed by the port it
+ * listens on, which is chosen by the system unless {@code --port} is given. That is the
+ * only line it prints to standard output; status and errors go to standard error.
+ */
+public class MatchShardServer implements AutoCloseable {
+
+    // Static block to load the OpenCV native library when the class is loaded
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /** Printed, followed by the port, once the worker accepts connections. */
+    public static final String READY_PREFIX = "Listening on port ";
+
+    private static final String USAGE = """
+            Usage: MatchShardServer --library <dir> [options]
+              --library <dir>     directory of sub-images used as tiles (required)
+              --shard INDEX/COUNT load only this shard of the directory (default: all of it)
+              --kernel WxH        sub-image kernel size used for matching (default 4x4)
+              --backend NAME      match index: BRUTE_FORCE, VP_TREE, COARSE_TO_FINE, IVF_PQ
+                                  or GEMM (default COARSE_TO_FINE)
+              --probes N          candidate groups examined per kernel by approximate backends
+              --recall R          target recall of IVF_PQ between 0 and 1 (default 0.95)
+              --memo-step N       quantization step of the match memo, 0 to disable (default 1)
+              --port N            port to listen on (default: any free port)
+              --watch             keep processing files added to, changed in or deleted from
+                                  this shard of the library
+              --exit-with-parent  exit when the process that started this one exits""";
+
+    private final SubImagesLibrary library;
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+
+    /**
+     * Starts serving a library on the loopback interface.
+     *
+     * @param library the loaded library shard to match against.
+     * @param port    the port to listen on, or 0 for any free port.
+     * @throws IOException if the port cannot be opened.
+     */
+    public MatchShardServer(SubImagesLibrary library, int port) throws IOException {
+        this.library = library;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+        this.acceptThread = new Thread(this::acceptConnections, "mosaicify-shard-server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed, serving each on its own thread.
+     */
+    private void acceptConnections() {
+        int count = 0;
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> serve(socket), "mosaicify-shard-connection-" + ++count);
+                connection.setDaemon(true);
+                connection.start();
+            } catch (SocketException e) {
+                // Closed while waiting for a connection
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of one coordinator until it disconnects.
+     */
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+
+            if (in.readInt() != ShardProtocol.MAGIC || in.readInt() != ShardProtocol.VERSION) {
+                throw new IOException("Unsupported shard protocol from " + socket.getRemoteSocketAddress());
+            }
+            LibrarySnapshot snapshot = library.snapshot();
+            try {
+                FeatureStore store = snapshot.getFeatures();
+                out.writeInt(ShardProtocol.MAGIC);
+                out.writeInt(ShardProtocol.VERSION);
+                out.writeInt(store.getFeatureWidth());
+                out.writeInt(store.getFeatureHeight());
+                out.writeInt(store.size());
+                out.writeDouble(snapshot.getRecall(null));
+            } finally {
+                snapshot.release();
+            }
+            out.flush();
+
+            while (true) {
+                byte request;
+                try {
+                    request = in.readByte();
+                } catch (EOFException e) {
+                    // The coordinator disconnected
+                    return;
+                }
+                if (request != ShardProtocol.MATCH) {
+                    throw new IOException("Unknown shard request " + request);
+                }
+                boolean readable = match(in, out);
+                out.flush();
+                if (!readable) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a batch of kernels and writes the best match of each in this shard, or an error
+     * if the request cannot be answered.
+     *
+     * @return {@code false} if the request was malformed and the rest of the stream cannot
+     *         be read, so the connection must be closed.
+     */
+    private boolean match(DataInputStream in, DataOutputStream out) throws IOException {
+        byte backendOrdinal = in.readByte();
+        int featureWidth = in.readInt();
+        int featureHeight = in.readInt();
+        int count = in.readInt();
+
+        // Check the sizes before allocating anything from them, in an order that cannot overflow
+        if (featureWidth < 1 || featureHeight < 1 || count < 0
+                || (long) featureWidth * featureHeight > ShardProtocol.MAX_BATCH_BYTES
+                || (long) featureWidth * featureHeight * 3 * count > ShardProtocol.MAX_BATCH_BYTES) {
+            error(out, "Request of " + count + " kernels of " + featureWidth + "x" + featureHeight
+                    + " features is out of range");
+            return false;
+        }
+        byte[][] features = new byte[count][featureWidth * featureHeight * 3];
+        for (byte[] feature : features) {
+            in.readFully(feature);
+        }
+
+        // Every request matches against the library as it is when the request arrives
+        LibrarySnapshot snapshot = library.snapshot();
+        try {
+            answer(out, snapshot, backendOrdinal, featureWidth, featureHeight, features);
+        } finally {
+            snapshot.release();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the best match of each kernel of a well-formed request in a snapshot of this
+     * shard, or an error if the request does not fit the shard.
+     */
+    private static void answer(DataOutputStream out, LibrarySnapshot snapshot, byte backendOrdinal,
+                               int featureWidth, int featureHeight, byte[][] features) throws IOException {
+        int count = features.length;
+        FeatureStore store = snapshot.getFeatures();
+        if (store.getFeatureWidth() != featureWidth || store.getFeatureHeight() != featureHeight) {
+            error(out, "Shard features are " + store.getFeatureWidth() + "x" + store.getFeatureHeight()
+                    + " but the request's are " + featureWidth + "x" + featureHeight);
+            return;
+        }
+        if (backendOrdinal != ShardProtocol.DEFAULT_BACKEND
+                && (backendOrdinal < 0 || backendOrdinal >= MatchBackend.values().length)) {
+            error(out, "Unknown match backend " + backendOrdinal);
+            return;
+        }
+
+        MatchBackend backend = backendOrdinal == ShardProtocol.DEFAULT_BACKEND
+                ? null : MatchBackend.values()[backendOrdinal];
+        long comparisonsAtStart = snapshot.getComparisonCount();
+        int[] matches = new int[count];
+        if (store.size() == 0) {
+            Arrays.fill(matches, -1);
+        } else {
+            matches = snapshot.findBestMatchIds(features, backend);
+        }
+
+        out.writeByte(ShardProtocol.OK);
+        out.writeLong(snapshot.getComparisonCount() - comparisonsAtStart);
+        byte[] all = store.getFeatures();
+        for (int i = 0; i < count; i++) {
+            int match = matches[i];
+            if (match == -1) {
+                out.writeLong(-1);
+                continue;
+            }
+            out.writeLong(store.squaredDistance(features[i], match));
+            out.writeInt(snapshot.getRank(match));
+            out.writeUTF(store.getPath(match));
+            out.write(all, match * store.getFeatureLength(), store.getFeatureLength());
+        }
+    }
+
+    /**
+     * Answers a request with an error message.
+     */
+    private static void error(DataOutputStream out, String message) throws IOException {
+        out.writeByte(ShardProtocol.ERROR);
+        out.writeUTF(message);
+    }
+
+    /**
+     * Stops accepting connections. Connections that are open are served until they close.
+     */
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parses the command line, loads the library shard and serves it until killed.
+     *
+     * @param args command-line arguments, see the class documentation.
+     */
+    public static void main(String[] args) {
+        SubImagesLibrary library = new SubImagesLibrary();
+        Path libraryDirectory = null;
+        MatchBackend matchBackend = MatchBackend.COARSE_TO_FINE;
+        int probes = MatchOptions.DEFAULT.probes();
+        double targetRecall = MatchOptions.DEFAULT.targetRecall();
+        int memoStep = MatchOptions.DEFAULT.memoStep();
+        int port = 0;
+        boolean watch = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--watch")) {
+                    watch = true;
+                    continue;
+                }
+                if (arg.equals("--exit-with-parent")) {
+                    ProcessHandle.current().parent().ifPresent(parent -> parent.onExit().thenRun(() -> System.exit(0)));
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+
+                String value = args[++i];
+                switch (arg) {
+                    case "--library" -> libraryDirectory = Path.of(value);
+                    case "--shard" -> library.setShard(LibraryShard.parse(value));
+                    case "--kernel" -> library.setKernelSubDivisionDim(parseSize(value));
+                    case "--backend" -> matchBackend = MatchBackend.valueOf(value.toUpperCase(Locale.ROOT));
+                    case "--probes" -> probes = Integer.parseInt(value);
+                    case "--recall" -> targetRecall = Double.parseDouble(value);
+                    case "--memo-step" -> memoStep = Integer.parseInt(value);
+                    case "--port" -> port = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (libraryDirectory == null) {
+                throw new IllegalArgumentException("No library directory given");
+            }
+            if (!library.setLibraryDirectory(libraryDirectory)) {
+                throw new IllegalArgumentException("Library directory " + libraryDirectory + " does not exist");
+            }
+            library.setMatchBackend(matchBackend);
+            library.setMatchOptions(new MatchOptions(probes, targetRecall, memoStep));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            if (watch) {
+                library.startWatching(ProgressListener.NONE);
+            }
+            library.searchLibrary(ProgressListener.NONE);
+
+            MatchShardServer server = new MatchShardServer(library, port);
+            // Standard output only carries the ready line, which the coordinator parses
+            System.err.println("Serving " + library.size() + " library images");
+            System.out.println(READY_PREFIX + server.getPort());
+            server.acceptThread.join();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses a size written as {@code WIDTHxHEIGHT}.
+     */
+    private static Size parseSize(String value) {
+        String[] parts = value.toLowerCase(Locale.ROOT).split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected WIDTHxHEIGHT but got " + value);
+        }
+        return new Size(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+}
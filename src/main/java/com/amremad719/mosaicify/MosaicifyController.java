@@ -17,13 +17,16 @@ import javafx.scene.image.ImageView;
 import javafx.scene.image.Image;
 import javafx.stage.FileChooser;
 import javafx.stage.Window;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
 import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -35,11 +38,11 @@ import java.util.ResourceBundle;
  * Controller class for Mosaicify's JavaFX GUI.
  * Manages user interactions, GUI updates, and delegates logic to the Engine.
  */
-public class MosaicifyController implements Initializable {
+public class MosaicifyController implements Initializable, ProgressListener {
 
     // --- FXML UI Controls ---
 
-    @FXML public CheckBox resizeOutputCheckBox;
+    @FXML public CheckBox resizeOutputCheckBox, liveLibraryCheckBox;
     @FXML public ProgressBar progressBar;
     @FXML public Label
             progressStatusLabel,
@@ -117,6 +120,65 @@ public class MosaicifyController implements Initializable {
         Platform.runLater(() -> progressStatusLabel.setText(status));
     }
 
+    /**
+     * Forwards progress from the engine and the library to the progress bar.
+     * @param progress a value between 0 and 1 representing progress
+     */
+    @Override
+    public void onProgress(double progress) {
+        updateProgressBar(progress);
+    }
+
+    /**
+     * Forwards status messages from the engine and the library to the status label.
+     * @param status the status string to show
+     */
+    @Override
+    public void onStatus(String status) {
+        updateProgresStatusLabel(status);
+    }
+
+    /**
+     * Shows the metrics of the last finished render or library search as the status label's tooltip,
+     * they are also recorded as JFR events for profiling.
+     * @param metrics the finished job's metrics
+     */
+    @Override
+    public void onMetrics(PipelineMetrics metrics) {
+        String summary = metrics.summary();
+        Platform.runLater(() -> progressStatusLabel.setTooltip(new Tooltip(summary)));
+    }
+
+    /**
+     * Shows a preview or a finished mosaic in the image view, from any thread.
+     * @param image the image to show, see {@link #toImage(Mat)}
+     */
+    public void showImage(Image image) {
+        Platform.runLater(() -> imageView.setImage(image));
+    }
+
+    /**
+     * Converts an OpenCV image to a JavaFX image for the image view, rotating portrait
+     * images clockwise like the selected image.
+     * @param mat the BGR image to convert
+     * @return the JavaFX image
+     */
+    public static Image toImage(Mat mat) {
+        try (MatScope scope = new MatScope()) {
+            Mat oriented = mat;
+            if (mat.height() > mat.width()) {
+                oriented = scope.newMat();
+                Core.rotate(mat, oriented, Core.ROTATE_90_CLOCKWISE);
+            }
+
+            // BMP is uncompressed, so encoding costs little more than a copy
+            MatOfByte encoded = new MatOfByte();
+            scope.track(encoded);
+            Imgcodecs.imencode(".bmp", oriented, encoded);
+            return new Image(new ByteArrayInputStream(encoded.toArray()));
+        }
+    }
+
     /**
      * Displays an error alert dialog with a header and message.
      * @param header short header
@@ -141,6 +203,7 @@ public class MosaicifyController implements Initializable {
         subImageKernelHeightSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 10000, 4, 1));
 
         ChangeListener<Integer> listener = (obs, oldVal, newVal) -> {
+            engine.cancelPreview();
             Size size = new Size(subImageKernelWidthSpinner.getValue(), subImageKernelHeightSpinner.getValue());
             engine.subImagesLibrary.setKernelSubDivisionDim(size);
         };
@@ -160,6 +223,7 @@ public class MosaicifyController implements Initializable {
 
         mosaicSubDivisionWidthSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
             if (isUpdatingSpinners) return;
+            engine.cancelPreview();
 
             double aspectRatio = imageView.getImage().getWidth() / imageView.getImage().getHeight();
             int height = (int) (newVal / aspectRatio);
@@ -182,6 +246,7 @@ public class MosaicifyController implements Initializable {
 
         mosaicSubDivisionHeightSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
             if (isUpdatingSpinners) return;
+            engine.cancelPreview();
 
             double aspectRatio = imageView.getImage().getWidth() / imageView.getImage().getHeight();
             int width = (int) (newVal * aspectRatio);
@@ -212,6 +277,7 @@ public class MosaicifyController implements Initializable {
 
         outputResolutionWidthSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
             if (isUpdatingSpinners || selectedImage == null) return;
+            engine.cancelPreview();
 
             double aspectRatio = imageView.getImage().getWidth() / imageView.getImage().getHeight();
             int height = (int) (newVal / aspectRatio);
@@ -232,6 +298,7 @@ public class MosaicifyController implements Initializable {
 
         outputResolutionHeightSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
             if (isUpdatingSpinners || selectedImage == null) return;
+            engine.cancelPreview();
 
             double aspectRatio = imageView.getImage().getWidth() / imageView.getImage().getHeight();
             int width = (int) (newVal * aspectRatio);
@@ -254,13 +321,12 @@ public class MosaicifyController implements Initializable {
 
     /**
      * Handles the "Generate Mosaic" button click event.
-     * Starts the Engine's photomosaic generation.
-     * @throws IOException if processing fails
+     * Queues the photomosaic generation on the Engine, which previews it in the image view.
      */
     @FXML
-    protected void onGenerateMosaicButton() throws IOException {
+    protected void onGenerateMosaicButton() {
         progressStatusLabel.setText("Generating photomosaic...");
-        engine.start();
+        engine.generateMosaic();
     }
 
     /**
@@ -269,6 +335,7 @@ public class MosaicifyController implements Initializable {
      */
     @FXML
     protected void onResizeOutputCheckBox() {
+        engine.cancelPreview();
         outputResolutionHBox.setDisable(!resizeOutputCheckBox.isSelected());
     }
 
@@ -296,11 +363,58 @@ public class MosaicifyController implements Initializable {
         subImagesLibraryFileCountLabel.setText(selectedDirectory.toFile().list().length + "");
 
         if (Files.isDirectory(selectedDirectory)) {
-            boolean state = engine.subImagesLibrary.setLibraryDirectory(selectedDirectory);
-            engine.subImagesLibrary.update();
+            engine.subImagesLibrary.setLibraryDirectory(selectedDirectory);
+            updateLiveLibrary();
+            searchLibrary();
         }
 
         SubImageKernelDimentionsGrid.setDisable(false);
+        liveLibraryCheckBox.setDisable(false);
+    }
+
+    /**
+     * Handles the "Watch Library for Changes" checkbox toggle.
+     * Starts or stops live mode, searching the library once when it starts so that
+     * changes made while it was off are picked up too.
+     */
+    @FXML
+    protected void onLiveLibraryCheckBox() {
+        updateLiveLibrary();
+        if (liveLibraryCheckBox.isSelected()) {
+            searchLibrary();
+        }
+    }
+
+    /**
+     * Starts or stops watching the library directory to match the live library checkbox.
+     */
+    private void updateLiveLibrary() {
+        if (!liveLibraryCheckBox.isSelected()) {
+            engine.subImagesLibrary.stopWatching();
+            return;
+        }
+
+        try {
+            engine.subImagesLibrary.startWatching(this);
+        } catch (IOException e) {
+            e.printStackTrace();
+            liveLibraryCheckBox.setSelected(false);
+            showError("Cannot watch the library directory.", e.getMessage());
+        }
+    }
+
+    /**
+     * Queues a search of the library directory, keeping the library settings locked
+     * until it completes.
+     */
+    private void searchLibrary() {
+        librarySettingsVBox.setDisable(true);
+        engine.submitLibrarySearch(this, null).whenComplete((count, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+            }
+            Platform.runLater(() -> librarySettingsVBox.setDisable(false));
+        });
     }
 
     /**
@@ -320,16 +434,18 @@ public class MosaicifyController implements Initializable {
 
         if (chosenImage == null) return;
 
+        engine.cancelPreview();
         selectedImage = chosenImage;
 
         engine.setSelecetedImage(selectedImage);
         Image image = new Image(selectedImage.toURI().toString());
 
         // Rotate portrait images
-        Mat OpenCVImage = Imgcodecs.imread(selectedImage.toString());
+        Mat OpenCVImage = NativeMemory.track(Imgcodecs.imread(selectedImage.toString()));
         if (OpenCVImage.height() > OpenCVImage.width()) {
             image = rotateImageClockwise(image, 90);
         }
+        NativeMemory.release(OpenCVImage);
 
         imageView.setImage(image);
         outputResolutionWidthSpinner.getValueFactory().setValue((int) image.getWidth());
@@ -0,0 +1,148 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The {@code NativeMemory} class accounts for the native buffers behind OpenCV {@link Mat}s.
+ * A {@code Mat}'s pixels live outside the Java heap, so the garbage collector neither sees
+ * their size nor hurries to free them: a {@code Mat} that is dropped without
+ * {@link Mat#release()} keeps its pixels until it happens to be finalized, which large
+ * renders outpace by gigabytes. The engine and library therefore create their {@code Mat}s
+ * through this class, or {@linkplain #track(Mat) register} those OpenCV returns, and free
+ * them with {@link #release(Mat)} or a {@link MatScope} as soon as they are done.
+ * <p>
+ * Registered {@code Mat}s are held weakly, so the counts cover exactly those that are
+ * neither released nor garbage collected yet; a count that keeps growing across jobs is a
+ * leak. Submatrices share their parent's pixels and count as {@code Mat}s but not as bytes.
+ * Short-lived submatrices, such as the tile a render composites into, are better released
+ * in a {@code finally} block without being registered at all.
+ * <p>
+ * The counters are safe to use from any thread. The registry is split into stripes by
+ * identity hash, so that threads creating and releasing {@code Mat}s at the same time
+ * rarely wait on each other.
+ */
+public final class NativeMemory {
+
+    /** The number of registry stripes; a power of two. */
+    private static final int STRIPES = 64;
+
+    /**
+     * Every registered {@code Mat} that has not been released, in the stripe selected by its
+     * identity hash; each stripe is guarded by itself.
+     */
+    @SuppressWarnings("unchecked")
+    private static final Map<Mat, Boolean>[] live = new Map[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            live[i] = new WeakHashMap<>();
+        }
+    }
+
+    /** Small scratch buffers shared by the engine and library, see {@link MatPool}. */
+    public static final MatPool BUFFERS = new MatPool(MatPool.DEFAULT_CAPACITY);
+
+    private NativeMemory() {
+    }
+
+    /**
+     * Creates an empty {@code Mat}, e.g. the destination of a resize, and registers it.
+     *
+     * @return the new {@code Mat}.
+     */
+    public static Mat newMat() {
+        return track(new Mat());
+    }
+
+    /**
+     * Allocates a {@code Mat} and registers it.
+     *
+     * @param rows    the number of rows.
+     * @param columns the number of columns.
+     * @param type    the OpenCV type, e.g. {@code CvType.CV_8UC3}.
+     * @return the new {@code Mat}, with uninitialized pixels.
+     */
+    public static Mat newMat(int rows, int columns, int type) {
+        return track(new Mat(rows, columns, type));
+    }
+
+    /**
+     * Registers a {@code Mat} allocated by OpenCV, e.g. by {@code imread} or {@code submat}.
+     *
+     * @param mat the {@code Mat} to account for.
+     * @return {@code mat}, for chaining.
+     */
+    public static Mat track(Mat mat) {
+        Map<Mat, Boolean> stripe = stripeOf(mat);
+        synchronized (stripe) {
+            stripe.put(mat, Boolean.TRUE);
+        }
+        return mat;
+    }
+
+    /**
+     * Frees the pixels of a {@code Mat}, unless other {@code Mat}s still share them, and
+     * stops accounting for it. Does nothing for {@code null}.
+     *
+     * @param mat the {@code Mat} to release, which must not be used afterwards.
+     */
+    public static void release(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        Map<Mat, Boolean> stripe = stripeOf(mat);
+        synchronized (stripe) {
+            stripe.remove(mat);
+        }
+        mat.release();
+    }
+
+    /**
+     * @return the registry stripe a {@code Mat} belongs to.
+     */
+    private static Map<Mat, Boolean> stripeOf(Mat mat) {
+        // Spread the identity hash so that its low bits are not all that pick the stripe
+        int hash = System.identityHashCode(mat);
+        return live[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * @return the number of registered {@code Mat}s that are neither released nor collected.
+     */
+    public static int getLiveMatCount() {
+        int count = 0;
+        for (Map<Mat, Boolean> stripe : live) {
+            synchronized (stripe) {
+                count += stripe.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of pixel bytes held by registered {@code Mat}s that are neither
+     *         released nor collected, not counting submatrices.
+     */
+    public static long getLiveBytes() {
+        // Copy first, so the sizes are read without blocking allocating threads
+        List<Mat> mats = new ArrayList<>();
+        for (Map<Mat, Boolean> stripe : live) {
+            synchronized (stripe) {
+                mats.addAll(stripe.keySet());
+            }
+        }
+
+        long bytes = 0;
+        for (Mat mat : mats) {
+            if (!mat.isSubmatrix()) {
+                bytes += mat.total() * mat.elemSize();
+            }
+        }
+        return bytes;
+    }
+}
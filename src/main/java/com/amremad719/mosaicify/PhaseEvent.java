@@ -0,0 +1,26 @@
+package com.amremad719.mosaicify;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event covering one phase of a render or library search, such as
+ * decoding the source image or writing the result. The event's duration is the wall-clock
+ * time of the phase. Phases that run once per tile are not recorded individually; their
+ * totals are part of the {@link JobEvent}.
+ */
+@Name("com.amremad719.mosaicify.Phase")
+@Label("Mosaicify Phase")
+@Category("Mosaicify")
+@Description("A phase of a photomosaic render or library search")
+public class PhaseEvent extends jdk.jfr.Event {
+
+    @Label("Job")
+    @Description("The render or library search the phase belongs to")
+    String job;
+
+    @Label("Phase")
+    String phase;
+}
@@ -0,0 +1,430 @@
+package com.amremad719.mosaicify;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The {@code PipelineMetrics} class collects timing and throughput figures for a single
+ * render or library search: the time spent in each {@link Phase}, the number of tiles or
+ * images handled, the feature comparisons made while matching and the tile cache hit ratio.
+ * <p>
+ * Each phase is also recorded as a {@link PhaseEvent} and the whole job as a
+ * {@link JobEvent}, so a JDK Flight Recorder recording shows where a render spent its time.
+ * Once finished, the metrics are handed to {@link ProgressListener#onMetrics(PipelineMetrics)}.
+ * <p>
+ * Comparisons and cache statistics are read from counters shared by every job, so they
+ * also include the work of other jobs running at the same time.
+ */
+public class PipelineMetrics {
+
+    /**
+     * The phases of a render or library search.
+     */
+    public enum Phase {
+        /** Decoding the source image, unless an earlier render already decoded it. */
+        DECODE,
+        /** Reducing kernels and searching the library for their best match. */
+        MATCH,
+        /** Placing the matched tiles, including tile decodes on cache misses. */
+        COMPOSITE,
+        /** Encoding and writing the output. */
+        WRITE,
+        /** Listing the library directory and loading its index file. */
+        SCAN,
+        /** Decoding and reducing new or changed library images. */
+        EXTRACT,
+        /** Rewriting the library index file and tile atlas. */
+        SAVE,
+        /** Building the match index over the library. */
+        INDEX;
+
+        /**
+         * @return the lower-case name of the phase.
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final String job;
+    private final String unit;
+    private final JobEvent event = new JobEvent();
+    private final long startTime = System.nanoTime();
+    private final Map<Phase, LongAdder> phaseTimes = new EnumMap<>(Phase.class);
+    private final LongAdder items = new LongAdder();
+    private final LongAdder reusedItems = new LongAdder();
+
+    private LongSupplier comparisonCounter = () -> 0;
+    private TileCache tileCache = null;
+    private LibrarySnapshot library = null;
+    private long memoHitsAtStart;
+    private long memoMissesAtStart;
+    private long comparisonsAtStart;
+    private long hitsAtStart;
+    private long missesAtStart;
+    private long atlasReadsAtStart;
+    private double matchRecall = 1;
+
+    // Set by finish()
+    private long elapsed;
+    private long comparisons;
+    private double tileCacheHitRatio = Double.NaN;
+    private double matchMemoHitRatio = Double.NaN;
+    private long tileCacheBytes;
+    private long atlasTiles;
+    private long residentBytes;
+    private int nativeMats;
+    private long nativeBytes;
+
+    /**
+     * Starts collecting metrics for a job.
+     *
+     * @param job  a short description of the job, e.g. the source file name.
+     * @param unit the plural name of the items the job handles, e.g. {@code "tiles"}.
+     */
+    public PipelineMetrics(String job, String unit) {
+        this.job = job;
+        this.unit = unit;
+        for (Phase phase : Phase.values()) {
+            phaseTimes.put(phase, new LongAdder());
+        }
+        event.begin();
+    }
+
+    /**
+     * Counts the comparisons made while matching during this job.
+     *
+     * @param counter the running total of comparisons made by the match index.
+     */
+    public void trackComparisons(LongSupplier counter) {
+        this.comparisonCounter = counter;
+        this.comparisonsAtStart = counter.getAsLong();
+    }
+
+    /**
+     * Records the recall of the match index used by this job, see {@link MatchIndex#getRecall()}.
+     *
+     * @param matchRecall the fraction of queries answered with a true nearest feature.
+     */
+    public void setMatchRecall(double matchRecall) {
+        this.matchRecall = matchRecall;
+    }
+
+    /**
+     * Counts the hits and misses of a tile cache during this job.
+     *
+     * @param tileCache the cache to track.
+     */
+    public void trackTileCache(TileCache tileCache) {
+        this.tileCache = tileCache;
+        this.hitsAtStart = tileCache.getHitCount();
+        this.missesAtStart = tileCache.getMissCount();
+        this.atlasReadsAtStart = tileCache.getAtlasReadCount();
+    }
+
+    /**
+     * Counts the hits and misses of the match memos of a library snapshot during this job.
+     *
+     * @param library the snapshot whose memos to track.
+     */
+    public void trackMatchMemo(LibrarySnapshot library) {
+        this.library = library;
+        this.memoHitsAtStart = library.getMemoHitCount();
+        this.memoMissesAtStart = library.getMemoMissCount();
+    }
+
+    /**
+     * Starts timing a coarse phase. Closing the returned timer adds its duration to the
+     * phase and records a {@link PhaseEvent}.
+     *
+     * @param phase the phase that starts.
+     * @return the running timer.
+     */
+    public Timer phase(Phase phase) {
+        return new Timer(phase);
+    }
+
+    /**
+     * Adds time spent in a phase that is too fine-grained to record as events,
+     * such as matching a single tile. Safe to call from any number of threads.
+     *
+     * @param phase     the phase the time was spent in.
+     * @param startTime the {@link System#nanoTime()} at which the work started.
+     */
+    public void addTime(Phase phase, long startTime) {
+        phaseTimes.get(phase).add(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Counts items handled by the job. Safe to call from any number of threads.
+     *
+     * @param count the number of items.
+     */
+    public void addItems(long count) {
+        items.add(count);
+    }
+
+    /**
+     * Counts items whose result was reused from an earlier job instead of being computed again.
+     *
+     * @param count the number of reused items.
+     */
+    public void addReusedItems(long count) {
+        reusedItems.add(count);
+    }
+
+    /**
+     * Stops the clock, takes the final readings and records the {@link JobEvent}.
+     *
+     * @return these metrics.
+     */
+    public PipelineMetrics finish() {
+        elapsed = System.nanoTime() - startTime;
+        comparisons = comparisonCounter.getAsLong() - comparisonsAtStart;
+        if (tileCache != null) {
+            long hits = tileCache.getHitCount() - hitsAtStart;
+            long lookups = hits + tileCache.getMissCount() - missesAtStart;
+            tileCacheHitRatio = lookups == 0 ? Double.NaN : (double) hits / lookups;
+            tileCacheBytes = tileCache.getMemoryUsed();
+            atlasTiles = tileCache.getAtlasReadCount() - atlasReadsAtStart;
+        }
+        if (library != null) {
+            long hits = library.getMemoHitCount() - memoHitsAtStart;
+            long lookups = hits + library.getMemoMissCount() - memoMissesAtStart;
+            matchMemoHitRatio = lookups == 0 ? Double.NaN : (double) hits / lookups;
+        }
+        residentBytes = residentMemory();
+        nativeMats = NativeMemory.getLiveMatCount();
+        nativeBytes = NativeMemory.getLiveBytes();
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.job = job;
+            event.items = getItems();
+            event.reusedItems = getReusedItems();
+            event.itemsPerSecond = getItemsPerSecond();
+            event.comparisons = comparisons;
+            event.comparisonsPerSecond = getComparisonsPerSecond();
+            event.matchRecall = matchRecall;
+            event.matchTime = getPhaseTime(Phase.MATCH);
+            event.compositeTime = getPhaseTime(Phase.COMPOSITE);
+            event.tileCacheHitRatio = tileCacheHitRatio;
+            event.matchMemoHitRatio = matchMemoHitRatio;
+            event.tileCacheBytes = tileCacheBytes;
+            event.atlasTiles = atlasTiles;
+            event.residentBytes = residentBytes;
+            event.nativeMats = nativeMats;
+            event.nativeBytes = nativeBytes;
+            event.commit();
+        }
+        return this;
+    }
+
+    /**
+     * Reads the resident set size of the process, which unlike the JVM's own memory
+     * figures includes the native buffers allocated by OpenCV.
+     *
+     * @return the resident memory in bytes, or {@code -1} where the platform does not expose it.
+     */
+    private static long residentMemory() {
+        try {
+            List<String> status = Files.readAllLines(Path.of("/proc/self/status"));
+            for (String line : status) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available outside Linux
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of items handled.
+     */
+    public long getItems() {
+        return items.sum();
+    }
+
+    /**
+     * @return the number of items whose result was reused from an earlier job.
+     */
+    public long getReusedItems() {
+        return reusedItems.sum();
+    }
+
+    /**
+     * @return the fraction of the items handled whose result was reused, or 0 if there were none.
+     */
+    public double getReuseRatio() {
+        long itemCount = getItems();
+        return itemCount == 0 ? 0 : (double) getReusedItems() / itemCount;
+    }
+
+    /**
+     * @return the wall-clock duration of the job in nanoseconds.
+     */
+    public long getElapsedTime() {
+        return elapsed;
+    }
+
+    /**
+     * @return the time spent in a phase in nanoseconds, summed over all threads.
+     */
+    public long getPhaseTime(Phase phase) {
+        return phaseTimes.get(phase).sum();
+    }
+
+    /**
+     * @return the number of feature comparisons made while matching.
+     */
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    /**
+     * @return the recall of the match index used by the job; 1 for exact indexes.
+     */
+    public double getMatchRecall() {
+        return matchRecall;
+    }
+
+    /**
+     * @return the items handled per second of wall-clock time.
+     */
+    public double getItemsPerSecond() {
+        return perSecond(getItems());
+    }
+
+    /**
+     * @return the feature comparisons made per second of wall-clock time.
+     */
+    public double getComparisonsPerSecond() {
+        return perSecond(comparisons);
+    }
+
+    /**
+     * @return the fraction of tile lookups served by the cache, or {@code NaN} if there were none.
+     */
+    public double getTileCacheHitRatio() {
+        return tileCacheHitRatio;
+    }
+
+    /**
+     * @return the fraction of match lookups answered by the match memo, or {@code NaN} if there were none.
+     */
+    public double getMatchMemoHitRatio() {
+        return matchMemoHitRatio;
+    }
+
+    /**
+     * @return the number of tiles read from the tile atlas instead of decoded.
+     */
+    public long getAtlasTiles() {
+        return atlasTiles;
+    }
+
+    /**
+     * @return the resident memory of the process in bytes when the job finished, or {@code -1}.
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return the number of OpenCV {@code Mat}s alive when the job finished, see
+     *         {@link NativeMemory#getLiveMatCount()}.
+     */
+    public int getNativeMats() {
+        return nativeMats;
+    }
+
+    /**
+     * @return the native pixel bytes of the {@code Mat}s alive when the job finished, see
+     *         {@link NativeMemory#getLiveBytes()}.
+     */
+    public long getNativeBytes() {
+        return nativeBytes;
+    }
+
+    private double perSecond(long count) {
+        return elapsed == 0 ? 0 : count / (elapsed / 1e9);
+    }
+
+    /**
+     * Formats the metrics on a single line, listing only the phases the job went through.
+     *
+     * @return the summary.
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder(String.format("%s: %d %s in %.2f s (%.0f %s/s)",
+                job, getItems(), unit, elapsed / 1e9, getItemsPerSecond(), unit));
+
+        if (getReusedItems() > 0) {
+            summary.append(String.format(", %d %s reused from an earlier render (%.1f%%)",
+                    getReusedItems(), unit, getReuseRatio() * 100));
+        }
+        if (comparisons > 0) {
+            summary.append(String.format(", %d comparisons (%.0f/s)", comparisons, getComparisonsPerSecond()));
+        }
+        if (matchRecall < 1) {
+            summary.append(String.format(", match recall %.1f%%", matchRecall * 100));
+        }
+        for (Phase phase : Phase.values()) {
+            long time = getPhaseTime(phase);
+            if (time > 0) {
+                summary.append(String.format(", %s %.0f ms", phase.label(), time / 1e6));
+            }
+        }
+        if (!Double.isNaN(matchMemoHitRatio)) {
+            summary.append(String.format(", match memo hit ratio %.1f%%", matchMemoHitRatio * 100));
+        }
+        if (!Double.isNaN(tileCacheHitRatio)) {
+            summary.append(String.format(", tile cache hit ratio %.1f%% (%d MB)",
+                    tileCacheHitRatio * 100, tileCacheBytes >> 20));
+        }
+        if (atlasTiles > 0) {
+            summary.append(String.format(", %d tiles read from the atlas", atlasTiles));
+        }
+        if (residentBytes >= 0) {
+            summary.append(String.format(", resident memory %d MB", residentBytes >> 20));
+        }
+        summary.append(String.format(", %d live Mats (%d MB)", nativeMats, nativeBytes >> 20));
+
+        return summary.toString();
+    }
+
+    /**
+     * Times a coarse phase and records it as a {@link PhaseEvent} when closed.
+     */
+    public class Timer implements AutoCloseable {
+        private final Phase phase;
+        private final long startTime = System.nanoTime();
+        private final PhaseEvent event = new PhaseEvent();
+
+        private Timer(Phase phase) {
+            this.phase = phase;
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            addTime(phase, startTime);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.job = job;
+                event.phase = phase.label();
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.amremad719.mosaicify;
+
+/**
+ * A {@code ProgressListener} receives progress and status updates from long-running
+ * operations such as mosaic rendering and library searches. The GUI forwards them to its
+ * progress bar and status label; headless callers may print or ignore them.
+ * Implementations must be safe to call from worker threads.
+ */
+public interface ProgressListener {
+
+    /** A listener that ignores every update. */
+    ProgressListener NONE = new ProgressListener() {
+        @Override
+        public void onProgress(double progress) {
+        }
+
+        @Override
+        public void onStatus(String status) {
+        }
+    };
+
+    /**
+     * Reports how far the operation has progressed.
+     *
+     * @param progress a value between 0 and 1.
+     */
+    void onProgress(double progress);
+
+    /**
+     * Reports a human-readable status message.
+     *
+     * @param status the status to show.
+     */
+    void onStatus(String status);
+
+    /**
+     * Receives the metrics of a render or library search once it has finished.
+     * Ignored unless overridden.
+     *
+     * @param metrics the finished job's metrics.
+     */
+    default void onMetrics(PipelineMetrics metrics) {
+    }
+}
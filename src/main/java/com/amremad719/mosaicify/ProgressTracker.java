@@ -0,0 +1,145 @@
+package com.amremad719.mosaicify;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code ProgressTracker} class counts the completed items of a long-running loop,
+ * such as the tiles of a render or the images of a library search, and publishes the
+ * count to a {@link ProgressListener} at a fixed frame rate.
+ * <p>
+ * Worker threads only increment a lock-free counter, so reporting costs nothing on the hot
+ * path and never floods the JavaFX event queue, however many items there are. The status
+ * message is built once per published frame rather than once per item. Headless callers
+ * can read the counters directly instead of, or as well as, listening.
+ */
+public class ProgressTracker implements AutoCloseable {
+
+    /** The default number of updates published per second. */
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    /** Single daemon thread publishing the updates of every tracker. */
+    private static final ScheduledExecutorService PUBLISHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mosaicify-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ProgressListener listener;
+    private final String action;
+    private final String unit;
+    private final long total;
+    private final long initial;
+    private final long startTime = System.nanoTime();
+    private final LongAdder completed = new LongAdder();
+    private final ScheduledFuture<?> publication;
+
+    /** The count last sent to the listener; guarded by {@code this}. */
+    private long published = -1;
+    /** Set once the final update has been sent; guarded by {@code this}. */
+    private boolean closed = false;
+
+    /**
+     * Creates a tracker publishing {@value #DEFAULT_FRAME_RATE} times per second.
+     *
+     * @see #ProgressTracker(ProgressListener, String, String, long, long, int)
+     */
+    public ProgressTracker(ProgressListener listener, String action, String unit, long total, long initial) {
+        this(listener, action, unit, total, initial, DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * Creates a tracker and starts publishing its progress.
+     *
+     * @param listener  receives the progress, e.g. {@code "Rendered 10/200 tiles (50 tiles/s)"}.
+     * @param action    the verb that starts the status message.
+     * @param unit      the plural name of the counted items.
+     * @param total     the number of items expected.
+     * @param initial   items already complete, e.g. taken from a cache; they count towards the
+     *                  progress but not towards the rate.
+     * @param frameRate the number of updates published per second.
+     */
+    public ProgressTracker(ProgressListener listener, String action, String unit, long total, long initial,
+                           int frameRate) {
+        this.listener = listener;
+        this.action = action;
+        this.unit = unit;
+        this.total = total;
+        this.initial = initial;
+        completed.add(initial);
+
+        // Nobody is listening, so only keep the counters
+        this.publication = listener == ProgressListener.NONE ? null : PUBLISHER.scheduleAtFixedRate(
+                this::publish, 0, 1_000_000_000L / frameRate, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts one completed item. Safe to call from any number of threads.
+     */
+    public void advance() {
+        completed.increment();
+    }
+
+    /**
+     * @return the number of items completed so far.
+     */
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * @return the number of items expected.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the fraction of items completed, between 0 and 1.
+     */
+    public double getProgress() {
+        return total == 0 ? 1 : (double) getCompleted() / total;
+    }
+
+    /**
+     * @return the items completed per second since the tracker was created, not counting
+     *         the initially complete ones.
+     */
+    public double getRate() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds == 0 ? 0 : (getCompleted() - initial) / seconds;
+    }
+
+    /**
+     * Sends the current count to the listener if it changed since the last frame.
+     */
+    private synchronized void publish() {
+        long count = getCompleted();
+        if (closed || count == published) {
+            return;
+        }
+        published = count;
+
+        listener.onProgress(getProgress());
+        listener.onStatus(action + " " + count + "/" + total + " " + unit
+                + " (" + (int) getRate() + " " + unit + "/s)");
+    }
+
+    /**
+     * Stops publishing after sending the final count, so that the listener always sees
+     * where the loop ended and no update arrives after this method returns.
+     */
+    @Override
+    public void close() {
+        if (publication != null) {
+            publication.cancel(false);
+            publish();
+        }
+        synchronized (this) {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code RenderCache} class keeps the work of earlier renders of a source image, so
+ * that rendering it again with different settings only redoes what those settings affect.
+ * For each recently rendered source it holds:
+ * <ul>
+ *     <li>the decoded source image, reused until the file changes on disk;</li>
+ *     <li>the reduced kernel features of every grid it was tiled with;</li>
+ *     <li>the best match of every tile, per grid, match backend and library snapshot.</li>
+ * </ul>
+ * Tile matches do not depend on the output resolution, so a render that only changes the
+ * output resolution re-composites the cached matches without decoding or matching again.
+ * A new grid reuses the decoded source, and a new library snapshot reuses the features.
+ * <p>
+ * Sources and grids are evicted in least-recently-used order. The cache is safe to use
+ * from several render threads; cached images and arrays are shared and must only be read.
+ * Every state handed out counts as a use of its decoded image until it is
+ * {@linkplain SourceState#release() released}, and the image is freed once the state has
+ * left the cache and its last render has released it.
+ */
+public class RenderCache {
+
+    /** The default number of source images kept. */
+    public static final int DEFAULT_SOURCE_COUNT = 2;
+
+    /** The number of grids kept per source image. */
+    private static final int GRID_COUNT = 8;
+
+    /** Access-ordered map of the cached sources; guarded by {@code this}. */
+    private final LinkedHashMap<Path, SourceState> sources = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The maximum number of sources kept; guarded by {@code this}. */
+    private int sourceCount;
+
+    /**
+     * Creates a cache keeping up to {@code sourceCount} source images.
+     *
+     * @param sourceCount the number of source images kept, or 0 to keep none.
+     */
+    public RenderCache(int sourceCount) {
+        setSourceCount(sourceCount);
+    }
+
+    /**
+     * Returns the render state of a source image, decoding the image if it is not cached
+     * or has changed on disk since it was cached.
+     *
+     * @param source the source image.
+     * @return the state of the source, which the caller must {@linkplain SourceState#release() release}
+     *         once its render is done; its decoded image is shared and must not be modified.
+     * @throws IOException if the source cannot be read.
+     */
+    public SourceState getSource(Path source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        long modifiedTime = attributes.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+            SourceState state = sources.get(source);
+            if (state != null && state.modifiedTime == modifiedTime && state.fileSize == attributes.size()) {
+                state.acquire();
+                return state;
+            }
+        }
+
+        // Decode outside the lock so renders of other sources are not held up
+        Mat image = NativeMemory.track(Imgcodecs.imread(source.toString()));
+        if (image.empty()) {
+            NativeMemory.release(image);
+            throw new IOException("Failed to read image " + source);
+        }
+        SourceState state = new SourceState(image, modifiedTime, attributes.size());
+
+        // The cache keeps the use the state was created with, the caller gets another
+        state.acquire();
+        synchronized (this) {
+            SourceState replaced = sources.put(source, state);
+            if (replaced != null) {
+                replaced.release();
+            }
+            evict();
+        }
+        return state;
+    }
+
+    /**
+     * Decodes a source image without caching it, e.g. a frame of a sequence that is only
+     * rendered once.
+     *
+     * @param source the source image.
+     * @return the state of the source, which no other render shares and which the caller
+     *         must {@linkplain SourceState#release() release}.
+     * @throws IOException if the source cannot be read.
+     */
+    public static SourceState decode(Path source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        Mat image = NativeMemory.track(Imgcodecs.imread(source.toString()));
+        if (image.empty()) {
+            NativeMemory.release(image);
+            throw new IOException("Failed to read image " + source);
+        }
+        return new SourceState(image, attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    /**
+     * Sets the number of source images kept, evicting sources immediately if needed.
+     *
+     * @param sourceCount the number of source images kept, or 0 to keep none.
+     */
+    public synchronized void setSourceCount(int sourceCount) {
+        if (sourceCount < 0) {
+            throw new IllegalArgumentException("Source count must not be negative");
+        }
+        this.sourceCount = sourceCount;
+        evict();
+    }
+
+    /**
+     * Removes every cached source.
+     */
+    public synchronized void clear() {
+        for (SourceState state : sources.values()) {
+            state.release();
+        }
+        sources.clear();
+    }
+
+    /**
+     * Drops least recently used sources until the cache fits its source count. The image of
+     * an evicted source is freed right away, or by the last render still reading it.
+     */
+    private void evict() {
+        Iterator<SourceState> iterator = sources.values().iterator();
+        while (sources.size() > sourceCount && iterator.hasNext()) {
+            iterator.next().release();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Identifies the tiling of a source: its grid and the size kernels are reduced to.
+     *
+     * @param columns       the number of tiles across.
+     * @param rows          the number of tiles down.
+     * @param featureWidth  the width of a reduced kernel.
+     * @param featureHeight the height of a reduced kernel.
+     */
+    public record Grid(int columns, int rows, int featureWidth, int featureHeight) {
+
+        /**
+         * @return the number of tiles in the grid.
+         */
+        public int size() {
+            return columns * rows;
+        }
+    }
+
+    /**
+     * The cached work of one source image, valid for the file as it was when decoded.
+     */
+    public static class SourceState {
+        private final Mat image;
+        private final long modifiedTime;
+        private final long fileSize;
+
+        /** The cache holding the state, if it does, plus every render that has not released it. */
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        /** Access-ordered map of the tilings computed so far; guarded by {@code this}. */
+        private final LinkedHashMap<Grid, GridState> grids = new LinkedHashMap<>(16, 0.75f, true);
+
+        private SourceState(Mat image, long modifiedTime, long fileSize) {
+            this.image = image;
+            this.modifiedTime = modifiedTime;
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * @return the decoded source image; shared, must not be modified.
+         */
+        public Mat getImage() {
+            return image;
+        }
+
+        /**
+         * Counts another use of the state; only called while the state is in use already.
+         */
+        private void acquire() {
+            users.incrementAndGet();
+        }
+
+        /**
+         * Ends a use of the state, once the render that got it from {@link RenderCache#getSource}
+         * or {@link RenderCache#decode} is done. The decoded image is freed when the state is
+         * no longer cached and no other render is using it.
+         */
+        public void release() {
+            if (users.decrementAndGet() == 0) {
+                NativeMemory.release(image);
+            }
+        }
+
+        /**
+         * Reduces the kernel of every tile of a grid to its feature. Kernels are the grid
+         * cells of the source, so rather than resizing each cell on its own, the whole grid
+         * is area-averaged with a single resize to {@code columns × featureWidth} by
+         * {@code rows × featureHeight} pixels and read back with a single copy. Cell borders
+         * fall on pixel borders of that resize, so each feature is the area average of its
+         * cell alone. The features are not cached, see {@link #putFeatures}.
+         *
+         * @param grid the grid.
+         * @return one feature per tile in row-major order.
+         * @throws IOException if the source has fewer pixels than the grid has tiles across or down.
+         */
+        public byte[][] extractFeatures(Grid grid) throws IOException {
+            int kernelWidth = image.width() / grid.columns();
+            int kernelHeight = image.height() / grid.rows();
+            if (kernelWidth < 1 || kernelHeight < 1) {
+                throw new IOException("Source image is smaller than the mosaic grid");
+            }
+
+            // Pixels right of and below the last whole cell belong to no kernel
+            byte[] pixels;
+            try (MatScope scope = new MatScope()) {
+                Mat cells = scope.track(image.submat(
+                        new Rect(0, 0, kernelWidth * grid.columns(), kernelHeight * grid.rows())));
+                Mat reduced = scope.newMat();
+                Imgproc.resize(cells, reduced, new Size(grid.columns() * grid.featureWidth(),
+                        grid.rows() * grid.featureHeight()), 0, 0, Imgproc.INTER_AREA);
+                pixels = new byte[(int) reduced.total() * reduced.channels()];
+                reduced.get(0, 0, pixels);
+            }
+
+            // Split the reduced image into one feature per cell
+            int featureRow = grid.featureWidth() * 3;
+            int imageRow = grid.columns() * featureRow;
+            byte[][] features = new byte[grid.size()][];
+            for (int i = 0; i < grid.rows(); i++) {
+                for (int j = 0; j < grid.columns(); j++) {
+                    byte[] feature = new byte[grid.featureHeight() * featureRow];
+                    for (int y = 0; y < grid.featureHeight(); y++) {
+                        System.arraycopy(pixels, (i * grid.featureHeight() + y) * imageRow + j * featureRow,
+                                feature, y * featureRow, featureRow);
+                    }
+                    features[i * grid.columns() + j] = feature;
+                }
+            }
+            return features;
+        }
+
+        /**
+         * Returns the kernel features of a grid.
+         *
+         * @param grid the grid.
+         * @return one feature per tile in row-major order, or {@code null} if not cached.
+         */
+        public synchronized byte[][] getFeatures(Grid grid) {
+            GridState state = grids.get(grid);
+            return state != null ? state.features : null;
+        }
+
+        /**
+         * Returns the tile matches of a grid against a library snapshot.
+         *
+         * @param grid         the grid.
+         * @param library      the snapshot the tiles were matched against.
+         * @param matchBackend the backend the tiles were matched with.
+         * @return the id of the match of every tile in row-major order, or {@code null}
+         *         if not cached.
+         */
+        public synchronized int[] getMatches(Grid grid, LibrarySnapshot library, MatchBackend matchBackend) {
+            GridState state = grids.get(grid);
+            if (state == null || state.library != library) {
+                return null;
+            }
+            return state.matches.get(matchBackend);
+        }
+
+        /**
+         * Stores the complete features of a grid, e.g. of a render whose tiles were matched
+         * elsewhere.
+         *
+         * @param grid     the grid.
+         * @param features one feature per tile; must not be modified afterwards.
+         */
+        public synchronized void putFeatures(Grid grid, byte[][] features) {
+            if (grids.get(grid) == null) {
+                grids.put(grid, new GridState(features));
+                if (grids.size() > GRID_COUNT) {
+                    grids.remove(grids.keySet().iterator().next());
+                }
+            }
+        }
+
+        /**
+         * Stores the complete features and tile matches of a grid. Matches against an older
+         * library snapshot are dropped, since they can never be used again.
+         *
+         * @param grid         the grid.
+         * @param features     one feature per tile; must not be modified afterwards.
+         * @param library      the snapshot the tiles were matched against.
+         * @param matchBackend the backend the tiles were matched with.
+         * @param matches      the id of the match of every tile; must not be modified afterwards.
+         */
+        public synchronized void putMatches(Grid grid, byte[][] features, LibrarySnapshot library,
+                                            MatchBackend matchBackend, int[] matches) {
+            GridState state = grids.get(grid);
+            if (state == null) {
+                state = new GridState(features);
+                grids.put(grid, state);
+                if (grids.size() > GRID_COUNT) {
+                    grids.remove(grids.keySet().iterator().next());
+                }
+            }
+            if (state.library != library) {
+                state.library = library;
+                state.matches.clear();
+            }
+            state.matches.put(matchBackend, matches);
+        }
+    }
+
+    /**
+     * The features of one grid and its matches against the latest library snapshot.
+     */
+    private static class GridState {
+        private final byte[][] features;
+        private LibrarySnapshot library;
+        private final Map<MatchBackend, int[]> matches = new HashMap<>();
+
+        private GridState(byte[][] features) {
+            this.features = features;
+        }
+    }
+}
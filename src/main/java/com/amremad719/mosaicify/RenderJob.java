@@ -0,0 +1,45 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Size;
+
+import java.nio.file.Path;
+
+/**
+ * The {@code RenderJob} record holds every parameter needed to render one photomosaic,
+ * so that a render does not depend on the state of the GUI.
+ *
+ * @param source           the source image to turn into a mosaic.
+ * @param output           the file the mosaic is written to.
+ * @param outputSize       the resolution the source is resized to before tiling,
+ *                         or {@code null} to keep its own resolution.
+ * @param subDivisionCount the number of tiles across and down the mosaic grid.
+ * @param threadCount      the number of threads rendering the grid of this job.
+ * @param matchBackend     the index tiles are matched with, or {@code null} for the library's default.
+ */
+public record RenderJob(Path source, Path output, Size outputSize, Size subDivisionCount, int threadCount,
+                        MatchBackend matchBackend) {
+
+    /**
+     * Creates a job that matches tiles with the library's default backend.
+     */
+    public RenderJob(Path source, Path output, Size outputSize, Size subDivisionCount, int threadCount) {
+        this(source, output, outputSize, subDivisionCount, threadCount, null);
+    }
+
+    /**
+     * Builds the default output path for a source image, adding a {@code _Photomosaic}
+     * suffix before the file extension.
+     *
+     * @param source the source image.
+     * @return the path of the mosaic next to the source image.
+     */
+    public static Path defaultOutputPath(Path source) {
+        // Parse file name and extension to build output file name
+        String fileName = source.toString();
+        int dotIndex = fileName.lastIndexOf('.');
+        String baseName = (dotIndex != -1) ? fileName.substring(0, dotIndex) : fileName;
+        String extension = (dotIndex != -1) ? fileName.substring(dotIndex) : "";
+
+        return Path.of(baseName + "_Photomosaic" + extension);
+    }
+}
@@ -0,0 +1,466 @@
+package com.amremad719.mosaicify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code ShardCoordinator} class matches kernels against a library that is split across
+ * several {@link MatchShardServer} processes. Each batch of kernels is scattered to every
+ * shard at once, and the best match of each kernel is gathered from the shards' answers:
+ * the one with the lowest squared distance, or the lowest rank in the whole library on a
+ * tie, which is the image a single index over the whole library would pick.
+ * <p>
+ * The coordinator holds no library of its own. The matches of a batch come back as a small
+ * {@link LibrarySnapshot} holding only the library images that were matched, which renders
+ * composite from like any other snapshot. The coordinator is safe to use from several
+ * render threads; batches sent to the same shard are answered one after the other.
+ */
+public class ShardCoordinator implements AutoCloseable {
+
+    /** Options of the snapshots of matched images, which are only read, never searched. */
+    private static final MatchOptions MATCHED_OPTIONS =
+            new MatchOptions(MatchBackend.EXACT, MatchOptions.DEFAULT.targetRecall(), MatchMemo.OFF);
+
+    /** The number of a worker's last output lines kept to explain why it failed. */
+    private static final int OUTPUT_LINES_KEPT = 20;
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final List<Process> workers = new ArrayList<>();
+    private final ExecutorService scatter;
+    private final AtomicLong comparisons = new AtomicLong();
+    private final int featureWidth;
+    private final int featureHeight;
+
+    /** Set once {@link #close()} stops the workers, whose exit is then expected. */
+    private volatile boolean closed = false;
+
+    /**
+     * Connects to running shard workers. Every worker must have been started with the same
+     * kernel size.
+     *
+     * @param addresses the address of every shard worker.
+     * @throws IOException if a worker cannot be reached, or the workers disagree on the kernel size.
+     */
+    public ShardCoordinator(List<InetSocketAddress> addresses) throws IOException {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No shards given");
+        }
+
+        try {
+            for (InetSocketAddress address : addresses) {
+                connections.add(new Connection(address));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        featureWidth = connections.get(0).featureWidth;
+        featureHeight = connections.get(0).featureHeight;
+        for (Connection connection : connections) {
+            if (connection.featureWidth != featureWidth || connection.featureHeight != featureHeight) {
+                close();
+                throw new IOException("Shard " + connection.address + " was started with another kernel size");
+            }
+        }
+
+        scatter = Executors.newFixedThreadPool(connections.size(), runnable -> {
+            Thread thread = new Thread(runnable, "mosaicify-shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts {@code count} shard workers on this machine, each loading its shard of a library,
+     * and connects to them. The workers run in this JVM's runtime with its class path and
+     * exit with it, or when the coordinator is closed. Their error output goes to this
+     * process's; their other output is only shown if a worker fails.
+     *
+     * @param count      the number of shards to split the library into.
+     * @param workerArgs the options every worker is started with, see {@link MatchShardServer};
+     *                   at least {@code --library}.
+     * @return the connected coordinator.
+     * @throws IOException if a worker cannot be started or exits before it is ready.
+     */
+    public static ShardCoordinator launch(int count, List<String> workerArgs) throws IOException {
+        List<Process> processes = new ArrayList<>();
+        List<WorkerOutput> outputs = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            // Start every worker first, so that they load their shards in parallel
+            for (int i = 0; i < count; i++) {
+                List<String> command = workerCommand();
+                command.addAll(List.of("--shard", new LibraryShard(i, count).toString(),
+                        "--port", "0", "--exit-with-parent"));
+                command.addAll(workerArgs);
+                processes.add(new ProcessBuilder(command)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start());
+            }
+
+            for (int i = 0; i < count; i++) {
+                WorkerOutput output = new WorkerOutput(processes.get(i));
+                outputs.add(output);
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), output.awaitPort(i)));
+            }
+        } catch (IOException e) {
+            processes.forEach(Process::destroy);
+            throw e;
+        }
+
+        ShardCoordinator coordinator;
+        try {
+            coordinator = new ShardCoordinator(addresses);
+        } catch (IOException e) {
+            processes.forEach(Process::destroy);
+            throw e;
+        }
+        coordinator.workers.addAll(processes);
+
+        // A worker that dies while the coordinator still needs it explains why
+        for (int i = 0; i < count; i++) {
+            int shard = i;
+            WorkerOutput output = outputs.get(i);
+            processes.get(i).onExit().thenAccept(process -> {
+                if (!coordinator.closed) {
+                    System.err.println("Shard worker " + shard + " exited with status " + process.exitValue()
+                            + output.tail());
+                }
+            });
+        }
+        return coordinator;
+    }
+
+    /**
+     * @return the command starting a {@link MatchShardServer} with this JVM's runtime,
+     *         module or class path and native library path.
+     */
+    private static List<String> workerCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            command.addAll(List.of("--add-modules", "jdk.incubator.vector"));
+        }
+
+        String modulePath = System.getProperty("jdk.module.path");
+        if (modulePath != null && MatchShardServer.class.getModule().isNamed()) {
+            command.addAll(List.of("-p", modulePath, "-m",
+                    MatchShardServer.class.getModule().getName() + "/" + MatchShardServer.class.getName()));
+        } else {
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), MatchShardServer.class.getName()));
+        }
+        return command;
+    }
+
+    /**
+     * Finds the best match of every kernel of a batch across all shards.
+     *
+     * @param features the feature of every kernel, with the shards' feature size.
+     * @param backend  the backend the shards search with, or {@code null} for their default.
+     * @return the matched images and the id of every kernel's match among them.
+     * @throws IOException           if a shard cannot be reached or no shard has any image.
+     * @throws CancellationException if the calling thread is interrupted while waiting.
+     */
+    public Matches match(byte[][] features, MatchBackend backend) throws IOException {
+        // Scatter the batch to every shard
+        List<Future<ShardAnswer>> answers = new ArrayList<>();
+        for (Connection connection : connections) {
+            answers.add(scatter.submit(() -> connection.match(features, backend)));
+        }
+
+        // Gather the answers, breaking ties by the lowest rank like a single index breaks them by the lowest id
+        long[] bestDistances = new long[features.length];
+        ShardAnswer[] bestAnswers = new ShardAnswer[features.length];
+        Arrays.fill(bestDistances, Long.MAX_VALUE);
+        for (Future<ShardAnswer> future : answers) {
+            ShardAnswer answer = await(future);
+            comparisons.addAndGet(answer.comparisons);
+            for (int i = 0; i < features.length; i++) {
+                long distance = answer.distances[i];
+                if (distance != -1 && (distance < bestDistances[i] || (distance == bestDistances[i]
+                        && answer.ranks[i] < bestAnswers[i].ranks[i]))) {
+                    bestDistances[i] = distance;
+                    bestAnswers[i] = answer;
+                }
+            }
+        }
+
+        // Collect the distinct matched images into a snapshot of their own
+        FeatureStore store = new FeatureStore(featureWidth, featureHeight);
+        Map<String, Integer> ids = new HashMap<>();
+        int[] matches = new int[features.length];
+        for (int i = 0; i < features.length; i++) {
+            ShardAnswer answer = bestAnswers[i];
+            if (answer == null) {
+                throw new IOException("Failed to find a match for a kernel");
+            }
+            byte[] feature = answer.features[i];
+            matches[i] = ids.computeIfAbsent(answer.paths[i], path -> store.add(path, feature));
+        }
+
+        return new Matches(new LibrarySnapshot(store, MatchBackend.BRUTE_FORCE, MATCHED_OPTIONS), matches);
+    }
+
+    /**
+     * Waits for the answer of one shard.
+     */
+    private static ShardAnswer await(Future<ShardAnswer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // The shard still reads its whole answer, which keeps its connection usable
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Match cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns an empty snapshot with the shards' feature size, from which renders can
+     * reduce their kernels before matching them on the shards.
+     *
+     * @return the empty snapshot.
+     */
+    public LibrarySnapshot emptySnapshot() {
+        return new LibrarySnapshot(new FeatureStore(featureWidth, featureHeight), MatchBackend.BRUTE_FORCE,
+                MATCHED_OPTIONS);
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return the number of library images across all shards when they were connected.
+     */
+    public long size() {
+        long size = 0;
+        for (Connection connection : connections) {
+            size += connection.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the lowest recall of the shards' default match indexes, see {@link MatchIndex#getRecall()}.
+     */
+    public double getRecall() {
+        double recall = 1;
+        for (Connection connection : connections) {
+            recall = Math.min(recall, connection.recall);
+        }
+        return recall;
+    }
+
+    /**
+     * @return the number of feature comparisons the shards made for this coordinator.
+     */
+    public long getComparisonCount() {
+        return comparisons.get();
+    }
+
+    /**
+     * Disconnects from the shards and stops the workers started by {@link #launch}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (scatter != null) {
+            scatter.shutdownNow();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        workers.forEach(Process::destroy);
+    }
+
+    /**
+     * The matches of a batch of kernels.
+     *
+     * @param library the matched library images; only these, not the whole library.
+     * @param ids     the id of the match of every kernel in {@code library}.
+     */
+    public record Matches(LibrarySnapshot library, int[] ids) {
+    }
+
+    /**
+     * The answer of one shard to a batch; the path and feature of kernels without a match are {@code null}.
+     */
+    private record ShardAnswer(long comparisons, long[] distances, int[] ranks, String[] paths, byte[][] features) {
+    }
+
+    /**
+     * The standard output of a worker process, which is drained so that the worker never
+     * blocks on a full pipe, keeping only its last lines.
+     */
+    private static class WorkerOutput {
+        private final BufferedReader reader;
+
+        /** The last lines of output; guarded by itself. */
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+
+        WorkerOutput(Process process) {
+            this.reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        }
+
+        /**
+         * Waits until the worker prints the port it listens on, then keeps draining its
+         * output in the background.
+         *
+         * @return the port.
+         * @throws IOException if the worker exits before it is ready.
+         */
+        int awaitPort(int shard) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                keep(line);
+                if (line.startsWith(MatchShardServer.READY_PREFIX)) {
+                    int port = Integer.parseInt(line.substring(MatchShardServer.READY_PREFIX.length()).trim());
+
+                    Thread drain = new Thread(() -> {
+                        try {
+                            String next;
+                            while ((next = reader.readLine()) != null) {
+                                keep(next);
+                            }
+                        } catch (IOException e) {
+                            // The worker exited
+                        }
+                    }, "mosaicify-shard-output-" + shard);
+                    drain.setDaemon(true);
+                    drain.start();
+                    return port;
+                }
+            }
+            throw new IOException("Shard worker " + shard + " exited before it was ready" + tail());
+        }
+
+        private void keep(String line) {
+            synchronized (lines) {
+                if (lines.size() == OUTPUT_LINES_KEPT) {
+                    lines.removeFirst();
+                }
+                lines.addLast(line);
+            }
+        }
+
+        /**
+         * @return the last lines of output, each on a line of its own, or an empty string.
+         */
+        String tail() {
+            synchronized (lines) {
+                StringBuilder tail = new StringBuilder();
+                for (String line : lines) {
+                    tail.append(System.lineSeparator()).append("  ").append(line);
+                }
+                return tail.toString();
+            }
+        }
+    }
+
+    /**
+     * A connection to one shard worker.
+     */
+    private static class Connection {
+        private final InetSocketAddress address;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final int featureWidth;
+        private final int featureHeight;
+        private final int size;
+        private final double recall;
+
+        Connection(InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.socket = new Socket(address.getAddress(), address.getPort());
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            out.writeInt(ShardProtocol.MAGIC);
+            out.writeInt(ShardProtocol.VERSION);
+            out.flush();
+            if (in.readInt() != ShardProtocol.MAGIC || in.readInt() != ShardProtocol.VERSION) {
+                socket.close();
+                throw new IOException("Unsupported shard protocol from " + address);
+            }
+            this.featureWidth = in.readInt();
+            this.featureHeight = in.readInt();
+            this.size = in.readInt();
+            this.recall = in.readDouble();
+        }
+
+        /**
+         * Sends a batch and reads the shard's answer.
+         */
+        synchronized ShardAnswer match(byte[][] features, MatchBackend backend) throws IOException {
+            out.writeByte(ShardProtocol.MATCH);
+            out.writeByte(backend != null ? backend.ordinal() : ShardProtocol.DEFAULT_BACKEND);
+            out.writeInt(featureWidth);
+            out.writeInt(featureHeight);
+            out.writeInt(features.length);
+            for (byte[] feature : features) {
+                out.write(feature);
+            }
+            out.flush();
+
+            if (in.readByte() != ShardProtocol.OK) {
+                throw new IOException("Shard " + address + " failed: " + in.readUTF());
+            }
+            long comparisons = in.readLong();
+            long[] distances = new long[features.length];
+            int[] ranks = new int[features.length];
+            String[] paths = new String[features.length];
+            byte[][] matched = new byte[features.length][];
+            for (int i = 0; i < features.length; i++) {
+                distances[i] = in.readLong();
+                if (distances[i] != -1) {
+                    ranks[i] = in.readInt();
+                    paths[i] = in.readUTF();
+                    matched[i] = new byte[featureWidth * featureHeight * 3];
+                    in.readFully(matched[i]);
+                }
+            }
+            return new ShardAnswer(comparisons, distances, ranks, paths, matched);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
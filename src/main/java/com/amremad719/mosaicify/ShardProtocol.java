@@ -0,0 +1,57 @@
+package com.amremad719.mosaicify;
+
+/**
+ * Constants of the protocol spoken between a {@link ShardCoordinator} and its
+ * {@link MatchShardServer} workers over a localhost TCP connection. All values are written
+ * with {@link java.io.DataOutputStream}, i.e. big-endian, and strings as modified UTF-8.
+ * <p>
+ * After connecting, the coordinator sends {@link #MAGIC} and {@link #VERSION}. The worker
+ * answers with the same two values, followed by its library's feature width, feature
+ * height and image count as ints, and the recall of its default match index as a double.
+ * <p>
+ * Then, for as long as the connection stays open, the coordinator sends requests:
+ * <pre>
+ * byte  MATCH
+ * byte  backend ordinal, or DEFAULT_BACKEND
+ * int   feature width, int feature height
+ * int   kernel count
+ * bytes the features of every kernel, one after the other
+ * </pre>
+ * and the worker answers each one with either {@link #ERROR} and a message, or:
+ * <pre>
+ * byte  OK
+ * long  the number of feature comparisons the request took
+ * per kernel:
+ *   long  the squared distance of the best match in the shard, or -1 if the shard is empty
+ *   int   the rank of the best match in the whole library, unless the distance is -1
+ *   UTF   the file path of the best match, unless the distance is -1
+ *   bytes the feature of the best match, unless the distance is -1
+ * </pre>
+ * The rank, see {@link LibrarySnapshot#getRank(int)}, breaks ties between shards the way a
+ * single index over the whole library would. A request whose feature size or kernel count
+ * is out of range cannot be read past, so the worker closes the connection after the
+ * {@link #ERROR} answer.
+ */
+final class ShardProtocol {
+
+    static final int MAGIC = 0x4D534D50; // "MSMP"
+    static final int VERSION = 2;
+
+    /** The largest number of feature bytes in one request. */
+    static final long MAX_BATCH_BYTES = 1L << 30;
+
+    /** Requests the best match of a batch of kernels. */
+    static final byte MATCH = 1;
+
+    /** Marks a request the worker could answer. */
+    static final byte OK = 0;
+
+    /** Marks a request the worker could not answer; followed by a message. */
+    static final byte ERROR = 1;
+
+    /** Selects the worker library's default backend. */
+    static final byte DEFAULT_BACKEND = -1;
+
+    private ShardProtocol() {
+    }
+}
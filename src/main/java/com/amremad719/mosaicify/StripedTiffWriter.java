@@ -0,0 +1,194 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The {@code StripedTiffWriter} class writes an 8-bit RGB image to a baseline,
+ * uncompressed TIFF file one horizontal strip at a time. Because the strips are not
+ * compressed, their sizes and offsets are known in advance and the whole header is written
+ * up front, so each strip can be streamed to disk and discarded as soon as it is rendered.
+ * This keeps memory bounded by a single strip no matter how large the image is.
+ */
+public class StripedTiffWriter implements Closeable {
+
+    /** Classic TIFF addresses the file with 32-bit offsets. */
+    private static final long MAX_FILE_SIZE = 0xFFFFFFFFL;
+
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final int ENTRY_COUNT = 13;
+
+    /** The size a strip is copied out of native memory in, so a strip is never held twice on the heap. */
+    private static final int CHUNK_BYTES = 4 << 20;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int rowsPerStrip;
+
+    /** The number of image rows written so far. */
+    private int rowsWritten = 0;
+
+    /** The RGB copy of a strip, reused for every strip and freed on close. */
+    private final Mat rgb = NativeMemory.newMat();
+
+    /** Whole rows of {@link #rgb}, reused for every chunk of every strip. */
+    private final byte[] chunk;
+
+    /**
+     * Creates the file and writes the TIFF header describing the whole image.
+     *
+     * @param file         the file to write.
+     * @param width        the image width in pixels.
+     * @param height       the image height in pixels.
+     * @param rowsPerStrip the number of rows in every strip except possibly the last.
+     * @throws IOException if the file cannot be written or the image is too large for TIFF.
+     * @throws IllegalArgumentException if a dimension is not positive or a strip would exceed 2 GiB.
+     */
+    public StripedTiffWriter(Path file, int width, int height, int rowsPerStrip) throws IOException {
+        if (width <= 0 || height <= 0 || rowsPerStrip <= 0) {
+            throw new IllegalArgumentException("Invalid TIFF of " + width + "x" + height
+                    + " with " + rowsPerStrip + " rows per strip");
+        }
+        long stripBytes = (long) width * rowsPerStrip * 3;
+        if (stripBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A strip of " + rowsPerStrip + " rows of width " + width
+                    + " does not fit in " + Integer.MAX_VALUE + " bytes");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.rowsPerStrip = rowsPerStrip;
+
+        int stripCount = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        // Header, image file directory, then the out-of-line values the directory points to
+        int directoryOffset = 8;
+        int bitsPerSampleOffset = directoryOffset + 2 + ENTRY_COUNT * 12 + 4;
+        int resolutionOffset = bitsPerSampleOffset + 6;
+        int stripOffsetsOffset = resolutionOffset + 8;
+        int stripByteCountsOffset = stripOffsetsOffset + 4 * stripCount;
+        int pixelOffset = stripByteCountsOffset + 4 * stripCount;
+
+        if (pixelOffset + (long) width * height * 3 > MAX_FILE_SIZE) {
+            throw new IOException("Image of " + width + "x" + height + " is too large for a TIFF file");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(pixelOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(directoryOffset);
+
+        // Directory entries must be sorted by tag
+        header.putShort((short) ENTRY_COUNT);
+        putEntry(header, 256, TYPE_LONG, 1, width);                       // ImageWidth
+        putEntry(header, 257, TYPE_LONG, 1, height);                      // ImageLength
+        putEntry(header, 258, TYPE_SHORT, 3, bitsPerSampleOffset);        // BitsPerSample
+        putShortEntry(header, 259, 1);                                    // Compression: none
+        putShortEntry(header, 262, 2);                                    // Photometric: RGB
+        putEntry(header, 273, TYPE_LONG, stripCount,                      // StripOffsets
+                stripCount == 1 ? pixelOffset : stripOffsetsOffset);
+        putShortEntry(header, 277, 3);                                    // SamplesPerPixel
+        putEntry(header, 278, TYPE_LONG, 1, rowsPerStrip);                // RowsPerStrip
+        putEntry(header, 279, TYPE_LONG, stripCount,                      // StripByteCounts
+                stripCount == 1 ? (int) ((long) width * height * 3) : stripByteCountsOffset);
+        putEntry(header, 282, TYPE_RATIONAL, 1, resolutionOffset);        // XResolution
+        putEntry(header, 283, TYPE_RATIONAL, 1, resolutionOffset);        // YResolution
+        putShortEntry(header, 284, 1);                                    // PlanarConfiguration: chunky
+        putShortEntry(header, 296, 2);                                    // ResolutionUnit: inch
+        header.putInt(0);                                                 // No further directories
+
+        header.putShort((short) 8).putShort((short) 8).putShort((short) 8);
+        header.putInt(72).putInt(1);
+
+        for (int strip = 0; strip < stripCount; strip++) {
+            header.putInt((int) (pixelOffset + strip * stripBytes));
+        }
+        for (int strip = 0; strip < stripCount; strip++) {
+            int rows = Math.min(rowsPerStrip, height - strip * rowsPerStrip);
+            header.putInt(width * rows * 3);
+        }
+
+        int rowBytes = width * 3;
+        int chunkRows = Math.max(1, Math.min(Math.min(rowsPerStrip, height), CHUNK_BYTES / rowBytes));
+        chunk = new byte[chunkRows * rowBytes];
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        header.flip();
+        writeFully(header);
+    }
+
+    /**
+     * Writes a directory entry whose value or value offset is a 32-bit integer.
+     */
+    private static void putEntry(ByteBuffer buffer, int tag, short type, int count, int value) {
+        buffer.putShort((short) tag).putShort(type).putInt(count).putInt(value);
+    }
+
+    /**
+     * Writes a directory entry holding a single SHORT value, left-justified in the value field.
+     */
+    private static void putShortEntry(ByteBuffer buffer, int tag, int value) {
+        buffer.putShort((short) tag).putShort(TYPE_SHORT).putInt(1).putShort((short) value).putShort((short) 0);
+    }
+
+    /**
+     * Appends the next strip of the image.
+     *
+     * @param strip a BGR image of the full image width and {@code rowsPerStrip} rows,
+     *              or fewer rows for the last strip.
+     * @throws IOException if the strip cannot be written or has the wrong size.
+     */
+    public void writeStrip(Mat strip) throws IOException {
+        int expectedRows = Math.min(rowsPerStrip, height - rowsWritten);
+        if (strip.width() != width || strip.height() != expectedRows || strip.channels() != 3) {
+            throw new IOException("Expected a " + width + "x" + expectedRows + " BGR strip but got "
+                    + strip.width() + "x" + strip.height());
+        }
+
+        // TIFF stores RGB, OpenCV holds BGR
+        Imgproc.cvtColor(strip, rgb, Imgproc.COLOR_BGR2RGB);
+
+        // Copy the strip out a few rows at a time, the converted Mat is continuous
+        int rowBytes = width * 3;
+        int chunkRows = chunk.length / rowBytes;
+        for (int row = 0; row < expectedRows; row += chunkRows) {
+            int rows = Math.min(chunkRows, expectedRows - row);
+            rgb.get(row, 0, chunk);
+            writeFully(ByteBuffer.wrap(chunk, 0, rows * rowBytes));
+        }
+        rowsWritten += expectedRows;
+    }
+
+    /**
+     * Writes the whole buffer to the channel.
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Closes the file and frees the strip buffer.
+     *
+     * @throws IOException if the file cannot be closed or not every strip was written.
+     */
+    @Override
+    public void close() throws IOException {
+        NativeMemory.release(rgb);
+        channel.close();
+        if (rowsWritten != height) {
+            throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+        }
+    }
+}
@@ -2,22 +2,36 @@ package com.amremad719.mosaicify;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.HashMap;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * The {@code SubImagesLibrary} class manages a collection of preprocessed sub-images
  * used to build a photomosaic. It allows scanning a directory of images, preprocessing them,
  * and finding the best visual match for a given image patch.
  *
- * This class extends {@link Thread} to allow background processing of image libraries.
+ * Searching the library is run in the background as a job on the engine's
+ * {@link JobScheduler}, see {@link Engine#submitLibrarySearch(ProgressListener, java.time.Duration)}.
+ * In live mode a {@link LibraryWatcher} also processes files as they are added, changed or
+ * deleted. Every change publishes a new {@link LibrarySnapshot}, so renders that hold an
+ * earlier snapshot keep matching against a consistent library.
+ *
+ * Optionally, every search also writes a {@link TileAtlas} of the library, so that renders
+ * copy tiles from it instead of decoding the original images.
  */
-public class SubImagesLibrary extends Thread {
+public class SubImagesLibrary {
 
     /** The path to the directory containing sub-images. */
     private Path libraryPath = null;
@@ -25,8 +39,43 @@ public class SubImagesLibrary extends Thread {
     /** The dimensions to which each sub-image and kernel is resized for matching. */
     private Size kernelSubDivisionDim = new Size(4, 4);
 
-    /** A map from file paths to their processed image matrices. */
-    private final Map<String, Mat> processedImages = new HashMap<>();
+    /** The pipeline that decodes and reduces new or changed library images. */
+    private LibraryIngestor ingestor = new LibraryIngestor();
+
+    /** The kind of index used by renders that do not choose one; guarded by {@code this}. */
+    private MatchBackend matchBackend = MatchBackend.COARSE_TO_FINE;
+
+    /** The probe count and target recall of approximate backends; guarded by {@code this}. */
+    private MatchOptions matchOptions = MatchOptions.DEFAULT;
+
+    /** The current version of the processed library; replaced, never modified, when the library changes. */
+    private volatile LibrarySnapshot snapshot = new LibrarySnapshot(new FeatureStore(4, 4), matchBackend, matchOptions);
+
+    /**
+     * The store id and file attributes of every processed sub-image by path, in id order, or
+     * {@code null} before the first search; guarded by {@code updateLock}. The features
+     * themselves live only in the snapshot's store.
+     */
+    private Map<Path, IndexedFile> indexedFiles = null;
+
+    /** Serializes searches and live updates, which both derive the next store from {@code indexedFiles}. */
+    private final Object updateLock = new Object();
+
+    /** The watcher keeping the library up to date in live mode, or {@code null}; guarded by {@code this}. */
+    private LibraryWatcher watcher = null;
+
+    /** The part of the library directory to load, or {@code null} for all of it. */
+    private volatile LibraryShard shard = null;
+
+    /** The tile sizes of the atlas written by searches, or {@code null} to write none. */
+    private volatile int[] atlasLevels = null;
+
+    /** The atlas of the library as last searched, or {@code null}. */
+    private volatile TileAtlas atlas = null;
+
+    /** Called with the path of every processed sub-image that changed or was deleted. */
+    private volatile Consumer<String> changeListener = path -> {
+    };
 
     /**
      * Sets the size to which sub-images and kernels are resized before comparison.
@@ -38,153 +87,667 @@ public class SubImagesLibrary extends Thread {
     }
 
     /**
-     * Reads and preprocesses a sub-image and stores it in memory.
+     * Sets the pipeline used to process library images, e.g. to change its thread counts.
      *
-     * @param filePath the path to the image file.
-     * @throws IOException if reading or processing the image fails.
+     * @param ingestor the ingestion pipeline to use.
      */
-    public void processSubImage(Path filePath) throws IOException {
-        Mat image = Imgcodecs.imread(filePath.toString());
-        Imgproc.resize(image, image, kernelSubDivisionDim);
-        processedImages.put(filePath.toString(), image);
+    public void setIngestor(LibraryIngestor ingestor) {
+        this.ingestor = ingestor;
+    }
+
+    /**
+     * Sets the kind of index used to find best matches and rebuilds it over the
+     * currently processed library.
+     *
+     * @param matchBackend the index implementation to use.
+     */
+    public synchronized void setMatchBackend(MatchBackend matchBackend) {
+        this.matchBackend = matchBackend;
+        publish(snapshot.getFeatures(), snapshot.getRanks());
+    }
+
+    /**
+     * Sets the probe count and target recall of approximate backends and rebuilds the index.
+     * Fewer probes or a lower target are faster but may miss the best match.
+     *
+     * @param matchOptions the options to build indexes with.
+     */
+    public synchronized void setMatchOptions(MatchOptions matchOptions) {
+        this.matchOptions = matchOptions;
+        publish(snapshot.getFeatures(), snapshot.getRanks());
     }
 
     /**
-     * Computes the Mean Squared Error (MSE) between two images.
+     * Restricts the library to one shard of its directory, see {@link LibraryShard}.
+     * Takes effect with the next search.
      *
-     * @param a the first image (reference).
-     * @param b the second image (to compare).
-     * @return the MSE value.
+     * @param shard the shard to load, or {@code null} to load the whole directory.
      */
-    private double computeMSE(Mat a, Mat b) {
-        double mse = 0.0;
+    public void setShard(LibraryShard shard) {
+        this.shard = shard;
+    }
 
-        // Ensure images are the same size before comparing
-        if (a.size().width != b.size().width || a.size().height != b.size().height) {
-            Imgproc.resize(b, b, a.size(), 0, 0, Imgproc.INTER_AREA);
+    /**
+     * Makes searches write a {@link TileAtlas} with the given levels, or stops using one.
+     * Takes effect with the next search, which only renders the images whose tiles the
+     * existing atlas lacks.
+     *
+     * @param levels the tile sizes of the atlas, smallest first, or {@code null} for no atlas.
+     * @throws IllegalArgumentException if the levels are not positive and increasing.
+     */
+    public void setAtlasLevels(int[] levels) {
+        if (levels != null) {
+            TileAtlas.validateLevels(levels);
         }
+        this.atlasLevels = levels == null ? null : levels.clone();
+    }
 
-        // Loop through all pixels
-        for (int i = 0; i < a.rows(); i++) {
-            for (int j = 0; j < a.cols(); j++) {
-                double[] pixelA = a.get(i, j);
-                double[] pixelB = b.get(i, j);
+    /**
+     * @return the tile atlas of the library, or {@code null} if it has none.
+     */
+    public TileAtlas getAtlas() {
+        return atlas;
+    }
 
-                // Sum squared differences across all three channels (BGR)
-                for (int k = 0; k < 3; k++) {
-                    double diff = pixelA[k] - pixelB[k];
-                    mse += diff * diff;
-                }
-            }
+    /**
+     * Sets the callback told about every processed sub-image that changed on disk or was
+     * deleted, e.g. to drop its cached tiles.
+     *
+     * @param changeListener receives the path of each such file.
+     */
+    public void setChangeListener(Consumer<String> changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Builds the default match index over the given features and publishes them as the
+     * current snapshot. The previous snapshot is released, so its indexes are freed once
+     * the last render using it has finished.
+     *
+     * @param ranks the position of every image in the library directory by id, see
+     *              {@link LibrarySnapshot#getRank(int)}.
+     */
+    private synchronized void publish(FeatureStore store, int[] ranks) {
+        LibrarySnapshot retired = snapshot;
+        snapshot = new LibrarySnapshot(store, matchBackend, matchOptions, ranks);
+        retired.release();
+    }
+
+    /**
+     * @return the rank of every indexed file by store id.
+     */
+    private static int[] ranksOf(Map<Path, IndexedFile> files, FeatureStore store) {
+        int[] ranks = new int[store.size()];
+        for (IndexedFile file : files.values()) {
+            ranks[file.id()] = file.rank();
         }
+        return ranks;
+    }
 
-        // Normalize MSE by total number of color values
-        mse /= (a.rows() * a.cols() * 3);
-        return mse;
+    /**
+     * Returns the current version of the library. The snapshot never changes, so a render
+     * should take it once and match every tile against it.
+     *
+     * @return the current snapshot, which the caller must {@linkplain LibrarySnapshot#release() release}
+     *         once it has finished matching against it.
+     */
+    public LibrarySnapshot snapshot() {
+        while (true) {
+            // A snapshot retired meanwhile cannot be acquired, but its replacement is published by then
+            LibrarySnapshot current = snapshot;
+            if (current.tryAcquire()) {
+                return current;
+            }
+        }
     }
 
     /**
-     * Finds the best-matching sub-image in the library for the given kernel.
+     * Reads and preprocesses a sub-image and adds its feature to the library.
      *
-     * @param kernel the image patch to match against the library.
-     * @return the best-matching sub-image from disk (unprocessed).
-     * @throws IOException if no match is found.
+     * @param filePath the path to the image file.
+     * @throws IOException if reading or processing the image fails.
      */
-    public Mat findBestMatch(Mat kernel) throws IOException {
-        Imgproc.resize(kernel, kernel, kernelSubDivisionDim);
+    public void processSubImage(Path filePath) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        Mat image = LibraryIngestor.decode(filePath, kernelSubDivisionDim);
+        try {
+            if (image.empty()) {
+                throw new IOException("Failed to read image " + filePath);
+            }
 
-        double minMSE = -1;
-        Map.Entry<String, Mat> match = null;
+            synchronized (updateLock) {
+                LibraryIndexFile.Entry entry = new LibraryIndexFile.Entry(filePath.getFileName().toString(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis(), snapshot.extractFeature(image));
+                FeatureStore store = update(Set.of(), Map.of(filePath, entry));
+                publish(store, ranksOf(indexedFiles, store));
+            }
+        } finally {
+            NativeMemory.release(image);
+        }
+    }
 
-        // Compare the processed kernel to all processed sub-images
-        for (Map.Entry<String, Mat> entry : processedImages.entrySet()) {
-            double error = computeMSE(kernel, entry.getValue());
+    /**
+     * Derives the next store from the current one in a single pass over its flat feature
+     * array: removed files are dropped, changed files get their new feature in place and new
+     * files are appended, in the order given, and ranked after every other file. The current store is left untouched, since
+     * renders may still be matching against it. The caller holds {@code updateLock}.
+     *
+     * @param removed the files to drop.
+     * @param changed the new features of files that were added or changed.
+     * @return the new store; {@code indexedFiles} already describes it.
+     */
+    private FeatureStore update(Set<Path> removed, Map<Path, LibraryIndexFile.Entry> changed) {
+        FeatureStore current = snapshot.getFeatures();
+        Map<Path, IndexedFile> previous = indexedFiles != null ? indexedFiles : Map.of();
+        FeatureStore store = new FeatureStore(current.getFeatureWidth(), current.getFeatureHeight());
+        Map<Path, IndexedFile> updated = new LinkedHashMap<>();
+        int nextRank = 0;
 
-            // Track the image with the lowest MSE
-            if (error < minMSE || minMSE < 0) {
-                minMSE = error;
-                match = entry;
+        for (Map.Entry<Path, IndexedFile> file : previous.entrySet()) {
+            Path path = file.getKey();
+            IndexedFile known = file.getValue();
+            nextRank = Math.max(nextRank, known.rank() + 1);
+            LibraryIndexFile.Entry replacement = changed.get(path);
+            if (replacement != null) {
+                updated.put(path, new IndexedFile(replacement.addTo(store, path.toString()),
+                        known.rank(), replacement.size(), replacement.lastModified()));
+            } else if (!removed.contains(path)) {
+                updated.put(path, new IndexedFile(store.add(path.toString(), current.getFeatures(),
+                        known.id() * current.getFeatureLength()), known.rank(), known.size(), known.lastModified()));
+            }
+        }
+        for (Map.Entry<Path, LibraryIndexFile.Entry> file : changed.entrySet()) {
+            if (!previous.containsKey(file.getKey())) {
+                LibraryIndexFile.Entry entry = file.getValue();
+                updated.put(file.getKey(), new IndexedFile(entry.addTo(store, file.getKey().toString()),
+                        nextRank++, entry.size(), entry.lastModified()));
             }
         }
 
-        if (match == null) {
-            throw new IOException("Failed to find a match for a kernel");
+        indexedFiles = updated;
+        return store;
+    }
+
+    /**
+     * Finds the best-matching sub-image in the current library for the given kernel.
+     *
+     * @param kernel the image patch to match against the library.
+     * @return the file path of the best-matching sub-image.
+     * @throws IOException if no match is found.
+     */
+    public String findBestMatch(Mat kernel) throws IOException {
+        return findBestMatch(kernel, null);
+    }
+
+    /**
+     * Finds the best-matching sub-image in the current library for the given kernel through
+     * the index of a particular backend.
+     *
+     * @param kernel  the image patch to match against the library.
+     * @param backend the backend to search with, or {@code null} for the library's default.
+     * @return the file path of the best-matching sub-image.
+     * @throws IOException if no match is found.
+     * @see LibrarySnapshot#findBestMatch(Mat, MatchBackend)
+     */
+    public String findBestMatch(Mat kernel, MatchBackend backend) throws IOException {
+        LibrarySnapshot current = snapshot();
+        try {
+            return current.findBestMatch(kernel, backend);
+        } finally {
+            current.release();
         }
+    }
 
-        // Load and return the original (unprocessed) matching image
-        return Imgcodecs.imread(match.getKey());
+    /**
+     * Loads and processes all images from the library directory into memory,
+     * reporting progress to the GUI.
+     *
+     * @throws ArithmeticException if the library path has not been set.
+     */
+    public void searchLibrary() throws ArithmeticException {
+        searchLibrary(MosaicifyController.getInstance());
     }
 
     /**
      * Loads and processes all images from the library directory into memory.
-     * Updates the UI to reflect progress.
+     * Features of files that are unchanged since the last search are taken from the
+     * library's index file; only new or modified files are decoded, and the index is
+     * rewritten afterwards without the files that no longer exist.
+     * <p>
+     * The new library replaces the current one only once the search completes, so an
+     * interrupted search leaves the previously loaded library in place.
      *
+     * @param listener receives the progress of the search.
      * @throws ArithmeticException if the library path has not been set.
      */
-    public void searchLibrary() throws ArithmeticException {
+    public void searchLibrary(ProgressListener listener) throws ArithmeticException {
         if (libraryPath == null) {
             throw new ArithmeticException("Library path not set");
         }
 
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(libraryPath)) {
-            double i = 0;
-            int total = libraryPath.toFile().list().length;
+        synchronized (updateLock) {
+            search(listener);
+        }
+    }
 
-            // Process each image file in the directory
+    /**
+     * Searches the library directory; the caller holds {@code updateLock}.
+     */
+    private void search(ProgressListener listener) {
+
+        int featureWidth = (int) kernelSubDivisionDim.width;
+        int featureHeight = (int) kernelSubDivisionDim.height;
+        FeatureStore store = new FeatureStore(featureWidth, featureHeight);
+
+        PipelineMetrics metrics = new PipelineMetrics("Library search of " + libraryPath, "images");
+        PipelineMetrics.Timer scan = metrics.phase(PipelineMetrics.Phase.SCAN);
+
+        LibraryShard shard = this.shard;
+        Path indexFile = LibraryIndexFile.locate(libraryPath, shard);
+        Map<String, LibraryIndexFile.Entry> cachedEntries =
+                LibraryIndexFile.load(indexFile, featureWidth, featureHeight);
+        List<LibraryIndexFile.Entry> entries = new ArrayList<>();
+        Map<Path, IndexedFile> files = new LinkedHashMap<>();
+
+        // Tiles of unchanged images are copied from the existing atlas if its levels still fit
+        int[] atlasLevels = this.atlasLevels;
+        Path atlasFile = TileAtlas.locate(libraryPath, shard);
+        TileAtlas previousAtlas = atlasLevels != null ? TileAtlas.open(atlasFile, libraryPath) : null;
+        if (previousAtlas != null && !Arrays.equals(previousAtlas.getLevels(), atlasLevels)) {
+            previousAtlas = null;
+        }
+        TileAtlas.Writer atlasWriter = null;
+
+        // Skip the index files and their temporary copies
+        DirectoryStream.Filter<Path> filter = path -> !LibraryIndexFile.isIndexFile(path);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(libraryPath, filter)) {
+            List<Path> listed = new ArrayList<>();
+            List<BasicFileAttributes> fileAttributes = new ArrayList<>();
+            List<LibraryIndexFile.Entry> reusedEntries = new ArrayList<>();
+            List<Path> pending = new ArrayList<>();
+            List<Integer> atlasSlots = new ArrayList<>();
+            List<Integer> ranks = new ArrayList<>();
+            int reused = 0;
+            int position = 0;
+
+            // List the directory, reusing indexed features of files that have not changed.
+            // Every file is ranked by its place in the whole listing, including files of other
+            // shards, so that all shards agree on the order of the library
             for (Path entry : stream) {
-                processSubImage(entry);
-                i++;
+                int rank = position++;
+                if (shard != null && !shard.contains(entry)) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+
+                LibraryIndexFile.Entry cached = cachedEntries.get(entry.getFileName().toString());
+                int atlasSlot = previousAtlas == null ? -1 : previousAtlas.slotOf(entry.toString(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis());
+                if (cached != null && cached.matches(attributes.size(), attributes.lastModifiedTime().toMillis())
+                        && (atlasLevels == null || atlasSlot >= 0)) {
+                    reusedEntries.add(cached);
+                    atlasSlots.add(atlasSlot);
+                    reused++;
+                } else {
+                    reusedEntries.add(null);
+                    atlasSlots.add(-1);
+                    pending.add(entry);
+                }
+                listed.add(entry);
+                fileAttributes.add(attributes);
+                ranks.add(rank);
+            }
+            scan.close();
+
+            // New images take the first atlas slots, in the order they are decoded in
+            int total = listed.size();
+            if (atlasLevels != null && (previousAtlas == null || !pending.isEmpty())) {
+                try {
+                    atlasWriter = new TileAtlas.Writer(atlasFile, atlasLevels, total);
+                } catch (IOException e) {
+                    // A read-only library still works, its tiles are just decoded from the originals
+                    e.printStackTrace();
+                }
+            }
+
+            // Decode and reduce the remaining files through the ingestion pipeline
+            byte[][] processed;
+            try (ProgressTracker progress = new ProgressTracker(listener, "Found and processed", "images", total, reused);
+                 PipelineMetrics.Timer extract = metrics.phase(PipelineMetrics.Phase.EXTRACT)) {
+                processed = ingestor.extract(pending, kernelSubDivisionDim, atlasWriter, progress);
+            }
+
+            // Files that are not images are decoded again every time; they do not change the atlas
+            if (atlasWriter != null && previousAtlas != null
+                    && Arrays.stream(processed).allMatch(feature -> feature == null)) {
+                atlasWriter.abort();
+                atlasWriter = null;
+            }
+
+            // Insert everything into the store in directory order, skipping files that are not images
+            List<LibraryIndexFile.Entry> atlasEntries = new ArrayList<>(Collections.nCopies(total, null));
+            for (int i = 0, p = 0, copied = pending.size(); i < total; i++) {
+                boolean decoded = reusedEntries.get(i) == null;
+                int atlasSlot = decoded ? p : copied;
+                byte[] feature = decoded ? processed[p++] : null;
+                if (decoded && feature == null) {
+                    continue;
+                }
+
+                // Reused features are copied into the store straight from the loaded index
+                Path entry = listed.get(i);
+                BasicFileAttributes attributes = fileAttributes.get(i);
+                LibraryIndexFile.Entry indexEntry = decoded ? new LibraryIndexFile.Entry(entry.getFileName().toString(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis(), feature) : reusedEntries.get(i);
+                files.put(entry, new IndexedFile(indexEntry.addTo(store, entry.toString()), ranks.get(i),
+                        attributes.size(), attributes.lastModifiedTime().toMillis()));
+                entries.add(indexEntry);
+
+                if (atlasWriter != null) {
+                    if (!decoded) {
+                        atlasWriter.copy(atlasSlot, previousAtlas, atlasSlots.get(i));
+                        copied++;
+                    }
+                    atlasEntries.set(atlasSlot, indexEntry);
+                }
+            }
 
-                // Update UI with progress
-                MosaicifyController.getInstance().updateProgressBar(i / total);
-                MosaicifyController.getInstance().updateProgresStatusLabel(
-                        "Found and processed " + (int)i + "/" + total + " images");
+            // Only rewrite the index if something was added, changed or removed
+            if (reused != entries.size() || reused != cachedEntries.size()) {
+                listener.onStatus("Saving library index...");
+                try (PipelineMetrics.Timer save = metrics.phase(PipelineMetrics.Phase.SAVE)) {
+                    LibraryIndexFile.write(indexFile, featureWidth, featureHeight, entries);
+                } catch (IOException e) {
+                    // A read-only library still works, it is just processed again next time
+                    e.printStackTrace();
+                }
             }
 
-            MosaicifyController.getInstance().updateProgressBar(0);
-            MosaicifyController.getInstance().updateProgresStatusLabel(
-                    "Found and processed " + processedImages.size() + " images");
+            if (atlasWriter != null) {
+                listener.onStatus("Saving tile atlas...");
+                try (PipelineMetrics.Timer save = metrics.phase(PipelineMetrics.Phase.SAVE)) {
+                    atlasWriter.commit(atlasEntries);
+                    previousAtlas = TileAtlas.open(atlasFile, libraryPath);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    previousAtlas = null;
+                }
+                atlasWriter = null;
+            }
+            atlas = previousAtlas;
+
+            listener.onStatus("Building search index...");
+            try (PipelineMetrics.Timer index = metrics.phase(PipelineMetrics.Phase.INDEX)) {
+                publish(store, ranksOf(files, store));
+            }
+
+            // Report the files that changed or disappeared since the previous search
+            if (indexedFiles != null) {
+                for (Map.Entry<Path, IndexedFile> previous : indexedFiles.entrySet()) {
+                    IndexedFile now = files.get(previous.getKey());
+                    if (now == null || !now.matches(previous.getValue().size(), previous.getValue().lastModified())) {
+                        changeListener.accept(previous.getKey().toString());
+                    }
+                }
+            }
+            indexedFiles = files;
+
+            metrics.addItems(store.size());
+            listener.onMetrics(metrics.finish());
+
+            listener.onProgress(0);
+            double recall = getRecall(null);
+            listener.onStatus(
+                    "Found and processed " + store.size() + " images"
+                            + (recall < 1 ? String.format(" (match recall %.0f%%)", recall * 100) : ""));
 
         } catch (IOException | DirectoryIteratorException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (atlasWriter != null) {
+                atlasWriter.abort();
+            }
         }
     }
 
     /**
-     * Sets the directory from which to load sub-images.
+     * Brings the library up to date with files that were created, modified or deleted since
+     * it was searched, decoding only those files, and publishes the result as a new
+     * snapshot. Renders that are already running keep the snapshot they started with.
+     * A library that was never searched, or whose kernel dimensions have changed since, is
+     * searched again instead.
      *
-     * @param libraryDirectory a valid directory path.
-     * @return {@code true} if the path exists and is a directory; {@code false} otherwise.
+     * @param changed  the files that may have changed.
+     * @param listener receives the progress and the metrics of the update.
+     * @throws InterruptedException if the calling thread is interrupted while images are decoded.
      */
-    public boolean setLibraryDirectory(Path libraryDirectory) {
-        if (Files.exists(libraryDirectory) && Files.isDirectory(libraryDirectory)) {
-            this.libraryPath = libraryDirectory;
-            return true;
+    void applyChanges(Collection<Path> changed, ProgressListener listener) throws InterruptedException {
+        synchronized (updateLock) {
+            FeatureStore current = snapshot.getFeatures();
+            int featureWidth = (int) kernelSubDivisionDim.width;
+            int featureHeight = (int) kernelSubDivisionDim.height;
+            if (indexedFiles == null || current.getFeatureWidth() != featureWidth
+                    || current.getFeatureHeight() != featureHeight) {
+                search(listener);
+                return;
+            }
+
+            LibraryShard shard = this.shard;
+            PipelineMetrics metrics = new PipelineMetrics("Library update of " + libraryPath, "images");
+            Map<Path, LibraryIndexFile.Entry> changes = new LinkedHashMap<>();
+            Set<Path> removed = new HashSet<>();
+            List<Path> pending = new ArrayList<>();
+            List<BasicFileAttributes> pendingAttributes = new ArrayList<>();
+            List<String> stale = new ArrayList<>();
+            int added = 0;
+            int replaced = 0;
+
+            // Evict deleted files and find the ones that are new or really changed
+            try (PipelineMetrics.Timer scan = metrics.phase(PipelineMetrics.Phase.SCAN)) {
+                for (Path file : changed) {
+                    if (LibraryIndexFile.isIndexFile(file) || (shard != null && !shard.contains(file))) {
+                        continue;
+                    }
+
+                    BasicFileAttributes attributes = readAttributes(file);
+                    IndexedFile existing = indexedFiles.get(file);
+                    if (attributes == null || !attributes.isRegularFile()) {
+                        if (existing != null) {
+                            removed.add(file);
+                            stale.add(file.toString());
+                        }
+                    } else if (existing == null || !existing.matches(attributes.size(),
+                            attributes.lastModifiedTime().toMillis())) {
+                        pending.add(file);
+                        pendingAttributes.add(attributes);
+                    }
+                }
+            }
+
+            byte[][] processed;
+            try (ProgressTracker progress = new ProgressTracker(listener, "Processed changed", "images",
+                    pending.size(), 0);
+                 PipelineMetrics.Timer extract = metrics.phase(PipelineMetrics.Phase.EXTRACT)) {
+                processed = ingestor.extract(pending, kernelSubDivisionDim, progress);
+            }
+
+            // Replaced files keep their place in the library, new ones go at the end
+            for (int i = 0; i < pending.size(); i++) {
+                Path file = pending.get(i);
+                boolean known = indexedFiles.containsKey(file);
+                if (processed[i] == null) {
+                    // Not an image, or not completely written yet; a later event retries it
+                    if (known) {
+                        removed.add(file);
+                        stale.add(file.toString());
+                    }
+                    continue;
+                }
+
+                BasicFileAttributes attributes = pendingAttributes.get(i);
+                changes.put(file, new LibraryIndexFile.Entry(file.getFileName().toString(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis(), processed[i]));
+                if (known) {
+                    stale.add(file.toString());
+                    replaced++;
+                } else {
+                    added++;
+                }
+            }
+
+            if (added == 0 && stale.isEmpty()) {
+                return;
+            }
+
+            // The atlas keeps serving unchanged images; new and changed ones are decoded until the next search
+            TileAtlas atlas = this.atlas;
+            if (atlas != null) {
+                stale.forEach(atlas::invalidate);
+            }
+
+            FeatureStore store = update(removed, changes);
+
+            try (PipelineMetrics.Timer save = metrics.phase(PipelineMetrics.Phase.SAVE)) {
+                long[] sizes = new long[store.size()];
+                long[] lastModified = new long[store.size()];
+                for (IndexedFile file : indexedFiles.values()) {
+                    sizes[file.id()] = file.size();
+                    lastModified[file.id()] = file.lastModified();
+                }
+                LibraryIndexFile.write(LibraryIndexFile.locate(libraryPath, shard), store, sizes, lastModified);
+            } catch (IOException e) {
+                // A read-only library still works, it is just processed again next time
+                e.printStackTrace();
+            }
+
+            try (PipelineMetrics.Timer index = metrics.phase(PipelineMetrics.Phase.INDEX)) {
+                publish(store, ranksOf(indexedFiles, store));
+            }
+            stale.forEach(changeListener);
+
+            metrics.addItems(pending.size());
+            listener.onMetrics(metrics.finish());
+            listener.onStatus("Library updated: " + added + " added, " + replaced + " changed, "
+                    + (stale.size() - replaced) + " removed, " + store.size() + " images");
         }
-        return false;
     }
 
     /**
-     * Prepares the UI and starts the background thread to scan the library.
+     * @return the attributes of a file, or {@code null} if it no longer exists.
+     */
+    private static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts live mode: files created, modified or deleted in the library directory from now
+     * on are processed as they appear, see {@link LibraryWatcher}. Search the library after
+     * starting to pick up changes made before. Any previous watcher is stopped.
+     *
+     * @param listener receives the progress and the metrics of every update.
+     * @throws IOException         if the directory cannot be watched.
+     * @throws ArithmeticException if the library path has not been set.
+     */
+    public synchronized void startWatching(ProgressListener listener) throws IOException {
+        if (libraryPath == null) {
+            throw new ArithmeticException("Library path not set");
+        }
+        stopWatching();
+        watcher = new LibraryWatcher(this, libraryPath, listener);
+    }
+
+    /**
+     * Stops live mode, if it is running.
      */
-    public void update() {
-        MosaicifyController.getInstance().librarySettingsVBox.setDisable(true);
-        this.start();
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
     }
 
     /**
-     * Called when the thread starts; launches the library search logic.
+     * @return {@code true} while live mode is running.
      */
-    @Override
-    public void run() {
-        searchLibrary();
-        onFinish();
+    public synchronized boolean isWatching() {
+        return watcher != null;
     }
 
     /**
-     * Called when the library has finished loading; re-enables UI controls.
+     * @return the number of feature comparisons made by best-match queries against the
+     *         current snapshot.
      */
-    public void onFinish() {
-        MosaicifyController.getInstance().librarySettingsVBox.setDisable(false);
+    public long getComparisonCount() {
+        return snapshot.getComparisonCount();
+    }
+
+    /**
+     * Returns the recall of a backend's index over the current library, building the
+     * index if needed.
+     *
+     * @param backend the backend, or {@code null} for the library's default.
+     * @return the fraction of queries answered with a true nearest feature, see {@link MatchIndex#getRecall()}.
+     */
+    public double getRecall(MatchBackend backend) {
+        LibrarySnapshot current = snapshot();
+        try {
+            return current.getRecall(backend);
+        } finally {
+            current.release();
+        }
+    }
+
+    /**
+     * @return the number of sub-images in the processed library.
+     */
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * Sets the directory from which to load sub-images. Live mode stops when the
+     * directory changes.
+     *
+     * @param libraryDirectory a valid directory path.
+     * @return {@code true} if the path exists and is a directory; {@code false} otherwise.
+     */
+    public boolean setLibraryDirectory(Path libraryDirectory) {
+        if (Files.exists(libraryDirectory) && Files.isDirectory(libraryDirectory)) {
+            if (!libraryDirectory.equals(libraryPath)) {
+                stopWatching();
+            }
+            this.libraryPath = libraryDirectory;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Where a processed sub-image lives in the current store, and the attributes of the file
+     * its feature was computed from.
+     *
+     * @param id           the id of its feature in the current snapshot's store.
+     * @param rank         its position in the library directory, see {@link LibrarySnapshot#getRank(int)}.
+     * @param size         the size of the file in bytes.
+     * @param lastModified the last-modified time of the file in milliseconds.
+     */
+    private record IndexedFile(int id, int rank, long size, long lastModified) {
+
+        /**
+         * @return {@code true} if the feature was computed from a file with the given attributes.
+         */
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
     }
 }
@@ -0,0 +1,444 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@code TileAtlas} class holds every image of a sub-image library pre-resized to a few
+ * square tile sizes, its levels, as raw BGR pixels in one memory-mapped file. A tile is
+ * taken from the smallest level at least as large as the tile and only shrunk to fit, so
+ * rendering copies mapped bytes instead of decoding and resizing the original image. Tiles
+ * larger than the largest level are not in the atlas and still come from the original.
+ * <p>
+ * The atlas is written while the library is searched, from the images already decoded for
+ * their features, and lives next to the library's index file with {@code -atlas} appended to
+ * its name. It starts with a header of magic number, format version, level count, the levels,
+ * tile count and the offset of the entry table. The pixels follow from the next page
+ * boundary, level after level, one square of the level's size per tile. The entry table at
+ * the end holds, for every tile, the UTF-8 file name, the file size and last-modified time it
+ * was rendered from, and its slot within the levels.
+ * <p>
+ * The atlas is safe to read from several render threads.
+ */
+public class TileAtlas {
+
+    /** The levels of an atlas built without choosing them: 16, 32 and 64 pixel squares. */
+    public static final int[] DEFAULT_LEVELS = {16, 32, 64};
+
+    private static final int MAGIC = 0x4D534154; // "MSAT"
+    private static final int VERSION = 1;
+
+    /** The pixels start at a page boundary, after a header that must fit in one page. */
+    private static final int PAGE_SIZE = 4096;
+
+    /** The most levels an atlas may have, so that the header fits in one page. */
+    private static final int MAX_LEVELS = 16;
+
+    /**
+     * The position of an image's tiles in the atlas and the file attributes they were
+     * rendered from.
+     */
+    private record Slot(int slot, long size, long lastModified) {
+    }
+
+    private final int[] levels;
+
+    /** The pixels of every level, split into mappings of at most 2 GB holding whole tiles. */
+    private final MappedByteBuffer[][] chunks;
+
+    /** The number of tiles in every mapping of each level. */
+    private final int[] tilesPerChunk;
+
+    /** The slot of every image by path; images that changed since are removed. */
+    private final Map<String, Slot> slots;
+
+    private TileAtlas(int[] levels, MappedByteBuffer[][] chunks, int[] tilesPerChunk, Map<String, Slot> slots) {
+        this.levels = levels;
+        this.chunks = chunks;
+        this.tilesPerChunk = tilesPerChunk;
+        this.slots = slots;
+    }
+
+    /**
+     * Returns the location of the atlas of a library directory, or of one of its shards.
+     *
+     * @param libraryDirectory the library directory.
+     * @param shard            the shard, or {@code null} for the whole library.
+     * @return the path of the atlas file.
+     */
+    public static Path locate(Path libraryDirectory, LibraryShard shard) {
+        Path indexFile = LibraryIndexFile.locate(libraryDirectory, shard);
+        return indexFile.resolveSibling(indexFile.getFileName() + "-atlas");
+    }
+
+    /**
+     * Checks that levels are usable: at least one, at most {@value #MAX_LEVELS}, positive
+     * and increasing.
+     *
+     * @param levels the tile sizes of the levels.
+     * @throws IllegalArgumentException if they are not.
+     */
+    public static void validateLevels(int[] levels) {
+        if (levels.length == 0 || levels.length > MAX_LEVELS) {
+            throw new IllegalArgumentException("An atlas needs between 1 and " + MAX_LEVELS + " levels");
+        }
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] < 1 || (i > 0 && levels[i] <= levels[i - 1])) {
+                throw new IllegalArgumentException("Atlas levels must be positive and increasing");
+            }
+        }
+    }
+
+    /**
+     * Maps an atlas file. An atlas that is missing or unreadable yields {@code null}.
+     *
+     * @param atlasFile        the atlas file to read.
+     * @param libraryDirectory the library directory its file names are relative to.
+     * @return the atlas, or {@code null}.
+     */
+    public static TileAtlas open(Path atlasFile, Path libraryDirectory) {
+        if (!Files.isRegularFile(atlasFile)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(atlasFile, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(PAGE_SIZE, channel.size()));
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            int[] levels = new int[header.getInt()];
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = header.getInt();
+            }
+            validateLevels(levels);
+            int tileCount = header.getInt();
+            long tableOffset = header.getLong();
+
+            // Map every level in chunks of whole tiles, since one mapping holds at most 2 GB
+            MappedByteBuffer[][] chunks = new MappedByteBuffer[levels.length][];
+            int[] tilesPerChunk = new int[levels.length];
+            long offset = pixelStart(levels.length);
+            for (int level = 0; level < levels.length; level++) {
+                int tileBytes = tileBytes(levels[level]);
+                tilesPerChunk[level] = Integer.MAX_VALUE / tileBytes;
+                chunks[level] = new MappedByteBuffer[(tileCount + tilesPerChunk[level] - 1) / tilesPerChunk[level]];
+                for (int chunk = 0; chunk < chunks[level].length; chunk++) {
+                    int tiles = Math.min(tilesPerChunk[level], tileCount - chunk * tilesPerChunk[level]);
+                    chunks[level][chunk] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) tiles * tileBytes);
+                    offset += (long) tiles * tileBytes;
+                }
+            }
+
+            Map<String, Slot> slots = new ConcurrentHashMap<>();
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, channel.size() - tableOffset);
+            int entryCount = table.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                byte[] name = new byte[table.getShort() & 0xFFFF];
+                table.get(name);
+                long size = table.getLong();
+                long lastModified = table.getLong();
+                int slot = table.getInt();
+                if (slot < 0 || slot >= tileCount) {
+                    return null;
+                }
+                slots.put(libraryDirectory.resolve(new String(name, StandardCharsets.UTF_8)).toString(),
+                        new Slot(slot, size, lastModified));
+            }
+
+            return new TileAtlas(levels, chunks, tilesPerChunk, slots);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // A damaged atlas is simply rebuilt from the images
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return the offset of the pixels in an atlas file with the given number of levels.
+     */
+    private static long pixelStart(int levelCount) {
+        long headerBytes = 4 + 4 + 4 + 4L * levelCount + 4 + 8;
+        return (headerBytes + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * @return the number of bytes of one tile of a level.
+     */
+    private static int tileBytes(int level) {
+        return level * level * 3;
+    }
+
+    /**
+     * @return the tile sizes of the levels, smallest first.
+     */
+    public int[] getLevels() {
+        return levels.clone();
+    }
+
+    /**
+     * @return the number of images with tiles in the atlas.
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the slot of an image's tiles, if they were rendered from the file as it is now.
+     *
+     * @param path         the path of the library image.
+     * @param size         the current size of the file in bytes.
+     * @param lastModified the current last-modified time of the file in milliseconds.
+     * @return the slot, or {@code -1} if the atlas has no current tiles of the image.
+     */
+    public int slotOf(String path, long size, long lastModified) {
+        Slot slot = slots.get(path);
+        return slot != null && slot.size() == size && slot.lastModified() == lastModified ? slot.slot() : -1;
+    }
+
+    /**
+     * Returns a library image resized to a tile size from the atlas.
+     *
+     * @param path     the path of the library image.
+     * @param tileSize the size of the tile to produce.
+     * @return the tile, or {@code null} if the image is not in the atlas or the tile is
+     *         larger than the largest level.
+     */
+    public Mat getTile(String path, Size tileSize) {
+        Slot slot = slots.get(path);
+        int level = levelFor(tileSize);
+        if (slot == null || level < 0) {
+            return null;
+        }
+
+        int side = levels[level];
+        byte[] pixels = new byte[tileBytes(side)];
+        read(level, slot.slot(), pixels);
+        if (side == tileSize.width && side == tileSize.height) {
+            Mat tile = NativeMemory.newMat(side, side, CvType.CV_8UC3);
+            tile.put(0, 0, pixels);
+            return tile;
+        }
+
+        // Only ever shrinks, since the level is at least as large as the tile both ways
+        Mat square = NativeMemory.BUFFERS.acquire(side, side, CvType.CV_8UC3);
+        square.put(0, 0, pixels);
+        Mat tile = NativeMemory.newMat();
+        Imgproc.resize(square, tile, tileSize, 0, 0, Imgproc.INTER_AREA);
+        NativeMemory.BUFFERS.recycle(square);
+        return tile;
+    }
+
+    /**
+     * @return the smallest level at least as large as the tile both ways, or {@code -1}.
+     */
+    private int levelFor(Size tileSize) {
+        double largest = Math.max(tileSize.width, tileSize.height);
+        for (int level = 0; level < levels.length; level++) {
+            if (levels[level] >= largest) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies the pixels of one tile of a level.
+     */
+    private void read(int level, int slot, byte[] pixels) {
+        MappedByteBuffer chunk = chunks[level][slot / tilesPerChunk[level]];
+        chunk.get((slot % tilesPerChunk[level]) * pixels.length, pixels);
+    }
+
+    /**
+     * Stops serving the tiles of a library image, e.g. because the file changed on disk.
+     * They are dropped from the file the next time the atlas is written.
+     *
+     * @param path the path of the library image.
+     */
+    public void invalidate(String path) {
+        slots.remove(path);
+    }
+
+    /**
+     * The {@code Writer} class writes a new atlas file. Tiles are written to their slots
+     * in any order, from any thread, either rendered from a decoded image or copied from an
+     * earlier atlas. The file replaces any previous atlas atomically once committed.
+     */
+    public static final class Writer {
+        private final Path atlasFile;
+        private final Path temporary;
+        private final int[] levels;
+        private final int tileCount;
+        private final long[] levelOffsets;
+        private final long tableOffset;
+        private final FileChannel channel;
+
+        /** Set when a tile could not be written, so that the atlas is not committed. */
+        private volatile IOException failure = null;
+
+        /**
+         * Starts writing an atlas.
+         *
+         * @param atlasFile the atlas file to replace once committed.
+         * @param levels    the tile sizes of the levels, see {@link #validateLevels(int[])}.
+         * @param tileCount the number of slots to reserve.
+         * @throws IOException if the file cannot be created.
+         */
+        public Writer(Path atlasFile, int[] levels, int tileCount) throws IOException {
+            validateLevels(levels);
+            this.atlasFile = atlasFile;
+            this.temporary = atlasFile.resolveSibling(atlasFile.getFileName() + ".tmp");
+            this.levels = levels.clone();
+            this.tileCount = tileCount;
+
+            this.levelOffsets = new long[levels.length];
+            long offset = pixelStart(levels.length);
+            for (int level = 0; level < levels.length; level++) {
+                levelOffsets[level] = offset;
+                offset += (long) tileCount * tileBytes(levels[level]);
+            }
+            this.tableOffset = offset;
+
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * @return the largest level, i.e. the smallest size images must be decoded at.
+         */
+        public int getLargestLevel() {
+            return levels[levels.length - 1];
+        }
+
+        /**
+         * Renders the tiles of a decoded image into a slot. Failures are reported by
+         * {@link #commit(List)}.
+         *
+         * @param slot  the slot to fill.
+         * @param image the decoded BGR image.
+         */
+        public void write(int slot, Mat image) {
+            try (MatScope scope = new MatScope()) {
+                Mat tile = scope.newMat();
+                for (int level = 0; level < levels.length; level++) {
+                    Imgproc.resize(image, tile, new Size(levels[level], levels[level]), 0, 0, Imgproc.INTER_AREA);
+                    byte[] pixels = new byte[tileBytes(levels[level])];
+                    tile.get(0, 0, pixels);
+                    writeFully(ByteBuffer.wrap(pixels), levelOffsets[level] + (long) slot * pixels.length);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // Keep the ingestion thread alive; the atlas is just not committed
+                failure = new IOException("Failed to render the atlas tiles of slot " + slot, e);
+            }
+        }
+
+        /**
+         * Copies the tiles of an image from an atlas with the same levels into a slot.
+         *
+         * @param slot     the slot to fill.
+         * @param from     the atlas to copy from.
+         * @param fromSlot the slot of the image in that atlas.
+         */
+        public void copy(int slot, TileAtlas from, int fromSlot) {
+            try {
+                for (int level = 0; level < levels.length; level++) {
+                    byte[] pixels = new byte[tileBytes(levels[level])];
+                    from.read(level, fromSlot, pixels);
+                    writeFully(ByteBuffer.wrap(pixels), levelOffsets[level] + (long) slot * pixels.length);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Writes a buffer at a position; positional writes are safe from several threads.
+         */
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        /**
+         * Writes the entry table and the header and replaces the previous atlas.
+         *
+         * @param entries the image in every slot, or {@code null} for slots left empty;
+         *                only the file name, size and last-modified time are stored.
+         * @throws IOException if any tile or the table cannot be written.
+         */
+        public void commit(List<LibraryIndexFile.Entry> entries) throws IOException {
+            try (channel) {
+                if (failure != null) {
+                    throw failure;
+                }
+
+                ByteArrayOutputStream table = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(table);
+                out.writeInt((int) entries.stream().filter(entry -> entry != null).count());
+                for (int slot = 0; slot < entries.size(); slot++) {
+                    LibraryIndexFile.Entry entry = entries.get(slot);
+                    if (entry == null) {
+                        continue;
+                    }
+                    byte[] name = entry.fileName().getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(name.length);
+                    out.write(name);
+                    out.writeLong(entry.size());
+                    out.writeLong(entry.lastModified());
+                    out.writeInt(slot);
+                }
+                writeFully(ByteBuffer.wrap(table.toByteArray()), tableOffset);
+
+                ByteBuffer header = ByteBuffer.allocate((int) pixelStart(levels.length));
+                header.putInt(MAGIC).putInt(VERSION).putInt(levels.length);
+                for (int level : levels) {
+                    header.putInt(level);
+                }
+                header.putInt(tileCount).putLong(tableOffset);
+                header.rewind();
+                writeFully(header, 0);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+
+            Files.move(temporary, atlasFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Discards the atlas being written, e.g. because the search was interrupted.
+         */
+        public void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The {@code TileCache} class keeps library images that have already been decoded and
+ * resized to a tile size, so that popular tiles are read from disk once per render instead
+ * of once per grid cell. Entries are keyed by image path and tile size, bounded by a memory
+ * budget in bytes and evicted in least-recently-used order. Missing tiles are copied from
+ * the library's {@link TileAtlas} when it has them, and decoded from the original otherwise.
+ * <p>
+ * The cache is safe to use from several render threads. Cached tiles are shared and must
+ * only be read by callers. Every {@link Tile} handed out counts as a use of its pixels until
+ * it is closed, so a tile evicted while a render thread is still copying from it is freed
+ * by the last thread to close it, and any other is freed as soon as it is evicted.
+ */
+public class TileCache {
+
+    /** The default memory budget: 256 MB of decoded tile pixels. */
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    /** Access-ordered map, so iteration starts at the least recently used tile. */
+    private final LinkedHashMap<Key, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong atlasReads = new AtomicLong();
+
+    /** Supplies the atlas to read missing tiles from, which may be {@code null}. */
+    private volatile Supplier<TileAtlas> atlasSource = () -> null;
+
+    /** The maximum number of pixel bytes held; guarded by {@code this}. */
+    private long memoryBudget;
+
+    /** The number of pixel bytes currently held; guarded by {@code this}. */
+    private long memoryUsed = 0;
+
+    /**
+     * Creates a cache with the given memory budget.
+     *
+     * @param memoryBudget the maximum number of bytes of tile pixels to keep.
+     */
+    public TileCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets where missing tiles are read from before falling back to the original images.
+     *
+     * @param atlasSource supplies the current atlas, or {@code null} when there is none.
+     */
+    public void setAtlasSource(Supplier<TileAtlas> atlasSource) {
+        this.atlasSource = atlasSource;
+    }
+
+    /**
+     * Returns the image at {@code path} resized to {@code tileSize}, reading it from the
+     * atlas or decoding and resizing it only if it is not already cached.
+     *
+     * @param path     the path of the library image.
+     * @param tileSize the size of the tile to produce.
+     * @return the resized tile, which the caller must close once it has copied the pixels.
+     * @throws IOException if the image cannot be read.
+     */
+    public Tile getTile(String path, Size tileSize) throws IOException {
+        Key key = new Key(path, (int) tileSize.width, (int) tileSize.height);
+
+        synchronized (this) {
+            Tile tile = tiles.get(key);
+            if (tile != null) {
+                hits.incrementAndGet();
+                tile.users++;
+                return tile;
+            }
+        }
+        misses.incrementAndGet();
+
+        // Read or decode outside the lock so other threads can keep hitting the cache meanwhile
+        TileAtlas atlas = atlasSource.get();
+        Mat image = atlas != null ? atlas.getTile(path, tileSize) : null;
+        if (image != null) {
+            atlasReads.incrementAndGet();
+        } else {
+            try (MatScope scope = new MatScope()) {
+                Mat original = scope.track(Imgcodecs.imread(path));
+                if (original.empty()) {
+                    throw new IOException("Failed to read image " + path);
+                }
+                image = NativeMemory.newMat();
+                Imgproc.resize(original, image, tileSize);
+            }
+        }
+
+        synchronized (this) {
+            Tile existing = tiles.get(key);
+            if (existing != null) {
+                // Another thread cached the tile meanwhile, and nobody has seen this copy
+                NativeMemory.release(image);
+                existing.users++;
+                return existing;
+            }
+            Tile tile = new Tile(image);
+            tiles.put(key, tile);
+            memoryUsed += tile.sizeOf();
+            evict();
+            return tile;
+        }
+    }
+
+    /**
+     * Sets the memory budget, evicting tiles immediately if the cache is over it.
+     *
+     * @param memoryBudget the maximum number of bytes of tile pixels to keep.
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /**
+     * Removes every tile from the cache and resets the hit and miss counters.
+     */
+    public synchronized void clear() {
+        for (Tile tile : tiles.values()) {
+            drop(tile);
+        }
+        tiles.clear();
+        memoryUsed = 0;
+        hits.set(0);
+        misses.set(0);
+        atlasReads.set(0);
+    }
+
+    /**
+     * Removes every cached tile of a library image, e.g. because the file changed on disk.
+     *
+     * @param path the path of the library image.
+     */
+    public synchronized void invalidate(String path) {
+        Iterator<Map.Entry<Key, Tile>> iterator = tiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Tile> entry = iterator.next();
+            if (entry.getKey().path().equals(path)) {
+                memoryUsed -= entry.getValue().sizeOf();
+                drop(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops least recently used tiles until the cache fits its budget.
+     */
+    private void evict() {
+        Iterator<Tile> iterator = tiles.values().iterator();
+        while (memoryUsed > memoryBudget && iterator.hasNext()) {
+            Tile tile = iterator.next();
+            memoryUsed -= tile.sizeOf();
+            drop(tile);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Frees the pixels of a tile leaving the cache, or leaves that to the last render thread
+     * still copying from it. The caller holds the lock of the cache.
+     */
+    private void drop(Tile tile) {
+        tile.evicted = true;
+        if (tile.users == 0) {
+            NativeMemory.release(tile.image);
+        }
+    }
+
+    /**
+     * @return the number of lookups served from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that were not served from the cache.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of missing tiles read from the atlas instead of decoded.
+     */
+    public long getAtlasReadCount() {
+        return atlasReads.get();
+    }
+
+    /**
+     * @return the fraction of lookups served from the cache, or 0 if there were none.
+     */
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the number of pixel bytes currently held.
+     */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    /**
+     * A cached tile in use by a render thread, see {@link #getTile(String, Size)}.
+     * Its use counts are guarded by the lock of the cache.
+     */
+    public final class Tile implements AutoCloseable {
+        private final Mat image;
+
+        /** The number of lookups that returned this tile and were not closed yet. */
+        private int users = 1;
+
+        /** Whether the tile has left the cache, so the last user frees it. */
+        private boolean evicted = false;
+
+        private Tile(Mat image) {
+            this.image = image;
+        }
+
+        /**
+         * @return the pixels of the tile; shared, must not be modified and must not be used
+         *         after the tile is closed.
+         */
+        public Mat getImage() {
+            return image;
+        }
+
+        /**
+         * @return the number of pixel bytes held by the tile.
+         */
+        private long sizeOf() {
+            return image.total() * image.elemSize();
+        }
+
+        /**
+         * Ends this use of the tile, freeing its pixels if it has left the cache and no
+         * other render thread is using it.
+         */
+        @Override
+        public void close() {
+            synchronized (TileCache.this) {
+                if (--users == 0 && evicted) {
+                    NativeMemory.release(image);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cache key identifying a library image at a specific tile size.
+     */
+    private record Key(String path, int width, int height) {
+    }
+}
@@ -0,0 +1,206 @@
+package com.amremad719.mosaicify;
+
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code VantagePointTree} class is an exact nearest-neighbour index over the features
+ * of a {@link FeatureStore}. Each node picks a vantage point and splits the remaining
+ * features at the median distance from it, so a query can skip whole subtrees using the
+ * triangle inequality and typically visits only a logarithmic fraction of the library.
+ * <p>
+ * The tree is stored implicitly in flat arrays: the node covering positions
+ * {@code [lo, hi)} keeps its vantage point at {@code lo}, the inner half at
+ * {@code [lo + 1, split[lo])} and the outer half at {@code [split[lo], hi)}.
+ */
+public class VantagePointTree implements MatchIndex {
+
+    /** Ranges at or below this size are scanned linearly instead of being split further. */
+    private static final int LEAF_SIZE = 8;
+
+    /** Slack added to pruning bounds to absorb floating point rounding of square roots. */
+    private static final double EPSILON = 1e-6;
+
+    private final FeatureStore store;
+
+    /** Feature ids arranged in tree order. */
+    private final int[] ids;
+
+    /** The median distance from the vantage point of the node starting at each position. */
+    private final double[] radius;
+
+    /** The first position of the outer half of the node starting at each position. */
+    private final int[] split;
+
+    /** Distances computed by queries, added once per query to keep contention low. */
+    private final LongAdder comparisons = new LongAdder();
+
+    /**
+     * Builds a tree over every feature currently in the store.
+     *
+     * @param store the processed library features.
+     */
+    public VantagePointTree(FeatureStore store) {
+        this.store = store;
+        int size = store.size();
+        this.ids = new int[size];
+        this.radius = new double[size];
+        this.split = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+        }
+
+        // Seeded so that the same library always produces the same tree
+        build(0, size, new double[size], new Random(size));
+    }
+
+    /**
+     * Recursively arranges the positions {@code [lo, hi)} into a subtree.
+     *
+     * @param lo       the first position of the range.
+     * @param hi       one past the last position of the range.
+     * @param distance scratch space holding distances to the current vantage point.
+     * @param random   the source used to pick vantage points.
+     */
+    private void build(int lo, int hi, double[] distance, Random random) {
+        if (hi - lo <= LEAF_SIZE) {
+            return;
+        }
+
+        // Move a random vantage point to the front of the range
+        swap(lo, lo + random.nextInt(hi - lo), distance);
+        int vantagePoint = ids[lo];
+
+        for (int i = lo + 1; i < hi; i++) {
+            distance[i] = distance(vantagePoint, ids[i]);
+        }
+
+        // Partition around the median so both halves are balanced
+        int mid = (lo + 1 + hi) >>> 1;
+        select(lo + 1, hi - 1, mid, distance);
+        radius[lo] = distance[mid];
+        split[lo] = mid;
+
+        build(lo + 1, mid, distance, random);
+        build(mid, hi, distance, random);
+    }
+
+    /**
+     * Rearranges {@code [lo, hi]} so that position {@code k} holds the element it would hold
+     * if the range were sorted by distance, with no larger element before it and no smaller
+     * one after it.
+     */
+    private void select(int lo, int hi, int k, double[] distance) {
+        while (lo < hi) {
+            double pivot = distance[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (distance[i] < pivot) i++;
+                while (distance[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--, distance);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Swaps two positions in both the id and the distance arrays.
+     */
+    private void swap(int a, int b, double[] distance) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+
+        double d = distance[a];
+        distance[a] = distance[b];
+        distance[b] = d;
+    }
+
+    /**
+     * @return the Euclidean distance between two stored features.
+     */
+    private double distance(int a, int b) {
+        int length = store.getFeatureLength();
+        byte[] features = store.getFeatures();
+        return Math.sqrt(FeatureStore.squaredDistance(features, a * length, features, b * length, length));
+    }
+
+    @Override
+    public int nearest(byte[] query) {
+        if (ids.length == 0) {
+            return -1;
+        }
+
+        Candidate best = new Candidate();
+        search(0, ids.length, query, best);
+        comparisons.add(best.comparisons);
+        return best.id;
+    }
+
+    @Override
+    public long getComparisonCount() {
+        return comparisons.sum();
+    }
+
+    /**
+     * Searches the subtree covering {@code [lo, hi)} and updates {@code best} with any
+     * closer feature found.
+     */
+    private void search(int lo, int hi, byte[] query, Candidate best) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                best.offer(ids[i], store.squaredDistance(query, ids[i], best.squared));
+            }
+            return;
+        }
+
+        long squared = store.squaredDistance(query, ids[lo]);
+        best.offer(ids[lo], squared);
+        double d = Math.sqrt(squared);
+        double mu = radius[lo];
+        int mid = split[lo];
+
+        // Visit the half the query falls in first, then the other half only if it may
+        // still hold a feature at least as close as the best one so far
+        if (d < mu) {
+            if (d - mu <= best.distance + EPSILON) search(lo + 1, mid, query, best);
+            if (mu - d <= best.distance + EPSILON) search(mid, hi, query, best);
+        } else {
+            if (mu - d <= best.distance + EPSILON) search(mid, hi, query, best);
+            if (d - mu <= best.distance + EPSILON) search(lo + 1, mid, query, best);
+        }
+    }
+
+    /**
+     * Mutable holder for the best match of a single query.
+     */
+    private static final class Candidate {
+        int id = -1;
+        long squared = Long.MAX_VALUE;
+        double distance = Double.POSITIVE_INFINITY;
+        int comparisons = 0;
+
+        /**
+         * Replaces the current best if the offered feature is closer, breaking ties by id
+         * so that the result matches a linear scan.
+         */
+        void offer(int id, long squared) {
+            comparisons++;
+            if (squared < this.squared || (squared == this.squared && id < this.id)) {
+                this.id = id;
+                this.squared = squared;
+                this.distance = Math.sqrt(squared);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.amremad719.mosaicify;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@code VectorDistanceKernel} class computes squared distances between unsigned byte
+ * features with the incubating Vector API, using as many SIMD lanes as the CPU offers.
+ * Bytes are zero-extended to 32-bit lanes, so every lane holds an exact difference and
+ * square. Only {@link DistanceKernel} should call it, after checking that the
+ * {@code jdk.incubator.vector} module is present, since loading this class without the
+ * module fails.
+ */
+public final class VectorDistanceKernel {
+
+    /** The widest integer vector the CPU supports well. */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /** Bytes loaded per step: one per int lane, but never fewer than the smallest byte vector. */
+    private static final VectorSpecies<Byte> BYTES = INTS.length() >= 8
+            ? VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * 8))
+            : ByteVector.SPECIES_64;
+
+    /** The number of int vectors each byte vector widens into. */
+    private static final int PARTS = BYTES.length() / INTS.length();
+
+    /**
+     * Bytes summed in int lanes before the partial sum is folded into a long and checked
+     * against the bound. Features of up to 256 bytes are compared in one block: checking
+     * more often costs more lane reductions than the early exits save, even for 192 and
+     * 768-byte features. A block adds {@code BLOCK / INTS.length()} squares of at most 255
+     * to each lane, at most 128 of them with the narrowest two-lane vectors, far from
+     * overflowing it.
+     */
+    private static final int BLOCK = 256;
+
+    private VectorDistanceKernel() {
+    }
+
+    /**
+     * Computes the sum of squared differences between two unsigned byte vectors, stopping
+     * early once the sum exceeds {@code bound}.
+     *
+     * @param a       the first vector.
+     * @param aOffset the offset of the first element in {@code a}.
+     * @param b       the second vector.
+     * @param bOffset the offset of the first element in {@code b}.
+     * @param length  the number of elements to compare.
+     * @param bound   the largest sum of interest.
+     * @return the exact sum if it is at most {@code bound}, otherwise some value above {@code bound}.
+     */
+    public static long squaredDistance(byte[] a, int aOffset, byte[] b, int bOffset, int length, long bound) {
+        long sum = 0;
+        int vectorEnd = BYTES.loopBound(length);
+        int k = 0;
+
+        while (k < vectorEnd) {
+            int blockEnd = Math.min(vectorEnd, k + BLOCK);
+            IntVector acc = IntVector.zero(INTS);
+
+            for (; k < blockEnd; k += BYTES.length()) {
+                ByteVector va = ByteVector.fromArray(BYTES, a, aOffset + k);
+                ByteVector vb = ByteVector.fromArray(BYTES, b, bOffset + k);
+
+                for (int part = 0; part < PARTS; part++) {
+                    IntVector ia = (IntVector) va.convertShape(VectorOperators.ZERO_EXTEND_B2I, INTS, part);
+                    IntVector ib = (IntVector) vb.convertShape(VectorOperators.ZERO_EXTEND_B2I, INTS, part);
+                    IntVector diff = ia.sub(ib);
+                    acc = diff.mul(diff).add(acc);
+                }
+            }
+
+            sum += acc.reduceLanes(VectorOperators.ADD);
+            if (sum > bound) {
+                return sum;
+            }
+        }
+
+        // Scalar loop over the elements that do not fill a whole vector
+        for (; k < length; k++) {
+            int diff = (a[aOffset + k] & 0xFF) - (b[bOffset + k] & 0xFF);
+            sum += diff * diff;
+        }
+        return sum;
+    }
+}
@@ -3,6 +3,8 @@ module com.amremad719.mosaicify {
     requires javafx.fxml;
     requires javafx.swing;
     requires opencv;
+    requires jdk.jfr;
+    requires static jdk.incubator.vector;
 
     opens com.amremad719.mosaicify to javafx.fxml;
     exports com.amremad719.mosaicify;
@@ -0,0 +1,58 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cases specific to the coarse-to-fine index; {@link ExactMatchBackendTest} compares it with
+ * brute force on the cases every exact backend shares.
+ */
+class CoarseToFineIndexTest {
+
+    @Test
+    void matchesBruteForceOnShadedFeatures() {
+        // Features spread over many mean colours, so that queries visit several rings of buckets
+        FeatureStore store = IndexTestData.store(shadedFeatures(3000, 6));
+        IndexTestData.assertSameMatches(store, new CoarseToFineIndex(store), shadedFeatures(500, 7));
+    }
+
+    @Test
+    void limitedProbesNeverBeatBruteForce() {
+        FeatureStore store = IndexTestData.store(shadedFeatures(3000, 8));
+        CoarseToFineIndex index = new CoarseToFineIndex(store, 1);
+        BruteForceIndex reference = new BruteForceIndex(store);
+
+        for (byte[] query : shadedFeatures(200, 9)) {
+            int id = index.nearest(query);
+            assertTrue(id >= 0 && id < store.size());
+            long best = store.squaredDistance(query, reference.nearest(query));
+            assertTrue(store.squaredDistance(query, id) >= best);
+        }
+    }
+
+    @Test
+    void negativeProbesAreRejected() {
+        FeatureStore store = IndexTestData.randomStore(10, 5);
+        assertThrows(IllegalArgumentException.class, () -> new CoarseToFineIndex(store, -1));
+    }
+
+    /**
+     * @return features of a random mean colour per feature, with a little noise per value.
+     */
+    private static byte[][] shadedFeatures(int count, long seed) {
+        Random random = new Random(seed);
+        byte[][] features = new byte[count][IndexTestData.FEATURE_LENGTH];
+        for (byte[] feature : features) {
+            int[] shade = {random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+            for (int k = 0; k < feature.length; k++) {
+                int value = shade[k % 3] + random.nextInt(33) - 16;
+                feature[k] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return features;
+    }
+}
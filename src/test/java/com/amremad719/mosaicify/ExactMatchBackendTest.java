@@ -0,0 +1,80 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compares every exact {@link MatchBackend} with {@link BruteForceIndex}, the reference
+ * implementation, on single queries and whole batches alike. Cases that only concern one
+ * backend live in that backend's own test.
+ */
+class ExactMatchBackendTest {
+
+    @ParameterizedTest
+    @EnumSource(value = MatchBackend.class, names = {"VP_TREE", "COARSE_TO_FINE", "GEMM"})
+    void matchesBruteForceOnRandomFeatures(MatchBackend backend) {
+        FeatureStore store = IndexTestData.randomStore(2000, 1);
+        assertSameMatches(backend, store, IndexTestData.randomFeatures(500, 2));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = MatchBackend.class, names = {"VP_TREE", "COARSE_TO_FINE", "GEMM"})
+    void matchesBruteForceOnTiedFeatures(MatchBackend backend) {
+        byte[][] features = IndexTestData.tieHeavyFeatures(1000, 3);
+        FeatureStore store = IndexTestData.store(features);
+
+        // Library features themselves have exact duplicates, so every tie must go to the lowest id
+        assertSameMatches(backend, store, features);
+        assertSameMatches(backend, store, IndexTestData.tieHeavyFeatures(500, 4));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = MatchBackend.class, names = {"VP_TREE", "COARSE_TO_FINE", "GEMM"})
+    void matchesBruteForceOnSmallLibraries(MatchBackend backend) {
+        for (int size = 1; size <= 20; size++) {
+            FeatureStore store = IndexTestData.randomStore(size, size);
+            assertSameMatches(backend, store, IndexTestData.randomFeatures(50, -size));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = MatchBackend.class, names = {"VP_TREE", "COARSE_TO_FINE", "GEMM"})
+    void emptyLibraryHasNoMatch(MatchBackend backend) {
+        FeatureStore store = IndexTestData.randomStore(0, 5);
+        try (MatchIndex index = build(backend, store)) {
+            assertEquals(-1, index.nearest(new byte[IndexTestData.FEATURE_LENGTH]));
+            assertArrayEquals(new int[]{-1, -1}, index.nearestAll(new byte[2][IndexTestData.FEATURE_LENGTH]));
+        }
+    }
+
+    /**
+     * Asserts that an index of the backend answers every query like a linear scan, one at a
+     * time and in a single batch.
+     */
+    private static void assertSameMatches(MatchBackend backend, FeatureStore store, byte[][] queries) {
+        try (MatchIndex index = build(backend, store)) {
+            IndexTestData.assertSameMatches(store, index, queries);
+
+            BruteForceIndex reference = new BruteForceIndex(store);
+            int[] expected = new int[queries.length];
+            for (int i = 0; i < queries.length; i++) {
+                expected[i] = reference.nearest(queries[i]);
+            }
+            assertArrayEquals(expected, index.nearestAll(queries));
+        }
+    }
+
+    /**
+     * Builds an index of the backend, skipping the test if the backend needs OpenCV and its
+     * native library is not on {@code java.library.path}.
+     */
+    private static MatchIndex build(MatchBackend backend, FeatureStore store) {
+        assumeTrue(backend != MatchBackend.GEMM || IndexTestData.loadOpenCV(),
+                "OpenCV native library not on java.library.path");
+        return backend.build(store);
+    }
+}
@@ -0,0 +1,112 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Cases specific to the GEMM index; {@link ExactMatchBackendTest} compares it with brute
+ * force on the cases every exact backend shares.
+ */
+class GemmIndexTest {
+
+    @BeforeAll
+    static void loadOpenCV() {
+        assumeTrue(IndexTestData.loadOpenCV(), "OpenCV native library not on java.library.path");
+    }
+
+    @Test
+    void matchesBruteForceAcrossChunks() {
+        // A library this large splits a batch into several multiplications of about 200 queries
+        FeatureStore store = IndexTestData.randomStore(20000, 1);
+        assertSameBatchMatches(store, IndexTestData.randomFeatures(500, 2));
+
+        byte[][] features = IndexTestData.tieHeavyFeatures(20000, 3);
+        assertSameBatchMatches(IndexTestData.store(features), IndexTestData.tieHeavyFeatures(500, 4));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {8, 16})
+    void matchesBruteForceOnLongFeatures(int side) {
+        // Features of 8x8 pixels and more are summed in double rather than float
+        FeatureStore store = IndexTestData.randomStore(1000, side, side);
+        assertSameBatchMatches(store, IndexTestData.randomFeatures(200, -side, side));
+
+        byte[][] features = IndexTestData.tieHeavyFeatures(800, side + 1, side);
+        FeatureStore tied = IndexTestData.store(features, side);
+        assertSameBatchMatches(tied, features);
+        assertSameBatchMatches(tied, IndexTestData.tieHeavyFeatures(300, side + 2, side));
+
+        // Queries one step away from library features, so the nearest wins by a single unit
+        assertSameBatchMatches(tied, nudged(features, side + 3));
+
+        // Bright features a few steps apart, whose distances differ by far less than the
+        // products they are computed from; float sums would round most of them together
+        byte[] base = brightFeature(side);
+        assertSameBatchMatches(IndexTestData.store(brightVariants(base, 500, side + 4), side),
+                brightVariants(base, 200, side + 5));
+    }
+
+    /**
+     * @return a square feature of {@code side} pixels a side with random values near 255.
+     */
+    private static byte[] brightFeature(int side) {
+        Random random = new Random(side);
+        byte[] feature = new byte[side * side * 3];
+        for (int k = 0; k < feature.length; k++) {
+            feature[k] = (byte) (232 + random.nextInt(20));
+        }
+        return feature;
+    }
+
+    /**
+     * @return copies of a feature with a few values moved one or two steps up or down each.
+     */
+    private static byte[][] brightVariants(byte[] base, int count, long seed) {
+        Random random = new Random(seed);
+        byte[][] variants = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            variants[i] = base.clone();
+            for (int change = 0; change < 6; change++) {
+                int k = random.nextInt(base.length);
+                variants[i][k] = (byte) ((variants[i][k] & 0xFF) + random.nextInt(5) - 2);
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * @return a copy of every feature with one value moved one step up or down.
+     */
+    private static byte[][] nudged(byte[][] features, long seed) {
+        Random random = new Random(seed);
+        byte[][] nudged = new byte[features.length][];
+        for (int i = 0; i < features.length; i++) {
+            nudged[i] = features[i].clone();
+            int k = random.nextInt(nudged[i].length);
+            int value = nudged[i][k] & 0xFF;
+            nudged[i][k] = (byte) (value == 255 || (value > 0 && random.nextBoolean()) ? value - 1 : value + 1);
+        }
+        return nudged;
+    }
+
+    /**
+     * Asserts that one batch through the index answers every query like a linear scan.
+     */
+    private static void assertSameBatchMatches(FeatureStore store, byte[][] queries) {
+        BruteForceIndex reference = new BruteForceIndex(store);
+        int[] expected = new int[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            expected[i] = reference.nearest(queries[i]);
+        }
+        try (GemmIndex index = new GemmIndex(store)) {
+            assertArrayEquals(expected, index.nearestAll(queries));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.amremad719.mosaicify;
+
+import org.opencv.core.Core;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Seeded feature stores and queries shared by the match index tests, and the reference
+ * comparison against {@link BruteForceIndex}.
+ */
+final class IndexTestData {
+
+    static final int FEATURE_WIDTH = 4;
+    static final int FEATURE_HEIGHT = 4;
+    static final int FEATURE_LENGTH = FEATURE_WIDTH * FEATURE_HEIGHT * 3;
+
+    private static Boolean openCVLoaded = null;
+
+    private IndexTestData() {
+    }
+
+    /**
+     * @return a store of uniformly random features.
+     */
+    static FeatureStore randomStore(int size, long seed) {
+        return store(randomFeatures(size, seed));
+    }
+
+    /**
+     * @return a store of uniformly random square features of {@code side} pixels a side.
+     */
+    static FeatureStore randomStore(int size, long seed, int side) {
+        return store(randomFeatures(size, seed, side), side);
+    }
+
+    /**
+     * @return uniformly random features.
+     */
+    static byte[][] randomFeatures(int count, long seed) {
+        return randomFeatures(count, seed, FEATURE_WIDTH);
+    }
+
+    /**
+     * @return uniformly random square features of {@code side} pixels a side.
+     */
+    static byte[][] randomFeatures(int count, long seed, int side) {
+        Random random = new Random(seed);
+        byte[][] features = new byte[count][side * side * 3];
+        for (byte[] feature : features) {
+            random.nextBytes(feature);
+        }
+        return features;
+    }
+
+    /**
+     * Returns features drawn from a palette of three values, with many exact duplicates,
+     * so that queries are often equally close to several features.
+     */
+    static byte[][] tieHeavyFeatures(int count, long seed) {
+        return tieHeavyFeatures(count, seed, FEATURE_WIDTH);
+    }
+
+    /**
+     * Returns square features of {@code side} pixels a side, drawn like {@link #tieHeavyFeatures(int, long)}.
+     */
+    static byte[][] tieHeavyFeatures(int count, long seed, int side) {
+        Random random = new Random(seed);
+        byte[] palette = {0, (byte) 128, (byte) 255};
+        byte[][] distinct = new byte[Math.max(1, count / 4)][side * side * 3];
+        for (byte[] feature : distinct) {
+            for (int k = 0; k < feature.length; k++) {
+                feature[k] = palette[random.nextInt(palette.length)];
+            }
+        }
+
+        byte[][] features = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            features[i] = distinct[random.nextInt(distinct.length)].clone();
+        }
+        return features;
+    }
+
+    /**
+     * @return a store holding the given features, with ids in array order.
+     */
+    static FeatureStore store(byte[][] features) {
+        return store(features, FEATURE_WIDTH);
+    }
+
+    /**
+     * @return a store holding the given square features of {@code side} pixels a side, with ids in array order.
+     */
+    static FeatureStore store(byte[][] features, int side) {
+        FeatureStore store = new FeatureStore(side, side);
+        for (int i = 0; i < features.length; i++) {
+            store.add("image" + i + ".jpg", features[i]);
+        }
+        return store;
+    }
+
+    /**
+     * Asserts that an index answers every query with the same id as a linear scan,
+     * including which of several equally close features it picks.
+     */
+    static void assertSameMatches(FeatureStore store, MatchIndex index, byte[][] queries) {
+        BruteForceIndex reference = new BruteForceIndex(store);
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(reference.nearest(queries[i]), index.nearest(queries[i]), "query " + i);
+        }
+    }
+
+    /**
+     * Loads the OpenCV native library if it is on {@code java.library.path}.
+     *
+     * @return whether OpenCV can be used.
+     */
+    static synchronized boolean loadOpenCV() {
+        if (openCVLoaded == null) {
+            try {
+                System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+                openCVLoaded = true;
+            } catch (UnsatisfiedLinkError e) {
+                openCVLoaded = false;
+            }
+        }
+        return openCVLoaded;
+    }
+}
@@ -0,0 +1,89 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IvfPqIndexTest {
+
+    /** How far the recall measured on fresh queries may fall short of the target. */
+    private static final double RECALL_TOLERANCE = 0.05;
+
+    @Test
+    void reachesTargetRecallAgainstBruteForce() {
+        byte[][] features = IndexTestData.randomFeatures(5000, 1);
+        FeatureStore store = IndexTestData.store(features);
+        IvfPqIndex index = new IvfPqIndex(store, MatchOptions.DEFAULT);
+
+        double recall = recall(store, index, noisyQueries(features, 1000, 2));
+        assertTrue(index.getRecall() >= MatchOptions.DEFAULT.targetRecall(), "calibrated recall " + index.getRecall());
+        assertTrue(recall >= MatchOptions.DEFAULT.targetRecall() - RECALL_TOLERANCE, "measured recall " + recall);
+    }
+
+    @Test
+    void higherTargetGivesHigherRecall() {
+        byte[][] features = IndexTestData.randomFeatures(5000, 3);
+        FeatureStore store = IndexTestData.store(features);
+        byte[][] queries = noisyQueries(features, 1000, 4);
+
+        double low = recall(store, new IvfPqIndex(store, new MatchOptions(MatchBackend.EXACT, 0.5, MatchMemo.EXACT)), queries);
+        double high = recall(store, new IvfPqIndex(store, new MatchOptions(MatchBackend.EXACT, 0.99, MatchMemo.EXACT)), queries);
+        assertTrue(high >= low, "recall " + low + " at 0.5, " + high + " at 0.99");
+        assertTrue(high >= 0.99 - RECALL_TOLERANCE, "measured recall " + high);
+    }
+
+    @Test
+    void answersEveryQueryOnSmallLibraries() {
+        for (int size = 1; size <= 20; size++) {
+            FeatureStore store = IndexTestData.randomStore(size, size);
+            IvfPqIndex index = new IvfPqIndex(store, MatchOptions.DEFAULT);
+            for (byte[] query : IndexTestData.randomFeatures(20, -size)) {
+                int id = index.nearest(query);
+                assertTrue(id >= 0 && id < size, "size " + size + ", id " + id);
+            }
+        }
+    }
+
+    @Test
+    void emptyLibraryHasNoMatch() {
+        FeatureStore store = IndexTestData.randomStore(0, 5);
+        assertEquals(-1, new IvfPqIndex(store, MatchOptions.DEFAULT).nearest(new byte[IndexTestData.FEATURE_LENGTH]));
+    }
+
+    /**
+     * @return the fraction of queries answered with a feature as close as the one a linear
+     *         scan finds.
+     */
+    private static double recall(FeatureStore store, MatchIndex index, byte[][] queries) {
+        BruteForceIndex reference = new BruteForceIndex(store);
+        int hits = 0;
+        for (byte[] query : queries) {
+            long best = store.squaredDistance(query, reference.nearest(query));
+            if (store.squaredDistance(query, index.nearest(query)) == best) {
+                hits++;
+            }
+        }
+        return (double) hits / queries.length;
+    }
+
+    /**
+     * @return library features with a little noise added, like tiles cut from a photo that
+     *         resemble some library image.
+     */
+    private static byte[][] noisyQueries(byte[][] features, int count, long seed) {
+        Random random = new Random(seed);
+        byte[][] queries = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte[] query = features[random.nextInt(features.length)].clone();
+            for (int k = 0; k < query.length; k++) {
+                int value = (query[k] & 0xFF) + (int) Math.round(random.nextGaussian() * 8);
+                query[k] = (byte) Math.max(0, Math.min(255, value));
+            }
+            queries[i] = query;
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,109 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class LibraryIngestorTest {
+
+    /** Image sides below, at and well above what a reduced decode of a 16 pixel feature needs. */
+    private static final int[] SIDES = {12, 20, 64, 100, 130, 300};
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void loadOpenCV() {
+        assumeTrue(IndexTestData.loadOpenCV(), "OpenCV native library not on java.library.path");
+    }
+
+    @Test
+    void decodesAtLeastTheTargetSize() {
+        for (int side : SIDES) {
+            Path file = directory.resolve("image" + side + ".jpg");
+            writeNoise(file, side, side, side);
+            Mat image = LibraryIngestor.decode(file, new Size(16, 16));
+            try {
+                assertTrue(image.width() >= Math.min(16, side) && image.height() >= Math.min(16, side),
+                        side + " pixel image decoded at " + image.width() + "x" + image.height());
+                // The largest reduction that still covers the target is used
+                assertTrue(image.width() < 32 || image.width() == (side + 7) / 8, side + " pixel image decoded at "
+                        + image.width() + "x" + image.height());
+            } finally {
+                NativeMemory.release(image);
+            }
+        }
+        assertTrue(LibraryIngestor.decode(directory.resolve("missing.jpg"), new Size(16, 16)).empty());
+    }
+
+    @Test
+    void featuresDoNotDependOnTheAtlas() throws IOException {
+        Path plain = Files.createDirectories(directory.resolve("plain"));
+        Path withAtlas = Files.createDirectories(directory.resolve("atlas"));
+        for (int side : SIDES) {
+            writeNoise(plain.resolve("image" + side + ".jpg"), side, side, side);
+            writeNoise(withAtlas.resolve("image" + side + ".jpg"), side, side, side);
+        }
+
+        Map<String, byte[]> expected = features(plain, null);
+        Map<String, byte[]> actual = features(withAtlas, new int[]{64});
+        assertEquals(SIDES.length, expected.size());
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String name : expected.keySet()) {
+            assertArrayEquals(expected.get(name), actual.get(name), name);
+        }
+    }
+
+    /**
+     * Searches a library of 16x16 features and returns the feature of every image by file name.
+     */
+    private static Map<String, byte[]> features(Path libraryDirectory, int[] atlasLevels) {
+        SubImagesLibrary library = new SubImagesLibrary();
+        library.setKernelSubDivisionDim(new Size(16, 16));
+        library.setAtlasLevels(atlasLevels);
+        library.setLibraryDirectory(libraryDirectory);
+        library.searchLibrary(ProgressListener.NONE);
+
+        LibrarySnapshot snapshot = library.snapshot();
+        try {
+            FeatureStore store = snapshot.getFeatures();
+            int length = store.getFeatureLength();
+            Map<String, byte[]> features = new HashMap<>();
+            for (int id = 0; id < store.size(); id++) {
+                byte[] feature = new byte[length];
+                System.arraycopy(store.getFeatures(), id * length, feature, 0, length);
+                features.put(Path.of(store.getPath(id)).getFileName().toString(), feature);
+            }
+            return features;
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * Writes an image of random pixels.
+     */
+    private static void writeNoise(Path file, int width, int height, long seed) {
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        Core.setRNGSeed((int) seed);
+        Core.randu(image, 0, 256);
+        Imgcodecs.imwrite(file.toString(), image);
+        image.release();
+    }
+}
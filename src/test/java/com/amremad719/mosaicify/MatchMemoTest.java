@@ -0,0 +1,74 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MatchMemoTest {
+
+    private static final int STEP = 64;
+
+    @Test
+    void quantizedMatchesDoNotDependOnOrder() throws IOException {
+        FeatureStore store = IndexTestData.randomStore(2000, 1);
+        byte[][] queries = nearCopies(IndexTestData.randomFeatures(100, 2), 2000, 3);
+        byte[][] reversed = new byte[queries.length][];
+        for (int i = 0; i < queries.length; i++) {
+            reversed[i] = queries[queries.length - 1 - i];
+        }
+
+        // Single queries one way round, a batch the other way round
+        LibrarySnapshot forward = snapshot(store);
+        int[] forwardMatches = new int[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            forwardMatches[i] = forward.findBestMatchId(queries[i], null);
+        }
+        int[] backwardMatches = snapshot(store).findBestMatchIds(reversed, null);
+
+        MatchMemo memo = new MatchMemo(STEP);
+        BruteForceIndex reference = new BruteForceIndex(store);
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(forwardMatches[i], backwardMatches[queries.length - 1 - i], "query " + i);
+            assertEquals(reference.nearest(memo.representative(queries[i])), forwardMatches[i], "query " + i);
+        }
+    }
+
+    @Test
+    void representativeIsTheCentreOfItsCell() {
+        byte[] feature = {0, 63, 64, (byte) 200, (byte) 255};
+        assertArrayEquals(new byte[]{31, 31, 95, (byte) 223, (byte) 223}, new MatchMemo(STEP).representative(feature));
+        assertSame(feature, new MatchMemo(MatchMemo.EXACT).representative(feature));
+
+        // The last cell is cut short at 255
+        assertArrayEquals(new byte[]{(byte) 253}, new MatchMemo(7).representative(new byte[]{(byte) 255}));
+    }
+
+    /**
+     * @return {@code count} copies of the given features with a little noise, so that many
+     *         share a quantization cell without being identical.
+     */
+    private static byte[][] nearCopies(byte[][] features, int count, long seed) {
+        Random random = new Random(seed);
+        byte[][] copies = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            copies[i] = features[random.nextInt(features.length)].clone();
+            for (int k = 0; k < copies[i].length; k++) {
+                int value = (copies[i][k] & 0xFF) + random.nextInt(9) - 4;
+                copies[i][k] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * @return a fresh snapshot of the store with a memo of step {@value #STEP}.
+     */
+    private static LibrarySnapshot snapshot(FeatureStore store) {
+        return new LibrarySnapshot(store, MatchBackend.VP_TREE, new MatchOptions(MatchBackend.EXACT, 0.95, STEP));
+    }
+}
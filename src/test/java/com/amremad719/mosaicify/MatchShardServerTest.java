@@ -0,0 +1,180 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class MatchShardServerTest {
+
+    private static final int SHARDS = 3;
+
+    @TempDir
+    Path libraryDirectory;
+
+    private final List<MatchShardServer> servers = new ArrayList<>();
+    private ShardCoordinator coordinator;
+
+    /** The whole library loaded by one process, as the reference. */
+    private LibrarySnapshot whole;
+
+    @BeforeAll
+    static void loadOpenCV() {
+        assumeTrue(IndexTestData.loadOpenCV(), "OpenCV native library not on java.library.path");
+    }
+
+    @BeforeEach
+    void startShards() throws IOException {
+        // Lossless images of 4x4 features from a small palette, many of them exact copies,
+        // so that kernels are often equally close to images of different shards
+        byte[][] features = IndexTestData.tieHeavyFeatures(400, 1);
+        for (int i = 0; i < features.length; i++) {
+            // Large enough for the reduced decode of small features, in blocks of one colour
+            Mat feature = new Mat(IndexTestData.FEATURE_HEIGHT, IndexTestData.FEATURE_WIDTH, CvType.CV_8UC3);
+            feature.put(0, 0, features[i]);
+            Mat image = new Mat();
+            Imgproc.resize(feature, image, new Size(IndexTestData.FEATURE_WIDTH * 8, IndexTestData.FEATURE_HEIGHT * 8),
+                    0, 0, Imgproc.INTER_NEAREST);
+            Imgcodecs.imwrite(libraryDirectory.resolve("image" + i + ".png").toString(), image);
+            feature.release();
+            image.release();
+        }
+        Files.writeString(libraryDirectory.resolve("notes.txt"), "not an image");
+
+        whole = search(null).snapshot();
+
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            MatchShardServer server = new MatchShardServer(search(new LibraryShard(i, SHARDS)), 0);
+            servers.add(server);
+            addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        }
+        coordinator = new ShardCoordinator(addresses);
+    }
+
+    @AfterEach
+    void stopShards() {
+        if (coordinator != null) {
+            coordinator.close();
+        }
+        servers.forEach(MatchShardServer::close);
+        if (whole != null) {
+            whole.release();
+        }
+    }
+
+    @Test
+    void matchesBruteForceOnRandomFeatures() throws IOException {
+        assertSameMatches(IndexTestData.randomFeatures(500, 2), MatchBackend.BRUTE_FORCE);
+        assertSameMatches(IndexTestData.randomFeatures(500, 3), null);
+    }
+
+    @Test
+    void matchesBruteForceOnTiedFeatures() throws IOException {
+        // Every library image has copies, so every tie must go to the first in the directory
+        assertSameMatches(IndexTestData.tieHeavyFeatures(500, 1), MatchBackend.BRUTE_FORCE);
+        assertSameMatches(IndexTestData.tieHeavyFeatures(500, 4), MatchBackend.VP_TREE);
+    }
+
+    @Test
+    void shardsTogetherHoldTheWholeLibrary() {
+        assertEquals(400, whole.size());
+        assertEquals(whole.size(), coordinator.size());
+    }
+
+    @Test
+    void malformedRequestsAreRejected() throws IOException {
+        // A negative kernel count
+        assertEquals(ShardProtocol.ERROR, sendRequest((byte) -1, IndexTestData.FEATURE_WIDTH,
+                IndexTestData.FEATURE_HEIGHT, -1));
+
+        // A batch far too large to allocate
+        assertEquals(ShardProtocol.ERROR, sendRequest((byte) -1, 1 << 15, 1 << 15, Integer.MAX_VALUE));
+
+        // A backend that does not exist
+        assertEquals(ShardProtocol.ERROR, sendRequest((byte) MatchBackend.values().length,
+                IndexTestData.FEATURE_WIDTH, IndexTestData.FEATURE_HEIGHT, 0));
+
+        // Features of another size than the shard's
+        assertEquals(ShardProtocol.ERROR, sendRequest((byte) -1, 2, 2, 0));
+
+        // Sizes whose product overflows
+        assertEquals(ShardProtocol.ERROR, sendRequest((byte) -1, Integer.MAX_VALUE, Integer.MAX_VALUE, 1));
+    }
+
+    /**
+     * Asserts that the shards together answer every kernel with the same image as a linear
+     * scan of the whole library, including which of several equally close images they pick.
+     */
+    private void assertSameMatches(byte[][] queries, MatchBackend backend) throws IOException {
+        FeatureStore store = whole.getFeatures();
+        BruteForceIndex reference = new BruteForceIndex(store);
+        ShardCoordinator.Matches matches = coordinator.match(queries, backend);
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(store.getPath(reference.nearest(queries[i])),
+                    matches.library().getFeatures().getPath(matches.ids()[i]), "query " + i);
+        }
+    }
+
+    /**
+     * Searches the library directory, or one shard of it.
+     */
+    private SubImagesLibrary search(LibraryShard shard) {
+        SubImagesLibrary library = new SubImagesLibrary();
+        library.setLibraryDirectory(libraryDirectory);
+        library.setShard(shard);
+        library.searchLibrary(ProgressListener.NONE);
+        return library;
+    }
+
+    /**
+     * Sends a single match request with the given header and no features to the first shard.
+     *
+     * @return the status byte of the answer.
+     */
+    private byte sendRequest(byte backendOrdinal, int featureWidth, int featureHeight, int count) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), servers.get(0).getPort());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.writeInt(ShardProtocol.MAGIC);
+            out.writeInt(ShardProtocol.VERSION);
+            in.readInt();
+            in.readInt();
+            in.readInt();
+            in.readInt();
+            in.readInt();
+            in.readDouble();
+
+            out.writeByte(ShardProtocol.MATCH);
+            out.writeByte(backendOrdinal);
+            out.writeInt(featureWidth);
+            out.writeInt(featureHeight);
+            out.writeInt(count);
+            out.flush();
+            byte status = in.readByte();
+            in.readUTF();
+            return status;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs renders, ingests and cancelled jobs and checks that every native {@link Mat} they
+ * create is released, by comparing {@link NativeMemory}'s live counters with those before.
+ */
+class NativeMemoryTest {
+
+    @TempDir
+    static Path directory;
+
+    private static Path source;
+    private static Engine engine;
+
+    private int liveMats;
+    private long liveBytes;
+
+    @BeforeAll
+    static void createLibrary() throws IOException {
+        assumeTrue(IndexTestData.loadOpenCV(), "OpenCV native library not on java.library.path");
+
+        Path library = Files.createDirectories(directory.resolve("library"));
+        for (int i = 0; i < 60; i++) {
+            writeNoise(library.resolve("image" + i + (i % 2 == 0 ? ".png" : ".jpg")), 48, 48, i);
+        }
+        source = directory.resolve("source.png");
+        writeNoise(source, 240, 240, -1);
+
+        engine = Engine.getInstance();
+        engine.subImagesLibrary.setLibraryDirectory(library);
+        engine.subImagesLibrary.searchLibrary(ProgressListener.NONE);
+    }
+
+    /**
+     * Writes an image of random pixels.
+     */
+    private static void writeNoise(Path file, int width, int height, long seed) {
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        Core.setRNGSeed((int) seed);
+        Core.randu(image, 0, 256);
+        Imgcodecs.imwrite(file.toString(), image);
+        image.release();
+    }
+
+    @BeforeEach
+    void recordLiveMemory() {
+        NativeMemory.BUFFERS.clear();
+        liveMats = NativeMemory.getLiveMatCount();
+        liveBytes = NativeMemory.getLiveBytes();
+    }
+
+    @Test
+    void rendersReleaseEveryMat() throws IOException {
+        Mat mosaic = engine.render(job(MatchBackend.GEMM, 4, "mosaic.png"), ProgressListener.NONE);
+        NativeMemory.release(mosaic);
+        mosaic = engine.render(job(MatchBackend.BRUTE_FORCE, 1, "mosaic.png"), ProgressListener.NONE);
+        NativeMemory.release(mosaic);
+        engine.renderStriped(job(null, 4, "mosaic.tif"), 3, ProgressListener.NONE);
+        engine.renderPreview(job(null, 1, "preview.png"), preview -> {
+        });
+        engine.renderSequence(List.of(job(null, 2, "frame0.png"), job(null, 2, "frame1.png")), 0,
+                ProgressListener.NONE);
+
+        // The caches and the library's current snapshot may keep what they like between renders
+        engine.renderCache.clear();
+        engine.tileCache.clear();
+        engine.subImagesLibrary.setMatchBackend(MatchBackend.COARSE_TO_FINE);
+        assertNothingLive();
+    }
+
+    @Test
+    void ingestReleasesEveryMat() {
+        engine.subImagesLibrary.setAtlasLevels(new int[]{8, 16});
+        try {
+            engine.subImagesLibrary.searchLibrary(ProgressListener.NONE);
+        } finally {
+            engine.subImagesLibrary.setAtlasLevels(null);
+        }
+        engine.subImagesLibrary.searchLibrary(ProgressListener.NONE);
+        assertTrue(engine.subImagesLibrary.size() > 0);
+        assertNothingLive();
+    }
+
+    @Test
+    void cancelledRenderReleasesEveryMat() {
+        CompletableFuture<Mat> render = engine.submitRender(job(null, 4, "cancelled.png"), ProgressListener.NONE,
+                Duration.ofMillis(1));
+
+        // The scheduler runs one job at a time, so the render is over once the search has run
+        engine.submitLibrarySearch(ProgressListener.NONE, null).join();
+        assertTrue(render.isCompletedExceptionally());
+
+        engine.renderCache.clear();
+        engine.tileCache.clear();
+        assertNothingLive();
+    }
+
+    @Test
+    void matOfJobFinishingAfterCancellationIsReleased() throws InterruptedException {
+        JobScheduler scheduler = new JobScheduler(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        CompletableFuture<Mat> job = scheduler.submit(() -> {
+            started.countDown();
+            // Ignores the interruption, like a native call that cannot be stopped
+            while (true) {
+                try {
+                    cancelled.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // Keep waiting for the test to let the job finish
+                }
+            }
+            return NativeMemory.newMat(64, 64, CvType.CV_8UC3);
+        }, null);
+
+        started.await();
+        job.cancel(true);
+        cancelled.countDown();
+        scheduler.submit(() -> null, null).join();
+        scheduler.shutdown();
+        assertNothingLive();
+    }
+
+    /**
+     * @return a job rendering the test source with a 12 by 12 grid.
+     */
+    private static RenderJob job(MatchBackend backend, int threadCount, String output) {
+        return new RenderJob(source, directory.resolve(output), new Size(480, 480), new Size(12, 12),
+                threadCount, backend);
+    }
+
+    /**
+     * Asserts that every {@code Mat} created since the test started has been released.
+     */
+    private void assertNothingLive() {
+        NativeMemory.BUFFERS.clear();
+        assertEquals(liveMats, NativeMemory.getLiveMatCount(), "live Mats");
+        assertEquals(liveBytes, NativeMemory.getLiveBytes(), "live bytes");
+    }
+}
@@ -0,0 +1,72 @@
+package com.amremad719.mosaicify;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compares {@link VectorDistanceKernel} with {@link DistanceKernel#scalarSquaredDistance},
+ * on the feature lengths of 4x4, 8x8 and 16x16 features and on lengths that leave a tail
+ * shorter than a vector or a block.
+ */
+class VectorDistanceKernelTest {
+
+    @BeforeAll
+    static void requireVectorApi() {
+        assumeTrue(DistanceKernel.isVectorized(), "test JVM started without --add-modules jdk.incubator.vector");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {48, 192, 768, 1, 7, 47, 49, 191, 193, 255, 257, 767, 769, 1000})
+    void matchesScalarKernel(int length) {
+        Random random = new Random(length);
+        for (int t = 0; t < 2000; t++) {
+            // Unaligned offsets into arrays longer than the compared range
+            int aOffset = random.nextInt(9);
+            int bOffset = random.nextInt(9);
+            byte[] a = new byte[aOffset + length + random.nextInt(9)];
+            byte[] b = new byte[bOffset + length + random.nextInt(9)];
+            random.nextBytes(a);
+            random.nextBytes(b);
+
+            long exact = DistanceKernel.scalarSquaredDistance(a, aOffset, b, bOffset, length, Long.MAX_VALUE);
+            assertEquals(exact, VectorDistanceKernel.squaredDistance(a, aOffset, b, bOffset, length, Long.MAX_VALUE),
+                    "length " + length);
+
+            long[] bounds = {0, exact - 1, exact, exact + 1, (long) (random.nextDouble() * exact * 1.5)};
+            for (long bound : bounds) {
+                assertBounded(exact, bound, VectorDistanceKernel.squaredDistance(a, aOffset, b, bOffset, length, bound));
+                assertBounded(exact, bound, DistanceKernel.scalarSquaredDistance(a, aOffset, b, bOffset, length, bound));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {48, 192, 768, 4099})
+    void largestDifferencesDoNotOverflow(int length) {
+        byte[] black = new byte[length];
+        byte[] white = new byte[length];
+        Arrays.fill(white, (byte) 255);
+        assertEquals(255L * 255 * length, VectorDistanceKernel.squaredDistance(black, 0, white, 0, length,
+                Long.MAX_VALUE));
+    }
+
+    /**
+     * Asserts that a bounded distance is exact when the exact distance is within the bound,
+     * and above the bound otherwise.
+     */
+    private static void assertBounded(long exact, long bound, long actual) {
+        if (exact <= bound) {
+            assertEquals(exact, actual, "bound " + bound);
+        } else {
+            assertTrue(actual > bound, "distance " + exact + " returned as " + actual + " for bound " + bound);
+        }
+    }
+}